@@ -0,0 +1,68 @@
+package org.stekikun.hierarchyquickassist;
+
+import org.eclipse.core.resources.IWorkspace;
+import org.eclipse.core.resources.IWorkspaceDescription;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.equinox.app.IApplication;
+import org.eclipse.equinox.app.IApplicationContext;
+import org.eclipse.swt.widgets.Display;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks of the quick-assist inside Eclipse,
+ * since they need the Java model of a real workspace:
+ * <pre>
+ * eclipse -nosplash -data &lt;scratch workspace&gt;
+ *   -application org.stekikun.hierarchyquickassist.benchmark
+ *   [JMH options]
+ * </pre>
+ * The synthetic hierarchies are generated in the workspace first.
+ * Benchmarks cannot be forked into separate JVMs, which would not
+ * run the platform, so they run in this one, and the GC profiler
+ * is always enabled so that allocations per call are reported.
+ */
+public class BenchmarkApplication implements IApplication {
+
+	@Override
+	public Object start(IApplicationContext context) throws Exception {
+		String[] args = (String[]) context.getArguments().get(IApplicationContext.APPLICATION_ARGS);
+		CommandLineOptions cmdOptions = new CommandLineOptions(args == null ? new String[0] : args);
+
+		// Proposals need JDT UI images, which need a display, and
+		// images must be created on its thread before benchmarking
+		Display display = Display.getDefault();
+		@SuppressWarnings({ "restriction", "unused" })
+		Object image = org.eclipse.jdt.internal.ui.JavaPluginImages.get(
+			org.eclipse.jdt.internal.ui.JavaPluginImages.IMG_CORRECTION_CHANGE);
+
+		IWorkspace workspace = ResourcesPlugin.getWorkspace();
+		IWorkspaceDescription desc = workspace.getDescription();
+		desc.setAutoBuilding(false);
+		workspace.setDescription(desc);
+		SyntheticHierarchy.createProject(ProposalBenchmark.SIZES);
+		// Let the index catch up, or it would be bypassed
+		HierarchyIndex.getDefault().rebuild();
+		while (!HierarchyIndex.getDefault().isReady()) {
+			if (!display.readAndDispatch())
+				Thread.sleep(50);
+		}
+
+		Options options = new OptionsBuilder()
+			.parent(cmdOptions)
+			.include(ProposalBenchmark.class.getName())
+			.forks(0)
+			.addProfiler(GCProfiler.class)
+			.build();
+		new Runner(options).run();
+		return EXIT_OK;
+	}
+
+	@Override
+	public void stop() {
+		// Nothing to do
+	}
+}
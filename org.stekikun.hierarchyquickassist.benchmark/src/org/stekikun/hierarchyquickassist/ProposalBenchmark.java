@@ -0,0 +1,210 @@
+package org.stekikun.hierarchyquickassist;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.jdt.core.ICompilationUnit;
+import org.eclipse.jdt.core.dom.AST;
+import org.eclipse.jdt.core.dom.ASTNode;
+import org.eclipse.jdt.core.dom.ASTParser;
+import org.eclipse.jdt.core.dom.CompilationUnit;
+import org.eclipse.jdt.core.dom.NodeFinder;
+import org.eclipse.jdt.core.dom.SwitchStatement;
+import org.eclipse.jdt.ui.text.java.IInvocationContext;
+import org.eclipse.jdt.ui.text.java.IJavaCompletionProposal;
+import org.eclipse.jdt.ui.text.java.correction.CUCorrectionProposal;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.stekikun.hierarchyquickassist.QuickAssistHierarchySwitch.HierarchyConfig;
+
+/**
+ * Measures the quick-assist on the synthetic hierarchies created by
+ * {@link SyntheticHierarchy}, end-to-end and phase by phase. Each phase
+ * is measured on the results of the previous ones, computed once.
+ * <p>
+ * With {@code caches} set to {@code cold}, the configuration and
+ * enum kinds caches are cleared before each invocation, which
+ * measures what the first Ctrl+1 on a hierarchy costs. The
+ * quick-assist only waits so long for the kinds of an external enum,
+ * so the end-to-end benchmarks then wait for the background job
+ * to resolve them as well.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ProposalBenchmark {
+
+	/** The sizes of the synthetic hierarchies */
+	static final int[] SIZES = { 4, 64, 1024, 10000 };
+
+	@Param({ "4", "64", "1024", "10000" })
+	public int kinds;
+
+	@Param({ "external", "local" })
+	public String enumLocation;
+
+	@Param({ "getKind", "of" })
+	public String dispatcher;
+
+	@Param({ "warm", "cold" })
+	public String caches;
+
+	private ICompilationUnit cu;
+	private CompilationUnit ast;
+	private SwitchStatement ss;
+	private IInvocationContext context;
+	private HierarchyConfig config;
+	private List<HierarchyKind> hierarchyKinds;
+	private final QuickAssistHierarchySwitch processor = new QuickAssistHierarchySwitch();
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		cu = SyntheticHierarchy.siteOf(kinds, "local".equals(enumLocation), "of".equals(dispatcher));
+		ASTParser parser = ASTParser.newParser(AST.getJLSLatest());
+		parser.setResolveBindings(true);
+		parser.setSource(cu);
+		parser.setKind(ASTParser.K_COMPILATION_UNIT);
+		ast = (CompilationUnit) parser.createAST(null);
+		List<SwitchStatement> switches = HierarchySwitchCleanup.findEmptySwitches(ast);
+		if (switches.size() != 1)
+			throw new IllegalStateException("Expected one switch in " + cu.getPath());
+		ss = switches.get(0);
+		context = new Context(cu, ast, ss.getExpression());
+
+		config = QuickAssistHierarchySwitch.getHierarchyConfig(ss);
+		if (config == null)
+			throw new IllegalStateException("No hierarchy found in " + cu.getPath());
+		hierarchyKinds = QuickAssistHierarchySwitch.getEnumKinds(cu, ast, config);
+		if (hierarchyKinds == null || hierarchyKinds.size() != kinds)
+			throw new IllegalStateException("Wrong kinds found in " + cu.getPath());
+	}
+
+	@Setup(Level.Invocation)
+	public void clearCaches() throws InterruptedException {
+		// No job of a previous invocation may run into this one
+		Job.getJobManager().cancel(EnumKindsJob.FAMILY);
+		Job.getJobManager().join(EnumKindsJob.FAMILY, null);
+		if (!"cold".equals(caches)) return;
+		QuickAssistHierarchySwitch.descriptorCache.clear();
+		QuickAssistHierarchySwitch.enumKindsCache.clear();
+	}
+
+	/**
+	 * What Ctrl+1 costs: computing the (lazy) proposals
+	 */
+	@Benchmark
+	public Object proposals() throws CoreException, InterruptedException {
+		IJavaCompletionProposal[] proposals = processor.getAssists(context, null);
+		awaitKinds();
+		return proposals;
+	}
+
+	/**
+	 * What previewing or applying the first proposal costs on top
+	 */
+	@Benchmark
+	public Object proposalsWithChange() throws CoreException, InterruptedException {
+		IJavaCompletionProposal[] proposals = processor.getAssists(context, null);
+		awaitKinds();
+		return ((CUCorrectionProposal) proposals[0]).getTextChange();
+	}
+
+	// When caches are cold, the kinds of an external enum may still be
+	// resolved in the background, which is part of the cost
+	private void awaitKinds() throws InterruptedException {
+		if ("cold".equals(caches))
+			Job.getJobManager().join(EnumKindsJob.FAMILY, null);
+	}
+
+	/**
+	 * Phase: binding resolution and annotation lookup
+	 */
+	@Benchmark
+	public Object config() {
+		return QuickAssistHierarchySwitch.getHierarchyConfig(ss);
+	}
+
+	/**
+	 * Phase: reading the enum kinds, locally or from another unit
+	 */
+	@Benchmark
+	public Object enumKinds() {
+		return QuickAssistHierarchySwitch.getEnumKinds(cu, ast, config);
+	}
+
+	/**
+	 * Phase: building and rewriting the switch, without the imports
+	 */
+	@Benchmark
+	public Object rewrite() throws CoreException {
+		return QuickAssistHierarchySwitch.getHierarchySwitchRewrite(
+			ss, config, hierarchyKinds, (AST a) -> a.newBreakStatement(), false, null, null)
+			.rew.rewriteAST();
+	}
+
+	/**
+	 * Phase: building the switch and rewriting the imports
+	 */
+	@Benchmark
+	public Object imports() throws CoreException {
+		return QuickAssistHierarchySwitch.getHierarchySwitchRewrite(
+			ss, config, hierarchyKinds, (AST a) -> a.newBreakStatement(), false, null, null)
+			.imports.rewriteImports(new NullProgressMonitor());
+	}
+
+	/**
+	 * A minimal invocation context, with an empty selection
+	 * in the given node
+	 */
+	private static final class Context implements IInvocationContext {
+		private final ICompilationUnit cu;
+		private final CompilationUnit ast;
+		private final int offset;
+
+		Context(ICompilationUnit cu, CompilationUnit ast, ASTNode selected) {
+			this.cu = cu;
+			this.ast = ast;
+			this.offset = selected.getStartPosition();
+		}
+
+		@Override
+		public ICompilationUnit getCompilationUnit() {
+			return cu;
+		}
+
+		@Override
+		public int getSelectionOffset() {
+			return offset;
+		}
+
+		@Override
+		public int getSelectionLength() {
+			return 0;
+		}
+
+		@Override
+		public CompilationUnit getASTRoot() {
+			return ast;
+		}
+
+		@Override
+		public ASTNode getCoveringNode() {
+			return NodeFinder.perform(ast, offset, 0);
+		}
+
+		@Override
+		public ASTNode getCoveredNode() {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package org.stekikun.hierarchyquickassist;
+
+import org.eclipse.core.resources.IFolder;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IProjectDescription;
+import org.eclipse.core.resources.IWorkspaceRoot;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.jdt.core.IClasspathEntry;
+import org.eclipse.jdt.core.ICompilationUnit;
+import org.eclipse.jdt.core.IJavaProject;
+import org.eclipse.jdt.core.IPackageFragment;
+import org.eclipse.jdt.core.IPackageFragmentRoot;
+import org.eclipse.jdt.core.JavaCore;
+import org.eclipse.jdt.launching.JavaRuntime;
+
+/**
+ * Generates the sources of synthetic hierarchies, in a Java project
+ * of the workspace, for the benchmarks to invoke the quick-assist on.
+ * <p>
+ * Each hierarchy has a base class {@code Base}, with one member
+ * sub-class {@code Ci} for each constant {@code Ki} of its enum kind
+ * {@code Kind}, and a class {@code Site} with an empty switch on the
+ * hierarchy. The enum kind is either declared in its own compilation
+ * unit, or locally in {@code Site}. The dispatcher is either the
+ * {@code getKind()} method of the base class, or an external
+ * dispatcher {@code Site.of(Base)}.
+ */
+final class SyntheticHierarchy {
+
+	/** The name of the Java project holding all synthetic hierarchies */
+	static final String PROJECT = "hierarchy-benchmark";
+
+	private SyntheticHierarchy() {
+		// Static utility only
+	}
+
+	/**
+	 * @param kinds
+	 * @param localEnum
+	 * @param externalDispatcher
+	 * @return the name of the package of the corresponding hierarchy
+	 */
+	static String packageOf(int kinds, boolean localEnum, boolean externalDispatcher) {
+		return "bench.h" + kinds + (localEnum ? "_local" : "_external")
+			+ (externalDispatcher ? "_of" : "_getkind");
+	}
+
+	/**
+	 * @param kinds
+	 * @param localEnum
+	 * @param externalDispatcher
+	 * @return the compilation unit with the switch on the corresponding
+	 * 	hierarchy, which must have been created with {@link #createProject}
+	 */
+	static ICompilationUnit siteOf(int kinds, boolean localEnum, boolean externalDispatcher) {
+		IProject project = ResourcesPlugin.getWorkspace().getRoot().getProject(PROJECT);
+		IJavaProject jproject = JavaCore.create(project);
+		IPackageFragmentRoot root = jproject.getPackageFragmentRoot(project.getFolder("src"));
+		return root.getPackageFragment(packageOf(kinds, localEnum, externalDispatcher))
+			.getCompilationUnit("Site.java");
+	}
+
+	/**
+	 * (Re)creates the benchmark project, with all combinations of
+	 * the given sizes, enum locations and dispatchers
+	 *
+	 * @param sizes	the numbers of kinds of the hierarchies
+	 * @throws CoreException
+	 */
+	static void createProject(int... sizes) throws CoreException {
+		IWorkspaceRoot wroot = ResourcesPlugin.getWorkspace().getRoot();
+		IProject project = wroot.getProject(PROJECT);
+		if (project.exists())
+			project.delete(true, true, null);
+		IProjectDescription desc = ResourcesPlugin.getWorkspace().newProjectDescription(PROJECT);
+		desc.setNatureIds(new String[] { JavaCore.NATURE_ID });
+		project.create(desc, null);
+		project.open(null);
+		IFolder src = project.getFolder("src");
+		src.create(true, true, null);
+
+		IJavaProject jproject = JavaCore.create(project);
+		jproject.setRawClasspath(new IClasspathEntry[] {
+			JavaCore.newSourceEntry(src.getFullPath()),
+			JavaRuntime.getDefaultJREContainerEntry()
+		}, project.getFolder("bin").getFullPath(), null);
+		jproject.setOption(JavaCore.COMPILER_COMPLIANCE, JavaCore.VERSION_1_8);
+		jproject.setOption(JavaCore.COMPILER_SOURCE, JavaCore.VERSION_1_8);
+
+		IPackageFragmentRoot root = jproject.getPackageFragmentRoot(src);
+		IPackageFragment bench = root.createPackageFragment("bench", true, null);
+		bench.createCompilationUnit("Hierarchy.java", hierarchySource(), true, null);
+		for (int kinds : sizes) {
+			for (boolean localEnum : new boolean[] { false, true }) {
+				for (boolean externalDispatcher : new boolean[] { false, true }) {
+					String pkgName = packageOf(kinds, localEnum, externalDispatcher);
+					IPackageFragment pkg = root.createPackageFragment(pkgName, true, null);
+					pkg.createCompilationUnit("Base.java",
+						baseSource(pkgName, kinds, localEnum, externalDispatcher), true, null);
+					if (!localEnum)
+						pkg.createCompilationUnit("Kind.java",
+							kindSource(pkgName, kinds, false), true, null);
+					pkg.createCompilationUnit("Site.java",
+						siteSource(pkgName, kinds, localEnum, externalDispatcher), true, null);
+				}
+			}
+		}
+	}
+
+	private static String hierarchySource() {
+		return "package bench;\n\n"
+			+ "public @interface Hierarchy {\n"
+			+ "\tString value();\n"
+			+ "\tboolean field() default false;\n"
+			+ "}\n";
+	}
+
+	private static String baseSource(String pkg, int kinds,
+			boolean localEnum, boolean externalDispatcher) {
+		StringBuilder buf = new StringBuilder();
+		buf.append("package ").append(pkg).append(";\n\n");
+		if (localEnum)
+			buf.append("import ").append(pkg).append(".Site.Kind;\n\n");
+		if (!externalDispatcher)
+			buf.append("@bench.Hierarchy(\"getKind\")\n");
+		buf.append("public abstract class Base {\n");
+		if (!externalDispatcher)
+			buf.append("\tpublic abstract Kind getKind();\n\n");
+		for (int i = 0; i < kinds; ++i) {
+			buf.append("\tpublic static final class C").append(i).append(" extends Base {");
+			if (!externalDispatcher)
+				buf.append(" public Kind getKind() { return Kind.K").append(i).append("; } ");
+			buf.append("}\n");
+		}
+		buf.append("}\n");
+		return buf.toString();
+	}
+
+	private static String kindSource(String pkg, int kinds, boolean member) {
+		StringBuilder buf = new StringBuilder();
+		if (!member)
+			buf.append("package ").append(pkg).append(";\n\n");
+		String indent = member ? "\t" : "";
+		buf.append(indent).append(member ? "public static enum Kind {\n" : "public enum Kind {\n");
+		for (int i = 0; i < kinds; ++i) {
+			buf.append(indent).append("\tK").append(i)
+				.append("(Base.C").append(i).append(".class)")
+				.append(i == kinds - 1 ? ";\n" : ",\n");
+		}
+		buf.append('\n').append(indent).append("\tprivate Kind(Class<?> witness) { }\n");
+		buf.append(indent).append("}\n");
+		return buf.toString();
+	}
+
+	private static String siteSource(String pkg, int kinds,
+			boolean localEnum, boolean externalDispatcher) {
+		StringBuilder buf = new StringBuilder();
+		buf.append("package ").append(pkg).append(";\n\n");
+		buf.append("public class Site {\n");
+		if (localEnum)
+			buf.append(kindSource(pkg, kinds, true)).append('\n');
+		if (externalDispatcher) {
+			buf.append("\t@bench.Hierarchy(\"\")\n");
+			buf.append("\tpublic static Kind of(Base b) { return null; }\n\n");
+		}
+		buf.append("\tpublic Object test(Base b) {\n");
+		buf.append(externalDispatcher ? "\t\tswitch (of(b)) { }\n" : "\t\tswitch (b) { }\n");
+		buf.append("\t}\n");
+		buf.append("}\n");
+		return buf.toString();
+	}
+}
@@ -0,0 +1,247 @@
+package org.stekikun.hierarchyquickassist.processor;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the witness classes of the constants of a kind enum from its
+ * class file, for when the source of the enum is not compiled along with
+ * the annotated element, e.g. in an incremental build. The witness class
+ * of each constant is the first class constant loaded by {@code ldc} in
+ * the static initializer, between the creation of the constant and its
+ * store in its field, as compiled from:
+ * <pre>
+ * new Kind; dup; ldc "A"; iconst_0; ldc A.class; invokespecial; putstatic A
+ * </pre>
+ * Constants with a body are created as instances of {@code Kind$1},
+ * {@code Kind$2}, etc. Other classes created in the arguments of the
+ * constructor do not start another constant.
+ * <p>
+ * Only the constant pool and the code of the static initializer are
+ * decoded, with no dependency on a bytecode library.
+ */
+final class EnumClassReader {
+
+	private static final int CONSTANT_Utf8 = 1;
+	private static final int CONSTANT_Long = 5;
+	private static final int CONSTANT_Double = 6;
+	private static final int CONSTANT_Class = 7;
+	private static final int CONSTANT_Fieldref = 9;
+	private static final int CONSTANT_NameAndType = 12;
+	private static final int CONSTANT_MethodHandle = 15;
+
+	private static final int LDC = 0x12;
+	private static final int LDC_W = 0x13;
+	private static final int TABLESWITCH = 0xaa;
+	private static final int LOOKUPSWITCH = 0xab;
+	private static final int PUTSTATIC = 0xb3;
+	private static final int NEW = 0xbb;
+	private static final int WIDE = 0xc4;
+	private static final int IINC = 0x84;
+
+	/** The length of each instruction, or 0 if it is variable */
+	private static final byte[] LENGTHS = new byte[256];
+	static {
+		for (int op = 0x00; op <= 0xc9; ++op)
+			LENGTHS[op] = 1;
+		setLength(2, 0x10, 0x12, 0x15, 0x16, 0x17, 0x18, 0x19,
+			0x36, 0x37, 0x38, 0x39, 0x3a, 0xa9, 0xbc);
+		setLength(3, 0x11, 0x13, 0x14, 0x84, 0xb2, 0xb3, 0xb4, 0xb5,
+			0xb6, 0xb7, 0xb8, 0xbb, 0xbd, 0xc0, 0xc1, 0xc6, 0xc7);
+		for (int op = 0x99; op <= 0xa8; ++op)
+			LENGTHS[op] = 3;
+		setLength(4, 0xc5);
+		setLength(5, 0xb9, 0xba, 0xc8, 0xc9);
+		setLength(0, TABLESWITCH, LOOKUPSWITCH, WIDE);
+	}
+
+	private static void setLength(int length, int... ops) {
+		for (int op : ops)
+			LENGTHS[op] = (byte) length;
+	}
+
+	private EnumClassReader() {
+		// Static utility only
+	}
+
+	/**
+	 * @param in		the class file of an enum
+	 * @param enumName	the internal name of the enum, e.g. {@code p/Outer$Kind}
+	 * @return the internal names of the witness classes, by name of constant
+	 * @throws IOException if the class file cannot be read or decoded
+	 */
+	static Map<String, String> readWitnesses(InputStream in, String enumName) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		if (data.readInt() != 0xCAFEBABE)
+			throw new IOException("Not a class file");
+		data.readUnsignedShort();	// minor
+		data.readUnsignedShort();	// major
+
+		// Only UTF-8 strings, classes, field references and names are kept
+		int count = data.readUnsignedShort();
+		String[] utf8 = new String[count];
+		int[] classes = new int[count];
+		int[][] fieldrefs = new int[count][];
+		int[] names = new int[count];
+		for (int i = 1; i < count; ++i) {
+			int tag = data.readUnsignedByte();
+			switch (tag) {
+			case CONSTANT_Utf8:
+				utf8[i] = data.readUTF();
+				break;
+			case CONSTANT_Class:
+				classes[i] = data.readUnsignedShort();
+				break;
+			case CONSTANT_Fieldref:
+				fieldrefs[i] = new int[] { data.readUnsignedShort(), data.readUnsignedShort() };
+				break;
+			case CONSTANT_NameAndType:
+				names[i] = data.readUnsignedShort();
+				data.skipBytes(2);
+				break;
+			case CONSTANT_Long:
+			case CONSTANT_Double:
+				data.readLong();
+				// These take two entries
+				++i;
+				break;
+			case CONSTANT_MethodHandle:
+				data.skipBytes(3);
+				break;
+			case 8: case 16: case 19: case 20:	// String, MethodType, Module, Package
+				data.skipBytes(2);
+				break;
+			case 3: case 4: case 10: case 11: case 17: case 18:
+				data.skipBytes(4);
+				break;
+			default:
+				throw new IOException("Unknown constant pool tag " + tag);
+			}
+		}
+		data.skipBytes(6);	// access flags, this, super
+		data.skipBytes(2 * data.readUnsignedShort());	// interfaces
+		skipMembers(data);	// fields
+		for (int methods = data.readUnsignedShort(); methods > 0; --methods) {
+			data.skipBytes(2);
+			String name = utf8[data.readUnsignedShort()];
+			data.skipBytes(2);
+			for (int attrs = data.readUnsignedShort(); attrs > 0; --attrs) {
+				String attr = utf8[data.readUnsignedShort()];
+				int length = data.readInt();
+				if (!"<clinit>".equals(name) || !"Code".equals(attr)) {
+					data.skipBytes(length);
+					continue;
+				}
+				data.skipBytes(4);	// max stack and locals
+				byte[] code = new byte[data.readInt()];
+				data.readFully(code);
+				return decode(code, enumName, utf8, classes, fieldrefs, names);
+			}
+		}
+		return new HashMap<>();
+	}
+
+	private static void skipMembers(DataInputStream data) throws IOException {
+		for (int members = data.readUnsignedShort(); members > 0; --members) {
+			data.skipBytes(6);
+			for (int attrs = data.readUnsignedShort(); attrs > 0; --attrs) {
+				data.skipBytes(2);
+				data.skipBytes(data.readInt());
+			}
+		}
+	}
+
+	private static Map<String, String> decode(byte[] code, String enumName,
+			String[] utf8, int[] classes, int[][] fieldrefs, int[] names)
+			throws IOException {
+		Map<String, String> witnesses = new HashMap<>();
+		// The first class constant since the last creation of a constant
+		String witness = null;
+		boolean creating = false;
+		int pc = 0;
+		while (pc < code.length) {
+			int op = code[pc] & 0xff;
+			switch (op) {
+			case NEW: {
+				String created = utf8[classes[u2(code, pc + 1)]];
+				if (isConstantClass(created, enumName)) {
+					witness = null;
+					creating = true;
+				}
+				break;
+			}
+			case LDC:
+			case LDC_W: {
+				int index = op == LDC ? code[pc + 1] & 0xff : u2(code, pc + 1);
+				if (!creating || witness != null || classes[index] == 0) break;
+				String name = utf8[classes[index]];
+				// Arrays are no witnesses
+				if (!name.isEmpty() && name.charAt(0) != '[')
+					witness = name;
+				break;
+			}
+			case PUTSTATIC: {
+				int[] ref = fieldrefs[u2(code, pc + 1)];
+				if (creating && witness != null && enumName.equals(utf8[classes[ref[0]]]))
+					witnesses.putIfAbsent(utf8[names[ref[1]]], witness);
+				witness = null;
+				creating = false;
+				break;
+			}
+			default:
+				break;
+			}
+			pc += lengthOf(code, pc);
+		}
+		return witnesses;
+	}
+
+	/**
+	 * @return whether an instance of {@code created} is a constant
+	 * 	of the enum, i.e. it is the enum or the class of the body
+	 * 	of one of its constants
+	 */
+	private static boolean isConstantClass(String created, String enumName) {
+		if (created.equals(enumName)) return true;
+		if (!created.startsWith(enumName) || created.length() <= enumName.length() + 1
+			|| created.charAt(enumName.length()) != '$') return false;
+		for (int i = enumName.length() + 1; i < created.length(); ++i) {
+			if (!Character.isDigit(created.charAt(i))) return false;
+		}
+		return true;
+	}
+
+	private static int lengthOf(byte[] code, int pc) throws IOException {
+		int op = code[pc] & 0xff;
+		int length = LENGTHS[op];
+		if (length > 0) return length;
+		switch (op) {
+		case WIDE:
+			return (code[pc + 1] & 0xff) == IINC ? 6 : 4;
+		case TABLESWITCH: {
+			int base = (pc + 4) & ~3;
+			int low = s4(code, base + 4);
+			int high = s4(code, base + 8);
+			return base + 12 + 4 * (high - low + 1) - pc;
+		}
+		case LOOKUPSWITCH: {
+			int base = (pc + 4) & ~3;
+			int pairs = s4(code, base + 4);
+			return base + 8 + 8 * pairs - pc;
+		}
+		default:
+			throw new IOException("Unknown opcode " + op + " at " + pc);
+		}
+	}
+
+	private static int u2(byte[] code, int at) {
+		return ((code[at] & 0xff) << 8) | (code[at + 1] & 0xff);
+	}
+
+	private static int s4(byte[] code, int at) {
+		return (u2(code, at) << 16) | u2(code, at + 2);
+	}
+}
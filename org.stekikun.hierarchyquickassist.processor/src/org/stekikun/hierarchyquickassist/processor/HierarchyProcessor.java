@@ -0,0 +1,464 @@
+package org.stekikun.hierarchyquickassist.processor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedOptions;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+
+import com.sun.source.tree.ExpressionTree;
+import com.sun.source.tree.MemberSelectTree;
+import com.sun.source.tree.NewClassTree;
+import com.sun.source.tree.Tree;
+import com.sun.source.tree.VariableTree;
+import com.sun.source.util.TreePath;
+import com.sun.source.util.Trees;
+
+/**
+ * An annotation processor generating, for every type or external
+ * dispatcher annotated with {@code @Hierarchy}, a companion class
+ * with compile-time dispatch helpers:
+ * <ul>
+ * <li> the witness class of each kind, in an array indexed by the
+ * 	ordinal of the kinds, see {@code witnessOf(Kind)};
+ * <li> the kind of an instance of the base type, see {@code kindOf(Base)}.
+ * </ul>
+ * As with the quick-assist, any annotation type named {@code Hierarchy}
+ * is recognized, unless the {@value #ANNOTATIONS_OPTION} option gives
+ * the comma-separated qualified names of the annotation types to process.
+ * <p>
+ * The mapping between kinds and witness classes is verified: every
+ * constant of the kind enum must be declared with a class literal,
+ * of a distinct subtype of the base type. This mapping is read from
+ * the source of the enum, with the compiler tree API, when the enum
+ * is compiled along with the annotated element and the processor runs
+ * in javac. Otherwise, e.g. when an incremental build only compiles the
+ * annotated element, it is read from the class file of the enum, see
+ * {@link EnumClassReader}. If neither is available, no companion is
+ * generated and a warning is reported.
+ * <p>
+ * Each companion is generated from its annotated element and the types
+ * it depends on only, so the processor is isolating, in the sense of
+ * incremental builds.
+ */
+@SupportedOptions(HierarchyProcessor.ANNOTATIONS_OPTION)
+public class HierarchyProcessor extends AbstractProcessor {
+
+	/** The option giving the qualified names of the annotation types to process */
+	static final String ANNOTATIONS_OPTION = "hierarchy.annotations";
+	/** The simple name of the recognized annotation types */
+	private static final String ANNOTATION_NAME = "Hierarchy";
+	/** The suffix of the names of the companion classes */
+	static final String COMPANION_SUFFIX = "Hierarchy";
+
+	private Elements elements;
+	private Types types;
+	private Messager messager;
+	private /* NULLABLE */ Trees trees;
+	// The package of the annotated element being processed
+	private /* NULLABLE */ PackageElement currentPackage;
+
+	@Override
+	public synchronized void init(ProcessingEnvironment processingEnv) {
+		super.init(processingEnv);
+		this.elements = processingEnv.getElementUtils();
+		this.types = processingEnv.getTypeUtils();
+		this.messager = processingEnv.getMessager();
+		try {
+			this.trees = Trees.instance(processingEnv);
+		} catch (IllegalArgumentException e) {
+			// Not running in javac
+			this.trees = null;
+		}
+	}
+
+	@Override
+	public Set<String> getSupportedAnnotationTypes() {
+		String names = processingEnv.getOptions().get(ANNOTATIONS_OPTION);
+		if (names == null || names.trim().isEmpty())
+			return Collections.singleton("*");
+		Set<String> res = new LinkedHashSet<>();
+		for (String name : names.split(","))
+			res.add(name.trim());
+		return res;
+	}
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		for (TypeElement annot : annotations) {
+			if (!annot.getSimpleName().contentEquals(ANNOTATION_NAME)) continue;
+			for (Element elt : roundEnv.getElementsAnnotatedWith(annot)) {
+				Hierarchy hierarchy = readHierarchy(elt, annot);
+				if (hierarchy != null)
+					generate(hierarchy);
+			}
+		}
+		// Other processors may be interested in the same annotations
+		return false;
+	}
+
+	/**
+	 * What is needed to generate the companion of a hierarchy
+	 */
+	private static final class Hierarchy {
+		/** The annotated type or dispatcher method */
+		final Element annotated;
+		final TypeElement base;
+		final TypeElement kind;
+		/** The witness classes, in the order of the kinds */
+		final List<TypeElement> witnesses;
+		/** The expression returning the kind of {@code x}, or {@code null} */
+		final /* NULLABLE */ String dispatch;
+
+		Hierarchy(Element annotated, TypeElement base, TypeElement kind,
+				List<TypeElement> witnesses, /* NULLABLE */ String dispatch) {
+			this.annotated = annotated;
+			this.base = base;
+			this.kind = kind;
+			this.witnesses = witnesses;
+			this.dispatch = dispatch;
+		}
+	}
+
+	private /* NULLABLE */ Hierarchy readHierarchy(Element elt, TypeElement annotType) {
+		AnnotationMirror annot = null;
+		for (AnnotationMirror am : elt.getAnnotationMirrors()) {
+			if (types.isSameType(am.getAnnotationType(), annotType.asType())) {
+				annot = am;
+				break;
+			}
+		}
+		if (annot == null) return null;
+		currentPackage = elements.getPackageOf(elt);
+		String name = null;
+		boolean field = false;
+		for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> e :
+				elements.getElementValuesWithDefaults(annot).entrySet()) {
+			String member = e.getKey().getSimpleName().toString();
+			Object value = e.getValue().getValue();
+			if (member.equals("value") && value instanceof String)
+				name = (String) value;
+			else if (member.equals("field") && value instanceof Boolean)
+				field = (Boolean) value;
+		}
+		if (name == null) {
+			error(elt, "No 'value' member in the hierarchy annotation");
+			return null;
+		}
+
+		// Find the base type, the kind enum and how to dispatch
+		final TypeElement base;
+		final TypeMirror kindType;
+		final String dispatch;
+		if (elt.getKind() == ElementKind.METHOD) {
+			// An external dispatcher
+			ExecutableElement meth = (ExecutableElement) elt;
+			if (meth.getParameters().size() != 1) {
+				error(elt, "An external dispatcher must have exactly one parameter");
+				return null;
+			}
+			TypeMirror param = types.erasure(meth.getParameters().get(0).asType());
+			if (param.getKind() != TypeKind.DECLARED) {
+				error(elt, "The parameter of an external dispatcher must be a class or interface");
+				return null;
+			}
+			base = (TypeElement) types.asElement(param);
+			kindType = meth.getReturnType();
+			// Instance dispatchers cannot be called from the companion
+			dispatch = meth.getModifiers().contains(Modifier.STATIC) && isAccessible(meth) ?
+				canonicalName(meth.getEnclosingElement()) + "." + meth.getSimpleName() + "(x)" : null;
+		} else if (elt.getKind().isClass() || elt.getKind().isInterface()) {
+			base = (TypeElement) elt;
+			Element member = null;
+			if (field) {
+				for (VariableElement f : ElementFilter.fieldsIn(base.getEnclosedElements())) {
+					if (f.getSimpleName().contentEquals(name)) member = f;
+				}
+			} else {
+				for (ExecutableElement m : ElementFilter.methodsIn(base.getEnclosedElements())) {
+					if (m.getSimpleName().contentEquals(name) && m.getParameters().isEmpty())
+						member = m;
+				}
+			}
+			if (member == null) {
+				error(elt, "No " + (field ? "field " : "method ") + name + " in " + base.getSimpleName());
+				return null;
+			}
+			kindType = field ? member.asType() : ((ExecutableElement) member).getReturnType();
+			dispatch = isAccessible(member) ? "x." + name + (field ? "" : "()") : null;
+		} else {
+			return null;
+		}
+		if (kindType.getKind() != TypeKind.DECLARED ||
+			types.asElement(kindType).getKind() != ElementKind.ENUM) {
+			error(elt, "The kind of a hierarchy must be an enum");
+			return null;
+		}
+		TypeElement kind = (TypeElement) types.asElement(kindType);
+
+		if (!isAccessible(base) || !isAccessible(kind)) {
+			warning(elt, "No companion generated for " + base.getSimpleName()
+				+ ", its base type or kind enum is private");
+			return null;
+		}
+		List<TypeElement> witnesses = readWitnesses(elt, base, kind);
+		if (witnesses == null) return null;
+		return new Hierarchy(elt, base, kind, witnesses, dispatch);
+	}
+
+	/**
+	 * Reads the witness classes from the declarations of the
+	 * constants of the given enum, and checks that they are
+	 * distinct subtypes of the base type.
+	 */
+	private /* NULLABLE */ List<TypeElement> readWitnesses(
+			Element elt, TypeElement base, TypeElement kind) {
+		List<TypeElement> res = new ArrayList<>();
+		Set<TypeElement> seen = new HashSet<>();
+		TypeMirror baseType = types.erasure(base.asType());
+		// The witnesses from the class file, when the enum has no source here
+		Map<String, String> binaryWitnesses = null;
+		for (VariableElement constant : ElementFilter.fieldsIn(kind.getEnclosedElements())) {
+			if (constant.getKind() != ElementKind.ENUM_CONSTANT) continue;
+			TreePath path = trees == null ? null : trees.getPath(constant);
+			TypeElement witness = null;
+			if (path == null) {
+				if (binaryWitnesses == null)
+					binaryWitnesses = readBinaryWitnesses(kind);
+				if (binaryWitnesses == null) {
+					warning(elt, "No companion generated for " + base.getSimpleName()
+						+ ", neither the source nor the class file of "
+						+ kind.getSimpleName() + " is available");
+					return null;
+				}
+				String name = binaryWitnesses.get(constant.getSimpleName().toString());
+				if (name != null)
+					witness = elements.getTypeElement(name.replace('/', '.').replace('$', '.'));
+			} else {
+				// The constant is initialized with new Kind(T.class, ...)
+				ExpressionTree init = ((VariableTree) path.getLeaf()).getInitializer();
+				if (init instanceof NewClassTree && !((NewClassTree) init).getArguments().isEmpty()) {
+					ExpressionTree arg = ((NewClassTree) init).getArguments().get(0);
+					if (arg.getKind() == Tree.Kind.MEMBER_SELECT &&
+						((MemberSelectTree) arg).getIdentifier().contentEquals("class")) {
+						// Trees are not attributed yet, resolve the name of the class
+						TreePath argPath = new TreePath(new TreePath(path, init), arg);
+						Element ty = trees.getElement(
+							new TreePath(argPath, ((MemberSelectTree) arg).getExpression()));
+						if (ty instanceof TypeElement)
+							witness = (TypeElement) ty;
+					}
+				}
+			}
+			if (witness == null) {
+				error(constant, "No witness class literal for kind " + constant.getSimpleName());
+				return null;
+			}
+			if (!types.isSubtype(types.erasure(witness.asType()), baseType)) {
+				error(constant, "Witness class " + witness.getSimpleName()
+					+ " is not a subtype of " + base.getSimpleName());
+				return null;
+			}
+			if (!seen.add(witness)) {
+				error(constant, "Witness class " + witness.getSimpleName()
+					+ " is used by several kinds");
+				return null;
+			}
+			if (!isAccessible(witness)) {
+				warning(elt, "No companion generated for " + base.getSimpleName()
+					+ ", witness class " + witness.getSimpleName() + " is private");
+				return null;
+			}
+			res.add(witness);
+		}
+		return res;
+	}
+
+	/**
+	 * Looks for the class file of the given enum in the output of the
+	 * compilation, where an incremental build leaves it, then in the
+	 * class path.
+	 *
+	 * @param kind
+	 * @return the internal names of the witness classes by name of constant,
+	 * 	or {@code null} if the class file was not found
+	 */
+	private /* NULLABLE */ Map<String, String> readBinaryWitnesses(TypeElement kind) {
+		String pkg = elements.getPackageOf(kind).getQualifiedName().toString();
+		String binaryName = elements.getBinaryName(kind).toString();
+		String relative = (pkg.isEmpty() ? binaryName : binaryName.substring(pkg.length() + 1)) + ".class";
+		String internalName = binaryName.replace('.', '/');
+		for (StandardLocation location : new StandardLocation[] {
+				StandardLocation.CLASS_OUTPUT, StandardLocation.CLASS_PATH }) {
+			try {
+				FileObject file = processingEnv.getFiler().getResource(location, pkg, relative);
+				try (InputStream in = file.openInputStream()) {
+					return EnumClassReader.readWitnesses(in, internalName);
+				}
+			} catch (IOException | IllegalArgumentException e) {
+				// Not there, or not readable from this location
+			}
+		}
+		return null;
+	}
+
+	private void generate(Hierarchy h) {
+		PackageElement pkg = elements.getPackageOf(h.annotated);
+		String companion = companionNameOf(h.annotated);
+		String qualified = pkg.isUnnamed() ? companion : pkg.getQualifiedName() + "." + companion;
+		String base = canonicalName(h.base);
+		// Raw types are fine in class literals, not as parameter types
+		String baseParam = base + wildcardsOf(h.base);
+		String kind = canonicalName(h.kind);
+		String visibility = isPublic(h.base) && isPublic(h.kind) ? "public " : "";
+
+		try {
+			JavaFileObject file = processingEnv.getFiler().createSourceFile(qualified, h.annotated);
+			try (PrintWriter out = new PrintWriter(file.openWriter())) {
+				if (!pkg.isUnnamed())
+					out.println("package " + pkg.getQualifiedName() + ";");
+				out.println();
+				out.println("/**");
+				out.println(" * Dispatch helpers for the hierarchy of {@link " + base + "},");
+				out.println(" * generated by " + HierarchyProcessor.class.getName() + ".");
+				out.println(" */");
+				out.println(visibility + "final class " + companion + " {");
+				out.println();
+				out.println("\t/** The witness classes, indexed by the ordinal of their kind */");
+				out.println("\tprivate static final Class<?>[] WITNESSES = {");
+				for (TypeElement witness : h.witnesses)
+					out.println("\t\t" + canonicalName(witness) + ".class,");
+				out.println("\t};");
+				out.println();
+				out.println("\tprivate " + companion + "() {");
+				out.println("\t\t// Static utility only");
+				out.println("\t}");
+				out.println();
+				out.println("\t/**");
+				out.println("\t * @param kind");
+				out.println("\t * @return the witness class of the given kind");
+				out.println("\t */");
+				out.println("\t@SuppressWarnings({ \"unchecked\", \"rawtypes\" })");
+				out.println("\t" + visibility + "static Class<? extends " + base + "> witnessOf("
+					+ kind + " kind) {");
+				out.println("\t\treturn (Class<? extends " + base + ">) WITNESSES[kind.ordinal()];");
+				out.println("\t}");
+				out.println();
+				out.println("\t/**");
+				out.println("\t * @param x");
+				out.println("\t * @return the kind of {@code x}");
+				out.println("\t */");
+				out.println("\t" + visibility + "static " + kind + " kindOf(" + baseParam + " x) {");
+				if (h.dispatch != null) {
+					out.println("\t\treturn " + h.dispatch + ";");
+				} else {
+					// No accessible dispatcher, test the witnesses in turn
+					List<? extends Element> constants = ElementFilter.fieldsIn(h.kind.getEnclosedElements());
+					int i = 0;
+					for (Element constant : constants) {
+						if (constant.getKind() != ElementKind.ENUM_CONSTANT) continue;
+						out.println("\t\tif (x instanceof " + canonicalName(h.witnesses.get(i++)) + ")");
+						out.println("\t\t\treturn " + kind + "." + constant.getSimpleName() + ";");
+					}
+					out.println("\t\tthrow new IllegalArgumentException(\"No kind for \" + x);");
+				}
+				out.println("\t}");
+				out.println("}");
+			}
+		} catch (IOException e) {
+			error(h.annotated, "Could not generate " + qualified + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * The companion of a type is named after the type, and the companion
+	 * of an external dispatcher after the declaring type and the method,
+	 * with the names of enclosing types separated by underscores, e.g.
+	 * {@code Outer_BaseHierarchy} or {@code Outer_Dispatcher_ofHierarchy}.
+	 *
+	 * @param annotated
+	 * @return the simple name of the companion of the given element
+	 */
+	static String companionNameOf(Element annotated) {
+		StringBuilder buf = new StringBuilder();
+		for (Element e = annotated; e.getKind() != ElementKind.PACKAGE; e = e.getEnclosingElement()) {
+			if (buf.length() > 0) buf.insert(0, '_');
+			buf.insert(0, e.getSimpleName());
+		}
+		return buf.append(COMPANION_SUFFIX).toString();
+	}
+
+	private static String canonicalName(Element type) {
+		return ((TypeElement) type).getQualifiedName().toString();
+	}
+
+	private static String wildcardsOf(TypeElement type) {
+		int n = type.getTypeParameters().size();
+		if (n == 0) return "";
+		StringBuilder buf = new StringBuilder("<?");
+		for (int i = 1; i < n; ++i)
+			buf.append(", ?");
+		return buf.append('>').toString();
+	}
+
+	private boolean isAccessible(Element elt) {
+		// The companion is in the same package as the annotated element,
+		// it can see all but private elements of that package
+		if (!elements.getPackageOf(elt).equals(currentPackage))
+			return isPublic(elt);
+		for (Element e = elt; e.getKind() != ElementKind.PACKAGE; e = e.getEnclosingElement()) {
+			if (e.getModifiers().contains(Modifier.PRIVATE)) return false;
+		}
+		return true;
+	}
+
+	private static boolean isPublic(Element elt) {
+		for (Element e = elt; e.getKind() != ElementKind.PACKAGE; e = e.getEnclosingElement()) {
+			if (!e.getModifiers().contains(Modifier.PUBLIC)) return false;
+		}
+		return true;
+	}
+
+	private void error(Element elt, String msg) {
+		messager.printMessage(Diagnostic.Kind.ERROR, msg, elt);
+	}
+
+	private void warning(Element elt, String msg) {
+		messager.printMessage(Diagnostic.Kind.WARNING, msg, elt);
+	}
+}
@@ -1,5 +1,8 @@
 package org.stekikun.hierarchyquickassist;
 
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.jdt.core.ElementChangedEvent;
+import org.eclipse.jdt.core.JavaCore;
 import org.eclipse.ui.plugin.AbstractUIPlugin;
 import org.osgi.framework.BundleContext;
 
@@ -27,6 +30,15 @@ public class Activator extends AbstractUIPlugin {
 	public void start(BundleContext context) throws Exception {
 		super.start(context);
 		plugin = this;
+		Metrics.getDefault().register(getStateLocation().append("metrics.log").toFile());
+		JavaCore.addElementChangedListener(QuickAssistHierarchySwitch.enumKindsCache,
+			ElementChangedEvent.POST_CHANGE | ElementChangedEvent.POST_RECONCILE);
+		JavaCore.addElementChangedListener(QuickAssistHierarchySwitch.descriptorCache,
+			ElementChangedEvent.POST_CHANGE | ElementChangedEvent.POST_RECONCILE);
+		JavaCore.addElementChangedListener(HierarchyIndex.getDefault(),
+			ElementChangedEvent.POST_CHANGE | ElementChangedEvent.POST_RECONCILE);
+		HierarchyIndex.getDefault().restore(getStateLocation().append("index.bin").toFile());
+		HierarchyStore.getDefault().open(getStateLocation().append("hierarchies.bin").toFile());
 	}
 
 	/*
@@ -34,10 +46,29 @@ public class Activator extends AbstractUIPlugin {
 	 * @see org.eclipse.ui.plugin.AbstractUIPlugin#stop(org.osgi.framework.BundleContext)
 	 */
 	public void stop(BundleContext context) throws Exception {
+		Job.getJobManager().cancel(WarmUpJob.FAMILY);
+		Job.getJobManager().cancel(EnumKindsJob.FAMILY);
+		JavaCore.removeElementChangedListener(HierarchyIndex.getDefault());
+		HierarchyIndex.getDefault().dispose();
+		HierarchyStore.getDefault().save();
+		HierarchyStore.getDefault().close();
+		JavaCore.removeElementChangedListener(QuickAssistHierarchySwitch.descriptorCache);
+		QuickAssistHierarchySwitch.descriptorCache.clear();
+		JavaCore.removeElementChangedListener(QuickAssistHierarchySwitch.enumKindsCache);
+		QuickAssistHierarchySwitch.enumKindsCache.clear();
+		Metrics.getDefault().unregister();
 		plugin = null;
 		super.stop(context);
 	}
 
+	/**
+	 * Schedules the background warm-up of the quick-assist, which
+	 * is otherwise only done on demand by its first invocation
+	 */
+	public void warmUp() {
+		WarmUpJob.scheduleAfterStartup();
+	}
+
 	/**
 	 * Returns the shared instance
 	 *
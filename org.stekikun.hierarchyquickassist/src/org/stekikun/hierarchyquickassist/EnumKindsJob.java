@@ -0,0 +1,131 @@
+package org.stekikun.hierarchyquickassist;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.OperationCanceledException;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.jdt.core.ICompilationUnit;
+import org.stekikun.hierarchyquickassist.QuickAssistHierarchySwitch.HierarchyConfig;
+
+/**
+ * Resolves the kinds of a hierarchy whose enum is declared in another
+ * compilation unit, which may require parsing that unit. This is done
+ * in a cancellable background job rather than in the quick-assist
+ * itself, which only waits for {@link #SYNC_BUDGET_MILLIS} before
+ * falling back to a placeholder proposal.
+ * <p>
+ * There is at most one job per enum at a time, and repeated
+ * invocations of the quick-assist wait for the same job. The kinds
+ * end up in the caches of {@link QuickAssistHierarchySwitch}, so
+ * later invocations don't need any job.
+ */
+final class EnumKindsJob extends Job {
+
+	/** How long the quick-assist waits for the kinds, in milliseconds */
+	static final long SYNC_BUDGET_MILLIS = 100;
+
+	/** The family of all these jobs */
+	static final Object FAMILY = EnumKindsJob.class;
+
+	// The jobs which are scheduled or running, by enum handle, see
+	// QuickAssistHierarchySwitch#enumKindsKeyOf
+	private static final Map<String, EnumKindsJob> jobs = new HashMap<>();
+
+	private final ICompilationUnit cu;
+	private final String key;
+	// Without receiver, so no AST is retained by the job
+	private final HierarchyConfig config;
+	private volatile /* NULLABLE */ List<HierarchyKind> kinds;
+
+	private EnumKindsJob(ICompilationUnit cu, HierarchyConfig config) {
+		super("Resolving kinds of " + config.enumType.getElementName());
+		this.cu = cu;
+		this.key = QuickAssistHierarchySwitch.enumKindsKeyOf(config);
+		this.config = config.withReceiver(null);
+		setPriority(Job.INTERACTIVE);
+	}
+
+	/**
+	 * @param cu		the compilation unit where the hierarchy switch is
+	 * @param config	the configuration of the hierarchy
+	 * @return whether the kinds of the hierarchy are not at hand,
+	 * 	i.e. whether they should be resolved by a job
+	 */
+	static boolean isNeeded(ICompilationUnit cu, HierarchyConfig config) {
+		return !cu.equals(config.enumType.getCompilationUnit())
+			&& !QuickAssistHierarchySwitch.hasCachedKinds(config);
+	}
+
+	/**
+	 * @param cu		the compilation unit where the hierarchy switch is
+	 * @param config	the configuration of the hierarchy
+	 * @return the job resolving the kinds of the given hierarchy,
+	 * 	which is scheduled unless it was already
+	 */
+	static EnumKindsJob schedule(ICompilationUnit cu, HierarchyConfig config) {
+		synchronized (jobs) {
+			String key = QuickAssistHierarchySwitch.enumKindsKeyOf(config);
+			EnumKindsJob job = jobs.get(key);
+			if (job == null) {
+				job = new EnumKindsJob(cu, config);
+				jobs.put(key, job);
+				job.schedule();
+			}
+			return job;
+		}
+	}
+
+	@Override
+	protected IStatus run(IProgressMonitor monitor) {
+		try {
+			// The local AST is only needed for a local enum, never here
+			kinds = QuickAssistHierarchySwitch.getEnumKinds(cu, null, config, monitor);
+			return Status.OK_STATUS;
+		} catch (OperationCanceledException e) {
+			if (Metrics.getDefault().isLogging())
+				Metrics.log("Cancelled resolution of " + config.enumType.getElementName());
+			return Status.CANCEL_STATUS;
+		} finally {
+			synchronized (jobs) {
+				jobs.remove(key, this);
+			}
+		}
+	}
+
+	@Override
+	public boolean belongsTo(Object family) {
+		return family == FAMILY;
+	}
+
+	/**
+	 * Waits for this job to finish, but no longer than the given time.
+	 *
+	 * @param millis	the longest time to wait, or {@code 0} to wait
+	 * 	as long as it takes
+	 * @param monitor	the monitor to cancel the wait with, or {@code null}
+	 * @return whether the job is finished
+	 */
+	boolean await(long millis, /* NULLABLE */ IProgressMonitor monitor) {
+		try {
+			return join(millis, monitor);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (OperationCanceledException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return the kinds which were resolved, or {@code null} if this
+	 * 	job is not finished, was cancelled, or could not find them
+	 */
+	/* NULLABLE */ List<HierarchyKind> getKinds() {
+		return kinds;
+	}
+}
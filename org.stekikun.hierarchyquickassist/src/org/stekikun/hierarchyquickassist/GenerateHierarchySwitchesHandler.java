@@ -0,0 +1,98 @@
+package org.stekikun.hierarchyquickassist;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.core.commands.AbstractHandler;
+import org.eclipse.core.commands.ExecutionEvent;
+import org.eclipse.core.commands.ExecutionException;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.resources.WorkspaceJob;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IAdaptable;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.OperationCanceledException;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.SubMonitor;
+import org.eclipse.jdt.core.ICompilationUnit;
+import org.eclipse.jdt.core.IJavaElement;
+import org.eclipse.jdt.ui.JavaUI;
+import org.eclipse.jface.viewers.ISelection;
+import org.eclipse.jface.viewers.IStructuredSelection;
+import org.eclipse.ltk.core.refactoring.CompositeChange;
+import org.eclipse.ltk.core.refactoring.PerformChangeOperation;
+import org.eclipse.ltk.core.refactoring.RefactoringCore;
+import org.eclipse.ltk.core.refactoring.RefactoringStatus;
+import org.eclipse.ui.IEditorPart;
+import org.eclipse.ui.handlers.HandlerUtil;
+
+/**
+ * Handler for the command which generates all hierarchy switches
+ * in the selected Java elements, or in the active Java editor.
+ *
+ * @see HierarchySwitchCleanup
+ */
+public class GenerateHierarchySwitchesHandler extends AbstractHandler {
+
+	private static final String NAME = "Generate hierarchy switches";
+
+	@Override
+	public Object execute(ExecutionEvent event) throws ExecutionException {
+		final List<IJavaElement> elements = getSelectedElements(event);
+		if (elements.isEmpty()) return null;
+
+		WorkspaceJob job = new WorkspaceJob(NAME) {
+			@Override
+			public IStatus runInWorkspace(IProgressMonitor monitor) throws CoreException {
+				SubMonitor sub = SubMonitor.convert(monitor, NAME, 10);
+				try {
+					List<ICompilationUnit> units = HierarchySwitchCleanup.collectUnits(elements);
+					CompositeChange change =
+						HierarchySwitchCleanup.createChange(NAME, units, sub.newChild(8));
+					if (change.getChildren().length == 0) return Status.OK_STATUS;
+
+					PerformChangeOperation op = new PerformChangeOperation(change);
+					op.setUndoManager(RefactoringCore.getUndoManager(), NAME);
+					op.run(sub.newChild(2));
+					RefactoringStatus status = op.getValidationStatus();
+					if (status != null && status.hasFatalError()) {
+						return new Status(IStatus.ERROR, Activator.PLUGIN_ID,
+							status.getMessageMatchingSeverity(RefactoringStatus.FATAL));
+					}
+					return Status.OK_STATUS;
+				} catch (OperationCanceledException e) {
+					return Status.CANCEL_STATUS;
+				}
+			}
+		};
+		job.setRule(ResourcesPlugin.getWorkspace().getRoot());
+		job.setUser(true);
+		job.schedule();
+		return null;
+	}
+
+	private static List<IJavaElement> getSelectedElements(ExecutionEvent event) {
+		List<IJavaElement> elements = new ArrayList<>();
+		ISelection selection = HandlerUtil.getCurrentSelection(event);
+		if (selection instanceof IStructuredSelection) {
+			for (Object o : ((IStructuredSelection) selection).toList()) {
+				if (o instanceof IJavaElement)
+					elements.add((IJavaElement) o);
+				else if (o instanceof IAdaptable) {
+					IJavaElement elt = ((IAdaptable) o).getAdapter(IJavaElement.class);
+					if (elt != null) elements.add(elt);
+				}
+			}
+		}
+		if (elements.isEmpty()) {
+			// Maybe invoked from a Java editor
+			IEditorPart editor = HandlerUtil.getActiveEditor(event);
+			if (editor != null) {
+				IJavaElement elt = JavaUI.getEditorInputJavaElement(editor.getEditorInput());
+				if (elt != null) elements.add(elt);
+			}
+		}
+		return elements;
+	}
+}
@@ -0,0 +1,208 @@
+package org.stekikun.hierarchyquickassist;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+import org.stekikun.hierarchyquickassist.QuickAssistHierarchySwitch.DispatcherKind;
+import org.stekikun.hierarchyquickassist.QuickAssistHierarchySwitch.HierarchyConfig;
+
+/**
+ * A compact description of a hierarchy, as it is cached between
+ * invocations of the quick-assist: its configuration, without any
+ * receiver, and once they are known, its kinds. Only strings and int
+ * arrays are held, i.e. no AST node, no binding, and not even a Java
+ * element, whose handle identifier is kept instead.
+ */
+final class HierarchyDescriptor {
+	/** The name of the method or field giving the kind */
+	final String name;
+	final DispatcherKind dispatcherKind;
+	/** The qualified name of the unmatched exception class */
+	final /* NULLABLE */ String unmatched;
+	/** The binding key of the kind enum */
+	final String enumKey;
+	/** The handle identifier of the kind enum */
+	final String enumHandle;
+	/** The kinds of the hierarchy, {@code null} until they are resolved */
+	final /* NULLABLE */ Kinds kinds;
+	/**
+	 * Whether the witness classes of the kinds are pairwise unrelated,
+	 * {@code null} until it is checked. It is not written with the rest.
+	 */
+	final /* NULLABLE */ Boolean unrelatedWitnesses;
+
+	private HierarchyDescriptor(String name, DispatcherKind dispatcherKind,
+			/* NULLABLE */ String unmatched, String enumKey, String enumHandle,
+			/* NULLABLE */ Kinds kinds, /* NULLABLE */ Boolean unrelatedWitnesses) {
+		this.name = name;
+		this.dispatcherKind = dispatcherKind;
+		this.unmatched = unmatched;
+		this.enumKey = enumKey;
+		this.enumHandle = enumHandle;
+		this.kinds = kinds;
+		this.unrelatedWitnesses = unrelatedWitnesses;
+	}
+
+	/**
+	 * @param config	the configuration of a hierarchy
+	 * @return the description of the given hierarchy, without kinds
+	 */
+	static HierarchyDescriptor of(HierarchyConfig config) {
+		return new HierarchyDescriptor(config.name, config.dispatcherKind, config.unmatched,
+			config.enumKey, config.enumType.getHandleIdentifier(), null, null);
+	}
+
+	/**
+	 * @param kinds	the kinds of this hierarchy
+	 * @return the same description, along with the given kinds
+	 */
+	HierarchyDescriptor withKinds(List<HierarchyKind> kinds) {
+		return new HierarchyDescriptor(name, dispatcherKind, unmatched,
+			enumKey, enumHandle, Kinds.of(kinds), null);
+	}
+
+	/**
+	 * @param unrelated	whether the witness classes of this hierarchy are
+	 * 	pairwise unrelated
+	 * @return the same description, along with the given result
+	 */
+	HierarchyDescriptor withUnrelatedWitnesses(boolean unrelated) {
+		return new HierarchyDescriptor(name, dispatcherKind, unmatched,
+			enumKey, enumHandle, kinds, unrelated);
+	}
+
+	/**
+	 * Writes this description in the format read by {@link #read}
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	void write(DataOutputStream out) throws IOException {
+		writeString(out, name);
+		out.writeByte(dispatcherKind.ordinal());
+		writeString(out, unmatched);
+		writeString(out, enumKey);
+		writeString(out, enumHandle);
+		if (kinds == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(kinds.constants.length);
+		for (int i = 0; i < kinds.constants.length; ++i) {
+			writeString(out, kinds.constants[i]);
+			out.writeInt(kinds.witnessIndex[i]);
+		}
+		out.writeInt(kinds.witnesses.length);
+		for (String witness : kinds.witnesses)
+			writeString(out, witness);
+	}
+
+	/**
+	 * Reads a description written by {@link #write}
+	 *
+	 * @param in	a buffer positioned at the description
+	 * @return the description
+	 * @throws java.nio.BufferUnderflowException if the description is truncated
+	 */
+	static HierarchyDescriptor read(ByteBuffer in) {
+		String name = readString(in);
+		DispatcherKind dispatcherKind = DispatcherKind.values()[in.get()];
+		String unmatched = readString(in);
+		String enumKey = readString(in);
+		String enumHandle = readString(in);
+		int count = in.getInt();
+		Kinds kinds = null;
+		if (count >= 0) {
+			String[] constants = new String[count];
+			int[] witnessIndex = new int[count];
+			for (int i = 0; i < count; ++i) {
+				constants[i] = readString(in);
+				witnessIndex[i] = in.getInt();
+			}
+			String[] witnesses = new String[in.getInt()];
+			for (int i = 0; i < witnesses.length; ++i)
+				witnesses[i] = readString(in);
+			kinds = new Kinds(constants, witnesses, witnessIndex);
+		}
+		return new HierarchyDescriptor(name, dispatcherKind, unmatched,
+			enumKey, enumHandle, kinds, null);
+	}
+
+	static void writeString(DataOutputStream out, /* NULLABLE */ String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static /* NULLABLE */ String readString(ByteBuffer in) {
+		int length = in.getInt();
+		if (length < 0) return null;
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * The kinds of a hierarchy, with the names of the witness classes
+	 * shared between the constants. The {@link HierarchyKind}s are
+	 * only created when they are accessed.
+	 */
+	static final class Kinds extends AbstractList<HierarchyKind> implements RandomAccess {
+		private final String[] constants;
+		private final String[] witnesses;
+		// The index in witnesses of the witness of each constant
+		private final int[] witnessIndex;
+
+		private Kinds(String[] constants, String[] witnesses, int[] witnessIndex) {
+			this.constants = constants;
+			this.witnesses = witnesses;
+			this.witnessIndex = witnessIndex;
+		}
+
+		/**
+		 * @param kinds
+		 * @return a compact copy of the given kinds
+		 */
+		static Kinds of(List<HierarchyKind> kinds) {
+			if (kinds instanceof Kinds) return (Kinds) kinds;
+			String[] constants = new String[kinds.size()];
+			int[] witnessIndex = new int[kinds.size()];
+			Map<String, Integer> indexes = new HashMap<>();
+			for (int i = 0; i < constants.length; ++i) {
+				HierarchyKind kind = kinds.get(i);
+				constants[i] = kind.name;
+				Integer index = indexes.get(kind.witness);
+				if (index == null) {
+					index = indexes.size();
+					indexes.put(kind.witness, index);
+				}
+				witnessIndex[i] = index;
+			}
+			String[] witnesses = new String[indexes.size()];
+			for (Map.Entry<String, Integer> e : indexes.entrySet())
+				witnesses[e.getValue()] = e.getKey();
+			return new Kinds(constants, witnesses, witnessIndex);
+		}
+
+		@Override
+		public HierarchyKind get(int index) {
+			return new HierarchyKind(constants[index], witnesses[witnessIndex[index]]);
+		}
+
+		@Override
+		public int size() {
+			return constants.length;
+		}
+	}
+}
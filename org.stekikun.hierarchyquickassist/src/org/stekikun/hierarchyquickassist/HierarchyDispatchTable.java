@@ -0,0 +1,430 @@
+package org.stekikun.hierarchyquickassist;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.jdt.core.dom.AST;
+import org.eclipse.jdt.core.dom.ASTNode;
+import org.eclipse.jdt.core.dom.AbstractTypeDeclaration;
+import org.eclipse.jdt.core.dom.ArrayAccess;
+import org.eclipse.jdt.core.dom.ArrayCreation;
+import org.eclipse.jdt.core.dom.Assignment;
+import org.eclipse.jdt.core.dom.Block;
+import org.eclipse.jdt.core.dom.BodyDeclaration;
+import org.eclipse.jdt.core.dom.CastExpression;
+import org.eclipse.jdt.core.dom.Expression;
+import org.eclipse.jdt.core.dom.FieldAccess;
+import org.eclipse.jdt.core.dom.FieldDeclaration;
+import org.eclipse.jdt.core.dom.IExtendedModifier;
+import org.eclipse.jdt.core.dom.IMethodBinding;
+import org.eclipse.jdt.core.dom.ITypeBinding;
+import org.eclipse.jdt.core.dom.IVariableBinding;
+import org.eclipse.jdt.core.dom.Initializer;
+import org.eclipse.jdt.core.dom.LambdaExpression;
+import org.eclipse.jdt.core.dom.MarkerAnnotation;
+import org.eclipse.jdt.core.dom.MethodDeclaration;
+import org.eclipse.jdt.core.dom.MethodInvocation;
+import org.eclipse.jdt.core.dom.Modifier;
+import org.eclipse.jdt.core.dom.Modifier.ModifierKeyword;
+import org.eclipse.jdt.core.dom.PrimitiveType;
+import org.eclipse.jdt.core.dom.SingleVariableDeclaration;
+import org.eclipse.jdt.core.dom.Statement;
+import org.eclipse.jdt.core.dom.SwitchStatement;
+import org.eclipse.jdt.core.dom.TypeDeclaration;
+import org.eclipse.jdt.core.dom.VariableDeclarationFragment;
+import org.eclipse.jdt.core.dom.rewrite.ASTRewrite;
+import org.eclipse.jdt.core.dom.rewrite.ImportRewrite;
+import org.eclipse.jdt.core.dom.rewrite.ListRewrite;
+import org.stekikun.hierarchyquickassist.QuickAssistHierarchySwitch.HierarchyConfig;
+import org.stekikun.hierarchyquickassist.QuickAssistHierarchySwitch.SwitchContext;
+
+/**
+ * Generates a dispatch table for a hierarchy, as an alternative to the
+ * hierarchy switch. The table is an array of handlers indexed by the
+ * ordinal of the kinds, each handler calling a method typed with the
+ * witness class of its kind, and the switch is replaced by a lookup in
+ * the table:
+ * <pre>
+ * &#64;FunctionalInterface
+ * static interface BaseHandler {
+ * 	void handle(Base base);
+ * }
+ *
+ * static final BaseHandler[] BASE_HANDLERS = new BaseHandler[Kind.values().length];
+ *
+ * static {
+ * 	BASE_HANDLERS[Kind.A.ordinal()] = base -> handleA((A) base);
+ * 	...
+ * }
+ *
+ * private static void handleA(final A a) {
+ * }
+ * ...
+ *
+ * BASE_HANDLERS[base.getKind().ordinal()].handle(base);
+ * </pre>
+ * Handlers are named after the kind constants, which are unique
+ * unlike the witness classes.
+ * <p>
+ * The table is declared in the innermost class or enum enclosing the
+ * switch which can declare static members, static initializers and
+ * private methods, i.e. not in an interface. If that type declares the table
+ * already, only the switch is replaced, so that all dispatches on the
+ * same hierarchy share the same table. Its elements can be replaced,
+ * e.g. at startup, to install other handlers.
+ * <p>
+ * A table is only reused if it is an array of a handler interface of the
+ * same base type. If the names of the table or of its handler interface
+ * are taken by other members, e.g. by the table of another base type with
+ * the same simple name, the names are qualified with the enclosing types
+ * and package of the base type, and numbered if that still clashes.
+ */
+final class HierarchyDispatchTable {
+
+	private HierarchyDispatchTable() {
+		// Static utilities only
+	}
+
+	/**
+	 * @param config	the configuration of the hierarchy
+	 * @return the base type of the hierarchy, i.e. the type of the
+	 * 	receiver, or {@code null} if it has no qualified name
+	 */
+	static /* NULLABLE */ ITypeBinding baseTypeOf(HierarchyConfig config) {
+		ITypeBinding ty = config.receiver.resolveTypeBinding();
+		if (ty == null) return null;
+		ty = ty.getErasure();
+		if (ty.getQualifiedName().isEmpty()) return null;
+		return ty;
+	}
+
+	/**
+	 * @param ss
+	 * @return the innermost class or enum declaration enclosing the
+	 * 	given statement which can declare static members, or {@code null}
+	 */
+	static /* NULLABLE */ AbstractTypeDeclaration hostOf(SwitchStatement ss) {
+		for (ASTNode node = ss.getParent(); node != null; node = node.getParent()) {
+			if (!(node instanceof AbstractTypeDeclaration)) continue;
+			ITypeBinding ty = ((AbstractTypeDeclaration) node).resolveBinding();
+			if (ty == null) return null;
+			// Interfaces and annotations cannot declare static initializers,
+			// nor private methods before Java 9, so the table can be
+			// declared in an enclosing class at best
+			if (ty.isInterface()) continue;
+			// Inner classes cannot declare static members
+			if (ty.isTopLevel() || ty.isEnum() ||
+				(ty.isMember() && Modifier.isStatic(ty.getModifiers())))
+				return (AbstractTypeDeclaration) node;
+		}
+		return null;
+	}
+
+	/**
+	 * Records the replacement of the given switch statement by a lookup
+	 * in the dispatch table of the hierarchy, and the declaration of
+	 * the table in the host type unless it is declared already.
+	 *
+	 * @param ss		the switch statement to replace
+	 * @param config	the configuration of the hierarchy
+	 * @param kinds		the kinds of the hierarchy
+	 * @param baseType	the base type of the hierarchy, see {@link #baseTypeOf}
+	 * @param host		the type declaring the table, see {@link #hostOf}
+	 * @param plan		the plan of the switch, or {@code null}
+	 * @param rew		the rewrite to record changes in, or {@code null}
+	 * @param imports	the import rewrite to record imports in, or {@code null}
+	 * @return the context in which changes were recorded
+	 */
+	static SwitchContext getDispatchTableRewrite(
+			SwitchStatement ss, HierarchyConfig config, List<HierarchyKind> kinds,
+			ITypeBinding baseType, AbstractTypeDeclaration host, /* NULLABLE */ SwitchPlan plan,
+			/* NULLABLE */ ASTRewrite rew, /* NULLABLE */ ImportRewrite imports) {
+		final SwitchContext swCtxt =
+			SwitchContext.of(ss, false, plan == null ? null : plan.imports, rew, imports);
+		final AST ast = swCtxt.ast;
+		final String baseName = baseType.getName();
+		final TableNames names = TableNames.of(host, baseType);
+		final String handlerName = names.handler;
+		final String tableName = names.table;
+
+		// TABLE[<expression returning the kind>.ordinal()].handle(receiver)
+		MethodInvocation ordinal = ast.newMethodInvocation();
+		ordinal.setExpression(
+			QuickAssistHierarchySwitch.makeInstanceKind(ss.getExpression(), config, swCtxt.rew));
+		ordinal.setName(ast.newSimpleName("ordinal"));
+		ArrayAccess lookup = ast.newArrayAccess();
+		lookup.setArray(ast.newSimpleName(tableName));
+		lookup.setIndex(ordinal);
+		MethodInvocation handle = ast.newMethodInvocation();
+		handle.setExpression(lookup);
+		handle.setName(ast.newSimpleName("handle"));
+		@SuppressWarnings("unchecked")
+		List<Expression> args = (List<Expression>) handle.arguments();
+		args.add((Expression) swCtxt.rew.createCopyTarget(config.receiver));
+		swCtxt.replaceSwitch(ast.newExpressionStatement(handle));
+
+		if (!names.declared) {
+			ListRewrite members = swCtxt.rew.getListRewrite(host, host.getBodyDeclarationsProperty());
+			String enumName = config.enumType.getFullyQualifiedName('.');
+			List<SwitchPlan.Case> cases = plan == null ?
+				SwitchPlan.casesOf(kinds, Collections.<String> emptySet()) : plan.cases;
+			List<String> handlerNames = handlerNamesOf(cases);
+			members.insertLast(makeHandlerType(swCtxt, baseType, handlerName), null);
+			members.insertLast(makeTable(swCtxt, enumName, handlerName, tableName), null);
+			members.insertLast(
+				makeTableInit(swCtxt, enumName, baseName, cases, handlerNames, tableName), null);
+			for (int i = 0; i < cases.size(); ++i)
+				members.insertLast(makeHandler(swCtxt, cases.get(i), handlerNames.get(i)), null);
+		}
+
+		swCtxt.commit();
+		return swCtxt;
+	}
+
+	/**
+	 * The names of the dispatch table of a hierarchy and of its handler
+	 * interface in a host type, and whether they are declared already
+	 */
+	private static final class TableNames {
+		final String table;
+		final String handler;
+		final boolean declared;
+
+		private TableNames(String table, String handler, boolean declared) {
+			this.table = table;
+			this.handler = handler;
+			this.declared = declared;
+		}
+
+		/**
+		 * @param host		the type declaring the table
+		 * @param baseType	the base type of the hierarchy
+		 * @return the names of the table of the given hierarchy in the
+		 * 	host, which is either declared there or can be
+		 */
+		static TableNames of(AbstractTypeDeclaration host, ITypeBinding baseType) {
+			ITypeBinding ty = host.resolveBinding();
+			Set<String> fields = new HashSet<>();
+			Set<String> types = new HashSet<>();
+			if (ty != null) {
+				for (IVariableBinding field : ty.getDeclaredFields()) {
+					fields.add(field.getName());
+					ITypeBinding handler = handlerOf(field, ty);
+					if (handler != null && handles(handler, baseType))
+						return new TableNames(field.getName(), handler.getName(), true);
+				}
+				for (ITypeBinding member : ty.getDeclaredTypes())
+					types.add(member.getName());
+			}
+			// Base, then TestOuterBase for test.Outer.Base, then numbered
+			String simple = baseType.getName();
+			String qualified = qualifiedNameOf(baseType);
+			for (int i = 1; ; ++i) {
+				String name = i == 1 ? simple : i == 2 ? qualified : qualified + i;
+				String table = constantNameOf(name) + "_HANDLERS";
+				String handler = name + "Handler";
+				if (!fields.contains(table) && !types.contains(handler))
+					return new TableNames(table, handler, false);
+			}
+		}
+
+		/**
+		 * @return the handler interface of the given field if it may be
+		 * 	a dispatch table, i.e. an array of an interface declared in
+		 * 	the host, or {@code null} otherwise
+		 */
+		private static /* NULLABLE */ ITypeBinding handlerOf(IVariableBinding field, ITypeBinding host) {
+			ITypeBinding type = field.getType();
+			if (!type.isArray() || type.getDimensions() != 1) return null;
+			ITypeBinding elt = type.getElementType();
+			if (!elt.isInterface() || elt.getDeclaringClass() == null ||
+				!elt.getDeclaringClass().isEqualTo(host)) return null;
+			return elt;
+		}
+
+		/**
+		 * @return whether the given interface declares a {@code handle}
+		 * 	method of the given base type
+		 */
+		private static boolean handles(ITypeBinding handler, ITypeBinding baseType) {
+			for (IMethodBinding meth : handler.getDeclaredMethods()) {
+				if (!meth.getName().equals("handle")) continue;
+				ITypeBinding[] params = meth.getParameterTypes();
+				if (params.length == 1 && params[0].getErasure().isEqualTo(baseType))
+					return true;
+			}
+			return false;
+		}
+
+		private static String qualifiedNameOf(ITypeBinding baseType) {
+			// test.Outer.Base to TestOuterBase
+			StringBuilder buf = new StringBuilder();
+			for (String part : baseType.getQualifiedName().split("\\.")) {
+				if (part.isEmpty()) continue;
+				buf.append(Character.toUpperCase(part.charAt(0)));
+				buf.append(part.substring(1));
+			}
+			return buf.toString();
+		}
+	}
+
+	private static String constantNameOf(String type) {
+		// CamlCase to CAML_CASE
+		StringBuilder buf = new StringBuilder(type.length() + 4);
+		for (int i = 0; i < type.length(); ++i) {
+			char c = type.charAt(i);
+			if (i > 0 && Character.isUpperCase(c) && Character.isLowerCase(type.charAt(i - 1)))
+				buf.append('_');
+			buf.append(Character.toUpperCase(c));
+		}
+		return buf.toString();
+	}
+
+	@SuppressWarnings("unchecked")
+	private static BodyDeclaration makeHandlerType(
+			SwitchContext swCtxt, ITypeBinding baseType, String handlerName) {
+		final AST ast = swCtxt.ast;
+		// @FunctionalInterface static interface BaseHandler { ... }
+		TypeDeclaration decl = ast.newTypeDeclaration();
+		decl.setInterface(true);
+		decl.setName(ast.newSimpleName(handlerName));
+		MarkerAnnotation annot = ast.newMarkerAnnotation();
+		annot.setTypeName(ast.newSimpleName("FunctionalInterface"));
+		decl.modifiers().add(annot);
+		decl.modifiers().add(ast.newModifier(ModifierKeyword.STATIC_KEYWORD));
+
+		// void handle(Base base);
+		MethodDeclaration handle = ast.newMethodDeclaration();
+		handle.setName(ast.newSimpleName("handle"));
+		handle.setReturnType2(ast.newPrimitiveType(PrimitiveType.VOID));
+		SingleVariableDeclaration param = ast.newSingleVariableDeclaration();
+		param.setType(swCtxt.addImport(baseType.getQualifiedName()));
+		param.setName(ast.newSimpleName(
+			QuickAssistHierarchySwitch.variableNameOf(baseType.getName())));
+		handle.parameters().add(param);
+		decl.bodyDeclarations().add(handle);
+		return decl;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static BodyDeclaration makeTable(
+			SwitchContext swCtxt, String enumName, String handlerName, String tableName) {
+		final AST ast = swCtxt.ast;
+		// new BaseHandler[Kind.values().length]
+		MethodInvocation values = ast.newMethodInvocation();
+		values.setExpression(swCtxt.addImportName(enumName));
+		values.setName(ast.newSimpleName("values"));
+		FieldAccess length = ast.newFieldAccess();
+		length.setExpression(values);
+		length.setName(ast.newSimpleName("length"));
+		ArrayCreation creation = ast.newArrayCreation();
+		creation.setType(ast.newArrayType(ast.newSimpleType(ast.newSimpleName(handlerName))));
+		creation.dimensions().add(length);
+
+		// static final BaseHandler[] BASE_HANDLERS = ...;
+		VariableDeclarationFragment frag = ast.newVariableDeclarationFragment();
+		frag.setName(ast.newSimpleName(tableName));
+		frag.setInitializer(creation);
+		FieldDeclaration decl = ast.newFieldDeclaration(frag);
+		decl.setType(ast.newArrayType(ast.newSimpleType(ast.newSimpleName(handlerName))));
+		List<IExtendedModifier> modifiers = (List<IExtendedModifier>) decl.modifiers();
+		modifiers.add(ast.newModifier(ModifierKeyword.STATIC_KEYWORD));
+		modifiers.add(ast.newModifier(ModifierKeyword.FINAL_KEYWORD));
+		return decl;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static BodyDeclaration makeTableInit(SwitchContext swCtxt, String enumName,
+			String baseName, List<SwitchPlan.Case> cases, List<String> handlerNames,
+			String tableName) {
+		final AST ast = swCtxt.ast;
+		final String bid = QuickAssistHierarchySwitch.variableNameOf(baseName);
+		Block block = ast.newBlock();
+		List<Statement> statements = (List<Statement>) block.statements();
+		for (int i = 0; i < cases.size(); ++i) {
+			SwitchPlan.Case c = cases.get(i);
+			// TABLE[Kind.A.ordinal()] = base -> handleA((A) base);
+			MethodInvocation ordinal = ast.newMethodInvocation();
+			ordinal.setExpression(ast.newQualifiedName(
+				swCtxt.addImportName(enumName), ast.newSimpleName(c.kind.name)));
+			ordinal.setName(ast.newSimpleName("ordinal"));
+			ArrayAccess access = ast.newArrayAccess();
+			access.setArray(ast.newSimpleName(tableName));
+			access.setIndex(ordinal);
+
+			CastExpression ce = ast.newCastExpression();
+			ce.setType(swCtxt.addImport(c));
+			ce.setExpression(ast.newSimpleName(bid));
+			MethodInvocation call = ast.newMethodInvocation();
+			call.setName(ast.newSimpleName(handlerNames.get(i)));
+			call.arguments().add(ce);
+			LambdaExpression lambda = ast.newLambdaExpression();
+			lambda.setParentheses(false);
+			VariableDeclarationFragment param = ast.newVariableDeclarationFragment();
+			param.setName(ast.newSimpleName(bid));
+			lambda.parameters().add(param);
+			lambda.setBody(call);
+
+			Assignment assign = ast.newAssignment();
+			assign.setLeftHandSide(access);
+			assign.setRightHandSide(lambda);
+			statements.add(ast.newExpressionStatement(assign));
+		}
+		// static { ... }
+		Initializer init = ast.newInitializer();
+		init.modifiers().add(ast.newModifier(ModifierKeyword.STATIC_KEYWORD));
+		init.setBody(block);
+		return init;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static BodyDeclaration makeHandler(
+			SwitchContext swCtxt, SwitchPlan.Case c, String name) {
+		final AST ast = swCtxt.ast;
+		// private static void handleA(final A a) { }
+		MethodDeclaration decl = ast.newMethodDeclaration();
+		decl.modifiers().add(ast.newModifier(ModifierKeyword.PRIVATE_KEYWORD));
+		decl.modifiers().add(ast.newModifier(ModifierKeyword.STATIC_KEYWORD));
+		decl.setReturnType2(ast.newPrimitiveType(PrimitiveType.VOID));
+		decl.setName(ast.newSimpleName(name));
+		SingleVariableDeclaration param = ast.newSingleVariableDeclaration();
+		param.modifiers().add(ast.newModifier(ModifierKeyword.FINAL_KEYWORD));
+		param.setType(swCtxt.addImport(c));
+		param.setName(ast.newSimpleName(c.variable));
+		decl.parameters().add(param);
+		decl.setBody(ast.newBlock());
+		return decl;
+	}
+
+	/**
+	 * Several kinds can share a witness class, or witness classes
+	 * can share a simple name, so handlers are named after the kind
+	 * constants instead, e.g. {@code handleWorkspaceRoot} for
+	 * {@code WORKSPACE_ROOT}, and numbered if that still clashes.
+	 *
+	 * @param cases
+	 * @return the names of the handlers of the given cases
+	 */
+	private static List<String> handlerNamesOf(List<SwitchPlan.Case> cases) {
+		List<String> names = new ArrayList<>(cases.size());
+		Set<String> used = new HashSet<>();
+		for (SwitchPlan.Case c : cases) {
+			StringBuilder buf = new StringBuilder("handle");
+			for (String part : c.kind.name.split("_")) {
+				if (part.isEmpty()) continue;
+				buf.append(Character.toUpperCase(part.charAt(0)));
+				// CAML_CASE to CamlCase, but leave CamlCase alone
+				buf.append(part.equals(part.toUpperCase()) ?
+					part.substring(1).toLowerCase() : part.substring(1));
+			}
+			String name = buf.toString();
+			for (int i = 2; !used.add(name); ++i)
+				name = buf.toString() + i;
+			names.add(name);
+		}
+		return names;
+	}
+}
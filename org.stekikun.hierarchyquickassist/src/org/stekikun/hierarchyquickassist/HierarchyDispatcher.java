@@ -0,0 +1,487 @@
+package org.stekikun.hierarchyquickassist;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.jdt.core.ICompilationUnit;
+import org.eclipse.jdt.core.IJavaElement;
+import org.eclipse.jdt.core.IJavaProject;
+import org.eclipse.jdt.core.IType;
+import org.eclipse.jdt.core.JavaModelException;
+import org.eclipse.jdt.core.dom.AST;
+import org.eclipse.jdt.core.dom.ASTNode;
+import org.eclipse.jdt.core.dom.AnonymousClassDeclaration;
+import org.eclipse.jdt.core.dom.Block;
+import org.eclipse.jdt.core.dom.ClassInstanceCreation;
+import org.eclipse.jdt.core.dom.CompilationUnit;
+import org.eclipse.jdt.core.dom.EnumConstantDeclaration;
+import org.eclipse.jdt.core.dom.EnumDeclaration;
+import org.eclipse.jdt.core.dom.Expression;
+import org.eclipse.jdt.core.dom.FieldDeclaration;
+import org.eclipse.jdt.core.dom.IExtendedModifier;
+import org.eclipse.jdt.core.dom.IMethodBinding;
+import org.eclipse.jdt.core.dom.ITypeBinding;
+import org.eclipse.jdt.core.dom.IVariableBinding;
+import org.eclipse.jdt.core.dom.IfStatement;
+import org.eclipse.jdt.core.dom.InfixExpression;
+import org.eclipse.jdt.core.dom.MarkerAnnotation;
+import org.eclipse.jdt.core.dom.MethodDeclaration;
+import org.eclipse.jdt.core.dom.MethodInvocation;
+import org.eclipse.jdt.core.dom.Modifier.ModifierKeyword;
+import org.eclipse.jdt.core.dom.ParameterizedType;
+import org.eclipse.jdt.core.dom.ReturnStatement;
+import org.eclipse.jdt.core.dom.SimpleName;
+import org.eclipse.jdt.core.dom.SingleMemberAnnotation;
+import org.eclipse.jdt.core.dom.SingleVariableDeclaration;
+import org.eclipse.jdt.core.dom.Statement;
+import org.eclipse.jdt.core.dom.StringLiteral;
+import org.eclipse.jdt.core.dom.ThrowStatement;
+import org.eclipse.jdt.core.dom.Type;
+import org.eclipse.jdt.core.dom.TypeLiteral;
+import org.eclipse.jdt.core.dom.VariableDeclarationFragment;
+import org.eclipse.jdt.core.dom.VariableDeclarationStatement;
+import org.eclipse.jdt.core.dom.rewrite.ASTRewrite;
+import org.eclipse.jdt.core.dom.rewrite.ImportRewrite;
+import org.eclipse.jdt.core.dom.rewrite.ImportRewrite.ImportRewriteContext;
+import org.eclipse.jdt.core.dom.rewrite.ListRewrite;
+import org.eclipse.jdt.core.search.IJavaSearchConstants;
+import org.eclipse.jdt.core.search.SearchEngine;
+import org.eclipse.jdt.core.search.SearchPattern;
+import org.eclipse.jdt.core.search.TypeNameMatch;
+import org.eclipse.jdt.core.search.TypeNameMatchRequestor;
+import org.eclipse.jdt.ui.text.java.IJavaCompletionProposal;
+import org.eclipse.jdt.ui.text.java.correction.CUCorrectionProposal;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.text.edits.TextEdit;
+
+/**
+ * Generates an external dispatcher for an enum whose constants are
+ * declared with witness classes, i.e. a method annotated with
+ * {@code @Hierarchy("")} returning the kind of an instance of the
+ * common base type of the witnesses:
+ * <pre>
+ * private static final ClassValue&lt;Kind&gt; KINDS = new ClassValue&lt;Kind&gt;() {
+ * 	&#64;Override
+ * 	protected Kind computeValue(Class&lt;?&gt; type) {
+ * 		if (A.class.isAssignableFrom(type)) return A;
+ * 		...
+ * 		return null;
+ * 	}
+ * };
+ *
+ * &#64;Hierarchy("")
+ * public static Kind of(Base base) {
+ * 	Kind kind = KINDS.get(base.getClass());
+ * 	if (kind == null) throw new IllegalArgumentException(...);
+ * 	return kind;
+ * }
+ * </pre>
+ * The kind of each concrete class is thus computed once, by testing
+ * the witnesses from the most specific to the least specific, so that
+ * subclasses of witnesses get the kind of their closest witness, and
+ * every later dispatch is a single lookup in the class value.
+ */
+final class HierarchyDispatcher {
+
+	/** The name of the generated dispatcher method */
+	static final String DISPATCHER_NAME = "of";
+	/** The name of the generated class value */
+	static final String CLASS_VALUE_NAME = "KINDS";
+	private static final String ANNOTATION_NAME = "Hierarchy";
+
+	private HierarchyDispatcher() {
+		// Static utilities only
+	}
+
+	/**
+	 * This only looks at the syntax, like the switch detection.
+	 *
+	 * @param coveringNode
+	 * @return the enum declaration whose name is the covering node,
+	 * 	or which is the covering node, or {@code null}
+	 */
+	static /* NULLABLE */ EnumDeclaration findEnumDeclaration(/* NULLABLE */ ASTNode coveringNode) {
+		if (coveringNode instanceof SimpleName &&
+			coveringNode.getLocationInParent() == EnumDeclaration.NAME_PROPERTY)
+			coveringNode = coveringNode.getParent();
+		if (!(coveringNode instanceof EnumDeclaration)) return null;
+		EnumDeclaration decl = (EnumDeclaration) coveringNode;
+		if (decl.enumConstants().isEmpty()) return null;
+		return decl;
+	}
+
+	/**
+	 * @param cu
+	 * @param decl	an enum declaration from an AST with resolved bindings
+	 * @return the proposal generating the dispatcher of the given enum,
+	 * 	or {@code null} if its constants have no witnesses, or it has a
+	 * 	dispatcher already
+	 */
+	static /* NULLABLE */ IJavaCompletionProposal getDispatcherProposal(
+			ICompilationUnit cu, EnumDeclaration decl) {
+		ITypeBinding enumType = decl.resolveBinding();
+		if (enumType == null) return null;
+		for (IMethodBinding mb : enumType.getDeclaredMethods()) {
+			if (mb.getName().equals(DISPATCHER_NAME) && mb.getParameterTypes().length == 1)
+				return null;
+		}
+		for (IVariableBinding vb : enumType.getDeclaredFields()) {
+			if (vb.getName().equals(CLASS_VALUE_NAME))
+				return null;
+		}
+		List<ITypeBinding> witnesses = witnessesOf(decl);
+		if (witnesses == null) return null;
+		ITypeBinding base = commonSupertype(decl.getAST(), witnesses);
+		return new DispatcherProposal(cu, decl, witnesses, base);
+	}
+
+	/**
+	 * @param decl
+	 * @return the witness classes of the constants of the given enum,
+	 * 	in the order of declaration, or {@code null} if some constant
+	 * 	has no witness
+	 */
+	private static /* NULLABLE */ List<ITypeBinding> witnessesOf(EnumDeclaration decl) {
+		List<ITypeBinding> res = new ArrayList<>();
+		for (Object o : decl.enumConstants()) {
+			EnumConstantDeclaration kindDecl = (EnumConstantDeclaration) o;
+			if (kindDecl.arguments().isEmpty()) return null;
+			Expression arg = (Expression) kindDecl.arguments().get(0);
+			if (!(arg instanceof TypeLiteral)) return null;
+			ITypeBinding witness = ((TypeLiteral) arg).getType().resolveBinding();
+			if (witness == null || witness.getErasure().getQualifiedName().isEmpty())
+				return null;
+			res.add(witness.getErasure());
+		}
+		return res;
+	}
+
+	/**
+	 * @param ast	an AST with resolved bindings
+	 * @param witnesses
+	 * @return the most specific supertype of all the given witnesses,
+	 * 	looking at the supertypes of the first witness breadth-first
+	 */
+	private static ITypeBinding commonSupertype(AST ast, List<ITypeBinding> witnesses) {
+		ITypeBinding first = witnesses.get(0);
+		Deque<ITypeBinding> queue = new ArrayDeque<>();
+		Set<String> seen = new HashSet<>();
+		queue.add(first);
+		ITypeBinding object = null;
+		while (!queue.isEmpty()) {
+			ITypeBinding ty = queue.remove().getErasure();
+			if (!seen.add(ty.getKey())) continue;
+			if (ty.getQualifiedName().equals("java.lang.Object")) {
+				// Only if there is nothing better
+				object = ty;
+				continue;
+			}
+			boolean common = true;
+			for (ITypeBinding w : witnesses) {
+				if (!w.isSubTypeCompatible(ty)) {
+					common = false;
+					break;
+				}
+			}
+			if (common) return ty;
+			if (ty.getSuperclass() != null)
+				queue.add(ty.getSuperclass());
+			for (ITypeBinding itf : ty.getInterfaces())
+				queue.add(itf);
+		}
+		return object != null ? object : ast.resolveWellKnownType("java.lang.Object");
+	}
+
+	/**
+	 * @param witnesses
+	 * @return the indices of the given witnesses, such that every
+	 * 	witness comes before the witnesses it is a subtype of
+	 */
+	private static List<Integer> mostSpecificFirst(List<ITypeBinding> witnesses) {
+		List<Integer> res = new ArrayList<>(witnesses.size());
+		for (int i = 0; i < witnesses.size(); ++i) {
+			ITypeBinding w = witnesses.get(i);
+			int pos = res.size();
+			for (int j = 0; j < res.size(); ++j) {
+				if (w.isSubTypeCompatible(witnesses.get(res.get(j)))) {
+					pos = j;
+					break;
+				}
+			}
+			res.add(pos, i);
+		}
+		return res;
+	}
+
+	/**
+	 * Records the declaration of the class value and of the dispatcher
+	 * at the end of the given enum declaration.
+	 *
+	 * @param decl		the enum declaration
+	 * @param witnesses	the witnesses of its constants, see {@link #witnessesOf}
+	 * @param base		the base type of the hierarchy
+	 * @param annotation	the qualified name of the hierarchy annotation type,
+	 * 	or {@code null} if none could be found
+	 * @param rew
+	 * @param imports
+	 */
+	static void getDispatcherRewrite(EnumDeclaration decl, List<ITypeBinding> witnesses,
+			ITypeBinding base, /* NULLABLE */ String annotation,
+			ASTRewrite rew, ImportRewrite imports) {
+		final AST ast = decl.getAST();
+		@SuppressWarnings("restriction")
+		final ImportRewriteContext importContext =
+			new org.eclipse.jdt.internal.corext.codemanipulation.
+				ContextSensitiveImportRewriteContext(decl, imports);
+		final String kindName = decl.getName().getIdentifier();
+		ListRewrite members = rew.getListRewrite(decl, EnumDeclaration.BODY_DECLARATIONS_PROPERTY);
+		members.insertLast(makeClassValue(ast, decl, witnesses, imports, importContext), null);
+		members.insertLast(makeDispatcher(ast, kindName, base, annotation, imports, importContext), null);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static FieldDeclaration makeClassValue(AST ast, EnumDeclaration decl,
+			List<ITypeBinding> witnesses, ImportRewrite imports, ImportRewriteContext importContext) {
+		final String kindName = decl.getName().getIdentifier();
+		final List<?> constants = decl.enumConstants();
+
+		// protected Kind computeValue(Class<?> type) { ... }
+		MethodDeclaration compute = ast.newMethodDeclaration();
+		MarkerAnnotation override = ast.newMarkerAnnotation();
+		override.setTypeName(ast.newSimpleName("Override"));
+		compute.modifiers().add(override);
+		compute.modifiers().add(ast.newModifier(ModifierKeyword.PROTECTED_KEYWORD));
+		compute.setReturnType2(ast.newSimpleType(ast.newSimpleName(kindName)));
+		compute.setName(ast.newSimpleName("computeValue"));
+		SingleVariableDeclaration param = ast.newSingleVariableDeclaration();
+		ParameterizedType classType = ast.newParameterizedType(
+			ast.newSimpleType(ast.newSimpleName("Class")));
+		classType.typeArguments().add(ast.newWildcardType());
+		param.setType(classType);
+		param.setName(ast.newSimpleName("type"));
+		compute.parameters().add(param);
+
+		Block body = ast.newBlock();
+		List<Statement> statements = (List<Statement>) body.statements();
+		for (int i : mostSpecificFirst(witnesses)) {
+			// if (A.class.isAssignableFrom(type)) return A;
+			TypeLiteral literal = ast.newTypeLiteral();
+			literal.setType(newType(ast, witnesses.get(i), imports, importContext));
+			MethodInvocation test = ast.newMethodInvocation();
+			test.setExpression(literal);
+			test.setName(ast.newSimpleName("isAssignableFrom"));
+			test.arguments().add(ast.newSimpleName("type"));
+			ReturnStatement ret = ast.newReturnStatement();
+			String constant = ((EnumConstantDeclaration) constants.get(i)).getName().getIdentifier();
+			ret.setExpression(ast.newSimpleName(constant));
+			IfStatement ifs = ast.newIfStatement();
+			ifs.setExpression(test);
+			ifs.setThenStatement(ret);
+			statements.add(ifs);
+		}
+		ReturnStatement retNull = ast.newReturnStatement();
+		retNull.setExpression(ast.newNullLiteral());
+		statements.add(retNull);
+		compute.setBody(body);
+
+		// new ClassValue<Kind>() { ... }
+		AnonymousClassDeclaration anon = ast.newAnonymousClassDeclaration();
+		anon.bodyDeclarations().add(compute);
+		ClassInstanceCreation creation = ast.newClassInstanceCreation();
+		creation.setType(classValueType(ast, kindName));
+		creation.setAnonymousClassDeclaration(anon);
+
+		// private static final ClassValue<Kind> KINDS = ...;
+		VariableDeclarationFragment frag = ast.newVariableDeclarationFragment();
+		frag.setName(ast.newSimpleName(CLASS_VALUE_NAME));
+		frag.setInitializer(creation);
+		FieldDeclaration field = ast.newFieldDeclaration(frag);
+		field.setType(classValueType(ast, kindName));
+		List<IExtendedModifier> modifiers = (List<IExtendedModifier>) field.modifiers();
+		modifiers.add(ast.newModifier(ModifierKeyword.PRIVATE_KEYWORD));
+		modifiers.add(ast.newModifier(ModifierKeyword.STATIC_KEYWORD));
+		modifiers.add(ast.newModifier(ModifierKeyword.FINAL_KEYWORD));
+		return field;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Type classValueType(AST ast, String kindName) {
+		ParameterizedType type = ast.newParameterizedType(
+			ast.newSimpleType(ast.newSimpleName("ClassValue")));
+		type.typeArguments().add(ast.newSimpleType(ast.newSimpleName(kindName)));
+		return type;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static MethodDeclaration makeDispatcher(AST ast, String kindName,
+			ITypeBinding base, /* NULLABLE */ String annotation,
+			ImportRewrite imports, ImportRewriteContext importContext) {
+		final String bid = QuickAssistHierarchySwitch.variableNameOf(base.getName());
+		final String kid = QuickAssistHierarchySwitch.variableNameOf(kindName);
+
+		// @Hierarchy("") public static Kind of(Base base) { ... }
+		MethodDeclaration meth = ast.newMethodDeclaration();
+		SingleMemberAnnotation annot = ast.newSingleMemberAnnotation();
+		annot.setTypeName(ast.newName(annotation == null ? ANNOTATION_NAME :
+			imports.addImport(annotation, importContext)));
+		StringLiteral empty = ast.newStringLiteral();
+		empty.setLiteralValue("");
+		annot.setValue(empty);
+		meth.modifiers().add(annot);
+		meth.modifiers().add(ast.newModifier(ModifierKeyword.PUBLIC_KEYWORD));
+		meth.modifiers().add(ast.newModifier(ModifierKeyword.STATIC_KEYWORD));
+		meth.setReturnType2(ast.newSimpleType(ast.newSimpleName(kindName)));
+		meth.setName(ast.newSimpleName(DISPATCHER_NAME));
+		SingleVariableDeclaration param = ast.newSingleVariableDeclaration();
+		param.setType(newType(ast, base, imports, importContext));
+		param.setName(ast.newSimpleName(bid));
+		meth.parameters().add(param);
+
+		Block body = ast.newBlock();
+		List<Statement> statements = (List<Statement>) body.statements();
+		// Kind kind = KINDS.get(base.getClass());
+		MethodInvocation getClass = ast.newMethodInvocation();
+		getClass.setExpression(ast.newSimpleName(bid));
+		getClass.setName(ast.newSimpleName("getClass"));
+		MethodInvocation get = ast.newMethodInvocation();
+		get.setExpression(ast.newSimpleName(CLASS_VALUE_NAME));
+		get.setName(ast.newSimpleName("get"));
+		get.arguments().add(getClass);
+		VariableDeclarationFragment frag = ast.newVariableDeclarationFragment();
+		frag.setName(ast.newSimpleName(kid));
+		frag.setInitializer(get);
+		VariableDeclarationStatement vdecl = ast.newVariableDeclarationStatement(frag);
+		vdecl.setType(ast.newSimpleType(ast.newSimpleName(kindName)));
+		statements.add(vdecl);
+
+		// if (kind == null) throw new IllegalArgumentException("..." + base.getClass());
+		InfixExpression isNull = ast.newInfixExpression();
+		isNull.setLeftOperand(ast.newSimpleName(kid));
+		isNull.setOperator(InfixExpression.Operator.EQUALS);
+		isNull.setRightOperand(ast.newNullLiteral());
+		StringLiteral msg = ast.newStringLiteral();
+		msg.setLiteralValue("No " + kindName + " for ");
+		InfixExpression concat = ast.newInfixExpression();
+		concat.setLeftOperand(msg);
+		concat.setOperator(InfixExpression.Operator.PLUS);
+		concat.setRightOperand((Expression) ASTNode.copySubtree(ast, getClass));
+		ClassInstanceCreation exn = ast.newClassInstanceCreation();
+		exn.setType(ast.newSimpleType(ast.newSimpleName("IllegalArgumentException")));
+		exn.arguments().add(concat);
+		ThrowStatement thr = ast.newThrowStatement();
+		thr.setExpression(exn);
+		IfStatement ifs = ast.newIfStatement();
+		ifs.setExpression(isNull);
+		ifs.setThenStatement(thr);
+		statements.add(ifs);
+
+		// return kind;
+		ReturnStatement ret = ast.newReturnStatement();
+		ret.setExpression(ast.newSimpleName(kid));
+		statements.add(ret);
+		meth.setBody(body);
+		return meth;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Type newType(AST ast, ITypeBinding ty,
+			ImportRewrite imports, ImportRewriteContext importContext) {
+		Type type = ast.newSimpleType(ast.newName(
+			imports.addImport(ty.getErasure().getQualifiedName(), importContext)));
+		int n = ty.getErasure().getTypeParameters().length;
+		if (n == 0) return type;
+		// Base<?, ...>
+		ParameterizedType ptype = ast.newParameterizedType(type);
+		for (int i = 0; i < n; ++i)
+			ptype.typeArguments().add(ast.newWildcardType());
+		return ptype;
+	}
+
+	/**
+	 * Looks for the hierarchy annotation type visible from the given
+	 * project, preferring the one in the package of the enum.
+	 *
+	 * @param project
+	 * @param pkg	the package of the enum
+	 * @return the qualified name of the annotation type, or {@code null}
+	 */
+	static /* NULLABLE */ String findAnnotationType(IJavaProject project, String pkg) {
+		try {
+			IType local = project.findType(pkg.isEmpty() ? ANNOTATION_NAME : pkg + "." + ANNOTATION_NAME);
+			if (local != null && local.isAnnotation())
+				return local.getFullyQualifiedName('.');
+			final List<String> found = new ArrayList<>(1);
+			new SearchEngine().searchAllTypeNames(null, SearchPattern.R_EXACT_MATCH,
+				ANNOTATION_NAME.toCharArray(),
+				SearchPattern.R_EXACT_MATCH | SearchPattern.R_CASE_SENSITIVE,
+				IJavaSearchConstants.ANNOTATION_TYPE,
+				SearchEngine.createJavaSearchScope(new IJavaElement[] { project }),
+				new TypeNameMatchRequestor() {
+					@Override
+					public void acceptTypeNameMatch(TypeNameMatch match) {
+						found.add(match.getFullyQualifiedName());
+					}
+				},
+				IJavaSearchConstants.WAIT_UNTIL_READY_TO_SEARCH, null);
+			return found.isEmpty() ? null : found.get(0);
+		} catch (JavaModelException e) {
+			Metrics.err("Could not look for the hierarchy annotation: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * A proposal for generating the dispatcher of an enum, whose
+	 * rewrite is built when the proposal is previewed or applied.
+	 */
+	private static final class DispatcherProposal extends CUCorrectionProposal {
+		private final EnumDeclaration decl;
+		private final List<ITypeBinding> witnesses;
+		private final ITypeBinding base;
+
+		@SuppressWarnings("restriction")
+		DispatcherProposal(ICompilationUnit cu, EnumDeclaration decl,
+				List<ITypeBinding> witnesses, ITypeBinding base) {
+			super("Generate hierarchy dispatcher " + DISPATCHER_NAME + "(" + base.getName() + ")",
+				cu, 10,
+				org.eclipse.jdt.internal.ui.JavaPluginImages.get(
+					org.eclipse.jdt.internal.ui.JavaPluginImages.IMG_CORRECTION_CHANGE));
+			this.decl = decl;
+			this.witnesses = witnesses;
+			this.base = base;
+		}
+
+		@Override
+		protected void addEdits(IDocument document, TextEdit editRoot) throws CoreException {
+			super.addEdits(document, editRoot);
+			CompilationUnit root = (CompilationUnit) decl.getRoot();
+			String pkg = root.getPackage() == null ? "" :
+				root.getPackage().getName().getFullyQualifiedName();
+			String annotation = findAnnotationType(getCompilationUnit().getJavaProject(), pkg);
+			ASTRewrite rew = ASTRewrite.create(decl.getAST());
+			ImportRewrite imports = ImportRewrite.create(root, true);
+			getDispatcherRewrite(decl, witnesses, base, annotation, rew, imports);
+			try {
+				editRoot.addChild(rew.rewriteAST());
+			} catch (IllegalArgumentException e) {
+				throw new CoreException(
+					new Status(IStatus.ERROR, Activator.PLUGIN_ID, e.getMessage(), e));
+			}
+			editRoot.addChild(imports.rewriteImports(new NullProgressMonitor()));
+		}
+
+		// See QuickAssistHierarchySwitch.HierarchySwitchProposal
+		@SuppressWarnings("unused")
+		protected boolean useDelegateToCreateTextChange() {
+			return false;
+		}
+	}
+}
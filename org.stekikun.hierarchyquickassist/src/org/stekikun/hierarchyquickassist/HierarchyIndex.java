@@ -0,0 +1,926 @@
+package org.stekikun.hierarchyquickassist;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IResourceChangeEvent;
+import org.eclipse.core.resources.IResourceDelta;
+import org.eclipse.core.resources.ISaveContext;
+import org.eclipse.core.resources.ISaveParticipant;
+import org.eclipse.core.resources.ISavedState;
+import org.eclipse.core.resources.IWorkspaceRoot;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.OperationCanceledException;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.jdt.core.ElementChangedEvent;
+import org.eclipse.jdt.core.Flags;
+import org.eclipse.jdt.core.IAnnotatable;
+import org.eclipse.jdt.core.IAnnotation;
+import org.eclipse.jdt.core.ICompilationUnit;
+import org.eclipse.jdt.core.IElementChangedListener;
+import org.eclipse.jdt.core.IField;
+import org.eclipse.jdt.core.IJavaElement;
+import org.eclipse.jdt.core.IJavaElementDelta;
+import org.eclipse.jdt.core.IJavaProject;
+import org.eclipse.jdt.core.IMember;
+import org.eclipse.jdt.core.IMemberValuePair;
+import org.eclipse.jdt.core.IMethod;
+import org.eclipse.jdt.core.IType;
+import org.eclipse.jdt.core.ITypeParameter;
+import org.eclipse.jdt.core.JavaCore;
+import org.eclipse.jdt.core.JavaModelException;
+import org.eclipse.jdt.core.Signature;
+import org.eclipse.jdt.core.dom.IBinding;
+import org.eclipse.jdt.core.dom.IMethodBinding;
+import org.eclipse.jdt.core.dom.ITypeBinding;
+import org.eclipse.jdt.core.search.IJavaSearchConstants;
+import org.eclipse.jdt.core.search.IJavaSearchScope;
+import org.eclipse.jdt.core.search.SearchEngine;
+import org.eclipse.jdt.core.search.SearchMatch;
+import org.eclipse.jdt.core.search.SearchParticipant;
+import org.eclipse.jdt.core.search.SearchPattern;
+import org.eclipse.jdt.core.search.SearchRequestor;
+import org.stekikun.hierarchyquickassist.QuickAssistHierarchySwitch.DispatcherKind;
+
+/**
+ * An index of all the hierarchies declared in the sources of the
+ * workspace, i.e. of all types and external dispatcher methods which
+ * are annotated with {@code @Hierarchy}.
+ * <p>
+ * The index is initially populated by a background job, which
+ * searches the workspace for references to annotation types named
+ * {@code Hierarchy}. It is then kept up-to-date with Java element
+ * deltas, by re-indexing only the compilation units which changed.
+ * Everything is read from the Java model, no AST is ever built.
+ * <p>
+ * The index is saved along with the workspace, and restored from there
+ * at the next startup instead of searching the workspace again. Units
+ * whose modification stamp changed since, or which the workspace reports
+ * as changed in the meantime, are indexed again in the background.
+ * <p>
+ * Lookups are simple hash-map accesses and never block. Until the
+ * index is {@link #isReady() ready}, lookups return {@code null}.
+ */
+final class HierarchyIndex implements IElementChangedListener {
+
+	private static final String ANNOTATION_NAME = "Hierarchy";
+
+	private static final HierarchyIndex INSTANCE = new HierarchyIndex();
+
+	/** The family of the indexing job */
+	static final Object FAMILY = HierarchyIndex.class;
+
+	/**
+	 * @return the shared index
+	 */
+	static HierarchyIndex getDefault() {
+		return INSTANCE;
+	}
+
+	/**
+	 * What the index knows about a hierarchy
+	 */
+	static final class Entry {
+		/** The key of the base type or dispatcher, see {@link #keyOf(IBinding)} */
+		final String key;
+		/** The handle of the compilation unit declaring the hierarchy */
+		final String cuHandle;
+		/** The handle of the project declaring the hierarchy */
+		final String project;
+		/** The name of the method or field giving the kind, "" if external */
+		final String name;
+		final DispatcherKind dispatcherKind;
+		/** The qualified name of the kind enum, if it could be resolved */
+		final /* NULLABLE */ String enumType;
+		/** The qualified name of the unmatched exception, if any */
+		final /* NULLABLE */ String unmatched;
+
+		Entry(String key, String cuHandle, String name, DispatcherKind dispatcherKind,
+				/* NULLABLE */ String enumType, /* NULLABLE */ String unmatched) {
+			this.key = key;
+			this.cuHandle = cuHandle;
+			this.project = projectOf(cuHandle);
+			this.name = name;
+			this.dispatcherKind = dispatcherKind;
+			this.enumType = enumType;
+			this.unmatched = unmatched;
+		}
+
+		@Override
+		public String toString() {
+			return key + " -> " + enumType + " (" + dispatcherKind + " " + name + ")";
+		}
+	}
+
+	// Lookups go straight to this map, updates are made under the
+	// index's lock, and the map itself is replaced after a full build.
+	// Projects may declare types with the same qualified name, so the
+	// entries with a given key are mapped by the handle of their unit,
+	// in maps which are copied on write.
+	private volatile Map<String, Map<String, Entry>> entries = new ConcurrentHashMap<>();
+	// Keys of the entries declared in each compilation unit
+	private final Map<String, List<String>> keysByUnit = new HashMap<>();
+
+	// Whether a full build has completed since the last #rebuild
+	private volatile boolean ready = false;
+	// Whether the index is ready and no change is waiting to be indexed
+	private volatile boolean upToDate = false;
+	// Whether a full build is running
+	private boolean building = false;
+	// Incremented when the index is rebuilt or disposed, so that a build
+	// which was cancelled in the meantime does not make the index ready
+	private int generation = 0;
+	// Units which changed and are waiting to be indexed
+	private final Set<ICompilationUnit> pending = new LinkedHashSet<>();
+
+	private final Job job = new Job("Indexing hierarchies") {
+		@Override
+		protected IStatus run(IProgressMonitor monitor) {
+			try {
+				if (!ready)
+					build(monitor);
+				else
+					update(monitor);
+				return Status.OK_STATUS;
+			} catch (OperationCanceledException e) {
+				return Status.CANCEL_STATUS;
+			} catch (CoreException e) {
+				return e.getStatus();
+			}
+		}
+
+		@Override
+		public boolean belongsTo(Object family) {
+			return family == FAMILY;
+		}
+	};
+
+	private HierarchyIndex() {
+		job.setSystem(true);
+		job.setPriority(Job.DECORATE);
+	}
+
+	/**
+	 * @return whether the index has been fully built, i.e.
+	 * 	whether lookups can be trusted
+	 */
+	boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * Schedules a full (re)build of the index in the background
+	 */
+	synchronized void rebuild() {
+		++generation;
+		ready = false;
+		upToDate = false;
+		pending.clear();
+		job.cancel();
+		job.schedule();
+	}
+
+	/**
+	 * Stops maintaining the index and forgets everything
+	 */
+	synchronized void dispose() {
+		++generation;
+		ResourcesPlugin.getWorkspace().removeSaveParticipant(Activator.PLUGIN_ID);
+		job.cancel();
+		ready = false;
+		upToDate = false;
+		pending.clear();
+		entries = new ConcurrentHashMap<>();
+		keysByUnit.clear();
+	}
+
+	/**
+	 * @param binding	a type binding or a method binding
+	 * @return whether the index is ready and its lookups are
+	 * 	authoritative for the given binding, i.e. whether
+	 * 	a hierarchy declared by that binding would be indexed
+	 */
+	boolean covers(IBinding binding) {
+		if (!upToDate) return false;
+		ITypeBinding ty;
+		if (binding instanceof ITypeBinding)
+			ty = (ITypeBinding) binding;
+		else if (binding instanceof IMethodBinding)
+			ty = ((IMethodBinding) binding).getDeclaringClass();
+		else
+			return false;
+		// Only sources are indexed, and local types are not
+		return ty.isFromSource() && !ty.getErasure().getQualifiedName().isEmpty();
+	}
+
+	/**
+	 * @param binding	a type binding or a method binding
+	 * @return the hierarchy declared by the given type or dispatcher
+	 * 	method, or {@code null} if there is none or the index is not ready
+	 */
+	/* NULLABLE */ Entry lookup(IBinding binding) {
+		if (!ready) return null;
+		String key = keyOf(binding);
+		if (key == null) return null;
+		Map<String, Entry> byUnit = entries.get(key);
+		if (byUnit == null) return null;
+		String project = projectOf(binding);
+		for (Entry entry : byUnit.values()) {
+			if (entry.project.equals(project)) return entry;
+		}
+		return null;
+	}
+
+	/**
+	 * @param qualifiedName	the qualified name of a source type
+	 * @return whether the given type may be the base of a hierarchy,
+	 * 	i.e. whether a type with that name is indexed in some project,
+	 * 	or the index is not up-to-date
+	 */
+	boolean mayDeclare(String qualifiedName) {
+		if (!upToDate) return true;
+		return entries.containsKey(qualifiedName);
+	}
+
+	/**
+	 * A switch on the kind of a hierarchy mentions the method or field
+	 * giving the kind, or the external dispatcher, so units which mention
+	 * none of these names cannot contain such a switch.
+	 *
+	 * @param project
+	 * @return the names of the methods and fields giving the kinds of the
+	 * 	hierarchies declared in the given project or in the projects it
+	 * 	requires, or {@code null} if the index is not up-to-date
+	 */
+	/* NULLABLE */ Set<String> dispatchNamesFor(IJavaProject project) {
+		if (!upToDate) return null;
+		Set<String> projects = new HashSet<>();
+		try {
+			addRequiredProjects(project, projects);
+		} catch (JavaModelException e) {
+			Metrics.err("Could not list projects required by " + project.getElementName()
+				+ ": " + e.getMessage());
+			return null;
+		}
+		Set<String> names = new HashSet<>();
+		for (Entry entry : entries()) {
+			IJavaElement declaring = JavaCore.create(entry.project);
+			if (declaring == null || !projects.contains(declaring.getElementName()))
+				continue;
+			String name = entry.dispatcherKind == DispatcherKind.EXTERNAL ?
+				entry.key.substring(entry.key.indexOf('#') + 1, entry.key.indexOf('(')) : entry.name;
+			if (!name.isEmpty()) names.add(name);
+		}
+		return names;
+	}
+
+	private static void addRequiredProjects(IJavaProject project, Set<String> names)
+			throws JavaModelException {
+		if (!names.add(project.getElementName())) return;
+		IWorkspaceRoot root = ResourcesPlugin.getWorkspace().getRoot();
+		for (String name : project.getRequiredProjectNames()) {
+			IJavaProject required = JavaCore.create(root.getProject(name));
+			if (required.exists())
+				addRequiredProjects(required, names);
+			else
+				names.add(name);
+		}
+	}
+
+	/**
+	 * @return the hierarchies in the index, which are none until it is ready
+	 */
+	Collection<Entry> entries() {
+		List<Entry> res = new ArrayList<>(entries.size());
+		for (Map<String, Entry> byUnit : entries.values())
+			res.addAll(byUnit.values());
+		return res;
+	}
+
+	/**
+	 * @param entry	an entry of the index
+	 * @return the type or dispatcher method declaring the hierarchy,
+	 * 	or {@code null} if it is gone, or its project is closed
+	 * @throws JavaModelException
+	 */
+	static /* NULLABLE */ IMember memberOf(Entry entry) throws JavaModelException {
+		IJavaElement cu = JavaCore.create(entry.cuHandle);
+		if (!(cu instanceof ICompilationUnit) || !cu.exists()) return null;
+		for (IType ty : ((ICompilationUnit) cu).getAllTypes()) {
+			if (ty.getFullyQualifiedName('.').equals(entry.key)) return ty;
+			if (entry.dispatcherKind != DispatcherKind.EXTERNAL) continue;
+			for (IMethod meth : ty.getMethods()) {
+				Entry dispatcher = readDispatcher(meth, entry.cuHandle);
+				if (dispatcher != null && dispatcher.key.equals(entry.key)) return meth;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The key of a base type is its qualified name. The key of a dispatcher
+	 * method is made of its declaring type, its name and the qualified name
+	 * of the erasure of its only parameter's type, e.g. {@code a.b.C#of(a.b.Base)},
+	 * where a type variable is erased to its leftmost bound.
+	 *
+	 * @param binding
+	 * @return the index key for the given type or method binding
+	 */
+	static /* NULLABLE */ String keyOf(IBinding binding) {
+		if (binding instanceof ITypeBinding) {
+			return ((ITypeBinding) binding).getErasure().getQualifiedName();
+		}
+		if (binding instanceof IMethodBinding) {
+			IMethodBinding mb = (IMethodBinding) binding;
+			ITypeBinding[] params = mb.getParameterTypes();
+			if (params.length != 1) return null;
+			return dispatcherKey(
+				mb.getDeclaringClass().getErasure().getQualifiedName(),
+				mb.getName(), params[0].getErasure().getQualifiedName());
+		}
+		return null;
+	}
+
+	private static String dispatcherKey(String declaringType, String name, String paramType) {
+		return declaringType + "#" + name + "(" + paramType + ")";
+	}
+
+	/**
+	 * @param binding	a type binding or a method binding
+	 * @return the handle of the project declaring the given type or
+	 * 	method, or {@code null} if it has no Java element
+	 */
+	private static /* NULLABLE */ String projectOf(IBinding binding) {
+		ITypeBinding ty = binding instanceof IMethodBinding ?
+			((IMethodBinding) binding).getDeclaringClass() : (ITypeBinding) binding;
+		IJavaElement elt = ty.getErasure().getJavaElement();
+		if (elt == null || elt.getJavaProject() == null) return null;
+		return elt.getJavaProject().getHandleIdentifier();
+	}
+
+	private static String projectOf(String cuHandle) {
+		IJavaElement cu = JavaCore.create(cuHandle);
+		if (cu == null || cu.getJavaProject() == null) return "";
+		return cu.getJavaProject().getHandleIdentifier();
+	}
+
+	private static void put(Map<String, Map<String, Entry>> entries, Entry entry) {
+		entries.compute(entry.key, (key, byUnit) -> {
+			Map<String, Entry> copy = byUnit == null ? new HashMap<>(2) : new HashMap<>(byUnit);
+			copy.put(entry.cuHandle, entry);
+			return copy;
+		});
+	}
+
+	private static void remove(Map<String, Map<String, Entry>> entries, String key, String cuHandle) {
+		entries.computeIfPresent(key, (k, byUnit) -> {
+			if (!byUnit.containsKey(cuHandle)) return byUnit;
+			if (byUnit.size() == 1) return null;
+			Map<String, Entry> copy = new HashMap<>(byUnit);
+			copy.remove(cuHandle);
+			return copy;
+		});
+	}
+
+	private static /* NULLABLE */ Entry get(Map<String, Map<String, Entry>> entries,
+			String key, String cuHandle) {
+		Map<String, Entry> byUnit = entries.get(key);
+		return byUnit == null ? null : byUnit.get(cuHandle);
+	}
+
+	// Persistence
+
+	private static final int MAGIC = 0x48514149;	// "HQAI"
+	private static final int VERSION = 1;
+
+	/**
+	 * Restores the index saved with the workspace in the given file, and
+	 * catches up with the changes made to the workspace since, or schedules
+	 * a full build if it cannot.
+	 *
+	 * @param file
+	 */
+	void restore(final File file) {
+		ISavedState state = null;
+		try {
+			state = ResourcesPlugin.getWorkspace().addSaveParticipant(Activator.PLUGIN_ID,
+				new ISaveParticipant() {
+					@Override
+					public void saving(ISaveContext context) {
+						if (context.getKind() == ISaveContext.PROJECT_SAVE) return;
+						context.needDelta();
+						save(file);
+					}
+					@Override
+					public void prepareToSave(ISaveContext context) { }
+					@Override
+					public void doneSaving(ISaveContext context) { }
+					@Override
+					public void rollback(ISaveContext context) { }
+				});
+		} catch (CoreException e) {
+			Metrics.err("Could not register hierarchy index for saving: " + e.getMessage());
+		}
+		// Without the changes since the index was saved, it cannot be trusted
+		if (state == null || !load(file)) {
+			rebuild();
+			return;
+		}
+		state.processResourceChangeEvents(event -> changedSince(event));
+		synchronized (this) {
+			if (!ready) return;
+			upToDate = pending.isEmpty();
+			if (!upToDate) job.schedule();
+		}
+	}
+
+	/**
+	 * Reads the entries saved in the given file, keeping those whose unit
+	 * has the same modification stamp as when they were saved, and marking
+	 * the others as pending. The index is ready if this succeeds.
+	 *
+	 * @param file
+	 * @return whether the index could be read from the file
+	 */
+	private synchronized boolean load(File file) {
+		if (!file.exists()) return false;
+		try {
+			ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+			if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+				Metrics.log("Ignoring hierarchy index in another format");
+				return false;
+			}
+			Map<String, Map<String, Entry>> newEntries = new ConcurrentHashMap<>();
+			Map<String, List<String>> newKeysByUnit = new HashMap<>();
+			Set<ICompilationUnit> stale = new LinkedHashSet<>();
+			int count = 0;
+			for (int units = in.getInt(); units > 0; --units) {
+				String cuHandle = HierarchyDescriptor.readString(in);
+				long stamp = in.getLong();
+				List<Entry> unitEntries = new ArrayList<>();
+				for (int n = in.getInt(); n > 0; --n) {
+					unitEntries.add(new Entry(HierarchyDescriptor.readString(in), cuHandle,
+						HierarchyDescriptor.readString(in), DispatcherKind.values()[in.get()],
+						HierarchyDescriptor.readString(in), HierarchyDescriptor.readString(in)));
+				}
+				IJavaElement cu = JavaCore.create(cuHandle);
+				IResource res = cu == null ? null : cu.getResource();
+				if (res == null || res.getModificationStamp() != stamp) {
+					// Out-of-date, the entries are dropped until it is indexed again
+					if (cu instanceof ICompilationUnit) stale.add((ICompilationUnit) cu);
+					continue;
+				}
+				List<String> keys = new ArrayList<>(unitEntries.size());
+				for (Entry entry : unitEntries) {
+					put(newEntries, entry);
+					keys.add(entry.key);
+				}
+				newKeysByUnit.put(cuHandle, keys);
+				count += keys.size();
+			}
+			entries = newEntries;
+			keysByUnit.clear();
+			keysByUnit.putAll(newKeysByUnit);
+			pending.clear();
+			pending.addAll(stale);
+			ready = true;
+			if (Metrics.getDefault().isLogging())
+				Metrics.log("Restored " + count + " hierarchies, "
+					+ stale.size() + " units out-of-date");
+			return true;
+		} catch (IOException | RuntimeException e) {
+			Metrics.err("Could not restore hierarchy index: " + e);
+			return false;
+		}
+	}
+
+	private void changedSince(IResourceChangeEvent event) {
+		IResourceDelta delta = event.getDelta();
+		if (delta == null) return;
+		final boolean[] classpathChanged = { false };
+		try {
+			delta.accept(d -> {
+				IResource res = d.getResource();
+				if (res.getType() != IResource.FILE) return true;
+				if (res.getName().equals(".classpath")) {
+					classpathChanged[0] = true;
+				} else if ("java".equals(res.getFileExtension())) {
+					IJavaElement cu = JavaCore.create((IFile) res);
+					if (cu instanceof ICompilationUnit) {
+						synchronized (this) {
+							pending.add((ICompilationUnit) cu);
+						}
+					}
+				}
+				return false;
+			});
+		} catch (CoreException e) {
+			classpathChanged[0] = true;
+		}
+		// Source folders may have come or gone, start over
+		if (classpathChanged[0]) rebuild();
+	}
+
+	/**
+	 * Saves the entries of the index to the given file, with the modification
+	 * stamp of their unit. Units which are waiting to be indexed again, or
+	 * whose working copy has unsaved changes, are saved with no stamp, so
+	 * that they are indexed again when the index is restored.
+	 *
+	 * @param file
+	 */
+	private synchronized void save(File file) {
+		if (!ready) {
+			// Nothing worth restoring
+			file.delete();
+			return;
+		}
+		Set<String> stale = new HashSet<>();
+		for (ICompilationUnit cu : pending)
+			stale.add(handleOf(cu));
+		// Pending units may have no entries yet, but must be saved all the same
+		Set<String> units = new LinkedHashSet<>(keysByUnit.keySet());
+		units.addAll(stale);
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(units.size());
+			for (String cuHandle : units) {
+				HierarchyDescriptor.writeString(out, cuHandle);
+				IJavaElement cu = JavaCore.create(cuHandle);
+				IResource res = cu == null ? null : cu.getResource();
+				boolean valid = res != null && !stale.contains(cuHandle)
+					&& cu instanceof ICompilationUnit && !((ICompilationUnit) cu).hasUnsavedChanges();
+				out.writeLong(valid ? res.getModificationStamp() : IResource.NULL_STAMP);
+				List<Entry> unitEntries = new ArrayList<>();
+				List<String> keys = keysByUnit.get(cuHandle);
+				for (String key : keys == null ? Collections.<String>emptyList() : keys) {
+					Entry entry = get(entries, key, cuHandle);
+					if (entry != null) unitEntries.add(entry);
+				}
+				out.writeInt(unitEntries.size());
+				for (Entry entry : unitEntries) {
+					HierarchyDescriptor.writeString(out, entry.key);
+					HierarchyDescriptor.writeString(out, entry.name);
+					out.writeByte(entry.dispatcherKind.ordinal());
+					HierarchyDescriptor.writeString(out, entry.enumType);
+					HierarchyDescriptor.writeString(out, entry.unmatched);
+				}
+			}
+			if (Metrics.getDefault().isLogging())
+				Metrics.log("Saved hierarchy index of " + units.size() + " units");
+		} catch (IOException | JavaModelException e) {
+			Metrics.err("Could not save hierarchy index: " + e);
+		}
+	}
+
+	// Full build
+
+	private void build(IProgressMonitor monitor) throws CoreException {
+		final int buildGeneration;
+		synchronized (this) {
+			building = true;
+			buildGeneration = generation;
+		}
+		try {
+			// Find all compilation units referencing a Hierarchy annotation
+			final Set<ICompilationUnit> units = new LinkedHashSet<>();
+			SearchPattern pattern = SearchPattern.createPattern(ANNOTATION_NAME,
+				IJavaSearchConstants.ANNOTATION_TYPE,
+				IJavaSearchConstants.ANNOTATION_TYPE_REFERENCE,
+				SearchPattern.R_EXACT_MATCH | SearchPattern.R_CASE_SENSITIVE);
+			IJavaSearchScope scope = SearchEngine.createJavaSearchScope(
+				JavaCore.create(ResourcesPlugin.getWorkspace().getRoot()).getJavaProjects(),
+				IJavaSearchScope.SOURCES);
+			SearchRequestor requestor = new SearchRequestor() {
+				@Override
+				public void acceptSearchMatch(SearchMatch match) {
+					if (!(match.getElement() instanceof IJavaElement)) return;
+					IJavaElement cu = ((IJavaElement) match.getElement())
+						.getAncestor(IJavaElement.COMPILATION_UNIT);
+					if (cu != null) units.add((ICompilationUnit) cu);
+				}
+			};
+			new SearchEngine().search(pattern,
+				new SearchParticipant[] { SearchEngine.getDefaultSearchParticipant() },
+				scope, requestor, monitor);
+	
+			// Index them all, off to the side
+			Map<String, Map<String, Entry>> newEntries = new ConcurrentHashMap<>();
+			Map<String, List<String>> newKeysByUnit = new HashMap<>();
+			for (ICompilationUnit cu : units) {
+				if (monitor.isCanceled()) throw new OperationCanceledException();
+				index(cu, newEntries, newKeysByUnit);
+			}
+	
+			// Swap, and catch up with the changes made in the meantime
+			synchronized (this) {
+				// Rebuilt or disposed since, or cancelled after the last check
+				if (buildGeneration != generation || monitor.isCanceled())
+					throw new OperationCanceledException();
+				entries = newEntries;
+				keysByUnit.clear();
+				keysByUnit.putAll(newKeysByUnit);
+				for (ICompilationUnit cu : pending)
+					reindex(cu);
+				pending.clear();
+				ready = true;
+				upToDate = true;
+			}
+			if (Metrics.getDefault().isLogging())
+				Metrics.log("Indexed hierarchies of " + newKeysByUnit.size() + " units");
+		} finally {
+			synchronized (this) {
+				building = false;
+			}
+		}
+	}
+
+	private void update(IProgressMonitor monitor) {
+		while (true) {
+			synchronized (this) {
+				if (pending.isEmpty()) {
+					upToDate = ready;
+					return;
+				}
+				if (monitor.isCanceled()) throw new OperationCanceledException();
+				ICompilationUnit cu = pending.iterator().next();
+				pending.remove(cu);
+				reindex(cu);
+			}
+		}
+	}
+
+	// Incremental maintenance
+
+	@Override
+	public void elementChanged(ElementChangedEvent event) {
+		visit(event.getDelta());
+	}
+
+	private void visit(IJavaElementDelta delta) {
+		IJavaElement elt = delta.getElement();
+		switch (elt.getElementType()) {
+		case IJavaElement.COMPILATION_UNIT:
+			changed((ICompilationUnit) elt);
+			return;
+		case IJavaElement.JAVA_MODEL:
+		case IJavaElement.JAVA_PROJECT:
+		case IJavaElement.PACKAGE_FRAGMENT_ROOT:
+		case IJavaElement.PACKAGE_FRAGMENT:
+			// Whole containers coming and going, just start over
+			if (elt.getElementType() != IJavaElement.JAVA_MODEL &&
+				(delta.getKind() != IJavaElementDelta.CHANGED ||
+				 (delta.getFlags() & (IJavaElementDelta.F_OPENED |
+									  IJavaElementDelta.F_CLOSED |
+									  IJavaElementDelta.F_CLASSPATH_CHANGED |
+									  IJavaElementDelta.F_ADDED_TO_CLASSPATH |
+									  IJavaElementDelta.F_REMOVED_FROM_CLASSPATH)) != 0)) {
+				synchronized (this) {
+					if (ready || building) rebuild();
+				}
+				return;
+			}
+			for (IJavaElementDelta child : delta.getAffectedChildren())
+				visit(child);
+			return;
+		default:
+			// Deltas below compilation units are reported on
+			// their compilation unit anyway
+			return;
+		}
+	}
+
+	private synchronized void changed(ICompilationUnit cu) {
+		if (building) {
+			// Catch up when the build is done
+			pending.add(cu);
+			return;
+		}
+		if (!ready) return;
+		if (cu.isWorkingCopy()) {
+			// Reconciled while being edited, the structure of the
+			// unit is known already so this is cheap
+			reindex(cu);
+			return;
+		}
+		// Otherwise it may be one of many units touched at once,
+		// so leave the work to the background job
+		pending.add(cu);
+		upToDate = false;
+		job.schedule();
+	}
+
+	private synchronized void reindex(ICompilationUnit cu) {
+		final String cuHandle = handleOf(cu);
+		List<String> oldKeys = keysByUnit.remove(cuHandle);
+		if (oldKeys != null) {
+			for (String key : oldKeys)
+				remove(entries, key, cuHandle);
+		}
+		index(cu, entries, keysByUnit);
+	}
+
+	// Reading hierarchies from the Java model
+
+	private static String handleOf(ICompilationUnit cu) {
+		// Working copies and their primary unit share the same entries
+		return cu.getPrimary().getHandleIdentifier();
+	}
+
+	private static void index(ICompilationUnit cu,
+			Map<String, Map<String, Entry>> entries, Map<String, List<String>> keysByUnit) {
+		if (!cu.exists()) return;
+		final String cuHandle = handleOf(cu);
+		List<String> keys = new ArrayList<>(1);
+		try {
+			for (IType ty : cu.getAllTypes()) {
+				Entry entry = readType(ty, cuHandle);
+				if (entry != null) {
+					put(entries, entry);
+					keys.add(entry.key);
+				}
+				for (IMethod meth : ty.getMethods()) {
+					entry = readDispatcher(meth, cuHandle);
+					if (entry != null) {
+						put(entries, entry);
+						keys.add(entry.key);
+					}
+				}
+			}
+		} catch (JavaModelException e) {
+			Metrics.err("Could not index " + cu.getElementName() + ": " + e.getMessage());
+		}
+		if (!keys.isEmpty())
+			keysByUnit.put(cuHandle, keys);
+	}
+
+	private static /* NULLABLE */ IAnnotation findAnnotation(IAnnotatable annotatable)
+			throws JavaModelException {
+		for (IAnnotation annot : annotatable.getAnnotations()) {
+			String name = annot.getElementName();
+			// The name is as written in the source, possibly qualified
+			if (name.substring(name.lastIndexOf('.') + 1).equals(ANNOTATION_NAME))
+				return annot;
+		}
+		return null;
+	}
+
+	private static /* NULLABLE */ Entry readType(IType ty, String cuHandle)
+			throws JavaModelException {
+		IAnnotation annot = findAnnotation(ty);
+		if (annot == null) return null;
+		String name = null;
+		DispatcherKind dispatcherKind = DispatcherKind.METHOD;
+		for (IMemberValuePair pair : annot.getMemberValuePairs()) {
+			if (pair.getMemberName().equals("value") &&
+				pair.getValueKind() == IMemberValuePair.K_STRING)
+				name = (String) pair.getValue();
+			else if (pair.getMemberName().equals("field") &&
+				pair.getValueKind() == IMemberValuePair.K_BOOLEAN &&
+				((Boolean) pair.getValue()))
+				dispatcherKind = DispatcherKind.FIELD;
+		}
+		// Even if the annotation is not valid, the type is still recorded,
+		// so that lookups tell apart annotated types from the others
+		if (name == null) name = "";
+
+		// Find the type of the kind, declared by the method or field
+		String kindSig = null;
+		if (dispatcherKind == DispatcherKind.METHOD) {
+			IMethod meth = ty.getMethod(name, new String[0]);
+			if (meth.exists()) kindSig = meth.getReturnType();
+		} else {
+			IField field = ty.getField(name);
+			if (field.exists()) kindSig = field.getTypeSignature();
+		}
+		String enumType = kindSig == null ? null : resolveEnum(ty, kindSig);
+		return new Entry(ty.getFullyQualifiedName('.'), cuHandle, name,
+			dispatcherKind, enumType, readUnmatched(ty, annot));
+	}
+
+	private static /* NULLABLE */ Entry readDispatcher(IMethod meth, String cuHandle)
+			throws JavaModelException {
+		IAnnotation annot = findAnnotation(meth);
+		if (annot == null) return null;
+		if (meth.getNumberOfParameters() != 1) return null;
+		IType declaring = meth.getDeclaringType();
+		String enumType = resolveEnum(declaring, meth.getReturnType());
+		String paramType = erasureOf(meth, meth.getParameterTypes()[0]);
+		String key = dispatcherKey(
+			declaring.getFullyQualifiedName('.'), meth.getElementName(), paramType);
+		return new Entry(key, cuHandle, "", DispatcherKind.EXTERNAL,
+			enumType, readUnmatched(declaring, annot));
+	}
+
+	/**
+	 * @param meth
+	 * @param sig	the signature of a type in the declaration of {@code meth}
+	 * @return the qualified name of the erasure of the given type, as
+	 * 	{@link ITypeBinding#getErasure()} gives it, or its simple name if
+	 * 	it cannot be resolved
+	 * @throws JavaModelException
+	 */
+	private static String erasureOf(IMethod meth, String sig) throws JavaModelException {
+		IType declaring = meth.getDeclaringType();
+		// A type variable is erased to its leftmost bound, or to Object,
+		// and bounds may be cyclic while the code is being edited
+		for (int depth = 0; depth < 8 &&
+				Signature.getTypeSignatureKind(sig) == Signature.TYPE_VARIABLE_SIGNATURE; ++depth) {
+			ITypeParameter param = typeParameterOf(meth, Signature.toString(sig));
+			if (param == null) break;
+			String[] bounds = param.getBoundsSignatures();
+			if (bounds.length == 0) return "java.lang.Object";
+			sig = bounds[0];
+			declaring = param.getDeclaringMember() instanceof IType ?
+				(IType) param.getDeclaringMember() : param.getDeclaringMember().getDeclaringType();
+		}
+		String typeName = resolveSignature(declaring, sig);
+		return typeName != null ? typeName :
+			Signature.getSignatureSimpleName(Signature.getTypeErasure(sig));
+	}
+
+	private static /* NULLABLE */ ITypeParameter typeParameterOf(IMethod meth, String name)
+			throws JavaModelException {
+		ITypeParameter param = meth.getTypeParameter(name);
+		if (param.exists()) return param;
+		for (IType ty = meth.getDeclaringType(); ty != null; ty = ty.getDeclaringType()) {
+			param = ty.getTypeParameter(name);
+			if (param.exists()) return param;
+			// Type variables of enclosing types are not visible in static types
+			if (Flags.isStatic(ty.getFlags())) break;
+		}
+		return null;
+	}
+
+	private static /* NULLABLE */ String resolveEnum(IType context, String sig)
+			throws JavaModelException {
+		String typeName = resolveSignature(context, sig);
+		if (typeName == null) return null;
+		IType enumType = context.getJavaProject().findType(typeName);
+		if (enumType == null || !enumType.isEnum()) return null;
+		return typeName;
+	}
+
+	private static /* NULLABLE */ String resolveSignature(IType context, String sig)
+			throws JavaModelException {
+		String erasure = Signature.getTypeErasure(sig);
+		if (Signature.getTypeSignatureKind(erasure) != Signature.CLASS_TYPE_SIGNATURE)
+			return null;
+		String typeName = Signature.toString(erasure);
+		if (erasure.charAt(0) == Signature.C_RESOLVED)
+			return typeName.replace('$', '.');
+		return HierarchyKind.resolveTypeName(context, typeName);
+	}
+
+	private static /* NULLABLE */ String readUnmatched(IType context, IAnnotation annot)
+			throws JavaModelException {
+		for (IMemberValuePair pair : annot.getMemberValuePairs()) {
+			if (pair.getMemberName().equals("unmatched"))
+				return readClass(context, pair);
+		}
+		// Not specified, look for a default value in the annotation type
+		String annotName = annot.getElementName();
+		String annotType = HierarchyKind.resolveTypeName(context, annotName);
+		if (annotType == null) return null;
+		IType annotTypeModel = context.getJavaProject().findType(annotType);
+		if (annotTypeModel == null) return null;
+		IMethod member = annotTypeModel.getMethod("unmatched", new String[0]);
+		if (!member.exists()) return null;
+		IMemberValuePair dflt = member.getDefaultValue();
+		if (dflt == null) return null;
+		return readClass(annotTypeModel, dflt);
+	}
+
+	private static /* NULLABLE */ String readClass(IType context, IMemberValuePair pair)
+			throws JavaModelException {
+		if (pair.getValueKind() != IMemberValuePair.K_CLASS) return null;
+		Object value = pair.getValue();
+		if (!(value instanceof String)) return null;
+		// Class values are resolved already in binary types
+		if (context.isBinary()) return (String) value;
+		return HierarchyKind.resolveTypeName(context, (String) value);
+	}
+}
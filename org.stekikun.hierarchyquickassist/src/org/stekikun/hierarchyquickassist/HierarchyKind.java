@@ -0,0 +1,377 @@
+package org.stekikun.hierarchyquickassist;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jdt.core.IClassFile;
+import org.eclipse.jdt.core.ICompilationUnit;
+import org.eclipse.jdt.core.IField;
+import org.eclipse.jdt.core.IImportDeclaration;
+import org.eclipse.jdt.core.ISourceRange;
+import org.eclipse.jdt.core.IType;
+import org.eclipse.jdt.core.JavaModelException;
+import org.eclipse.jdt.core.ToolFactory;
+import org.eclipse.jdt.core.compiler.IScanner;
+import org.eclipse.jdt.core.compiler.ITerminalSymbols;
+import org.eclipse.jdt.core.compiler.InvalidInputException;
+import org.eclipse.jdt.core.dom.EnumConstantDeclaration;
+import org.eclipse.jdt.core.dom.EnumDeclaration;
+import org.eclipse.jdt.core.dom.Expression;
+import org.eclipse.jdt.core.dom.ITypeBinding;
+import org.eclipse.jdt.core.dom.TypeLiteral;
+import org.eclipse.jdt.core.util.ByteCodeVisitorAdapter;
+import org.eclipse.jdt.core.util.ClassFormatException;
+import org.eclipse.jdt.core.util.IClassFileReader;
+import org.eclipse.jdt.core.util.IConstantPoolConstant;
+import org.eclipse.jdt.core.util.IConstantPoolEntry;
+import org.eclipse.jdt.core.util.IFieldInfo;
+import org.eclipse.jdt.core.util.IMethodInfo;
+import org.eclipse.jdt.core.util.IModifierConstants;
+
+/**
+ * Describes one constant of the enum type used as the kind
+ * of a hierarchy, i.e. the name of the constant and the
+ * class which is used as a witness in its declaration:
+ * <pre>
+ * A(A.class)
+ * </pre>
+ * <p>
+ * Instances only hold strings, and in particular no AST
+ * node nor binding, so they can be kept around after the
+ * AST they were extracted from is gone.
+ */
+final class HierarchyKind {
+	/** The name of the enum constant */
+	final String name;
+	/** The fully qualified name of the witness class */
+	final String witness;
+
+	HierarchyKind(String name, String witness) {
+		this.name = name;
+		this.witness = witness;
+	}
+
+	/**
+	 * @return the simple name of the witness class
+	 */
+	String witnessSimpleName() {
+		return witness.substring(witness.lastIndexOf('.') + 1);
+	}
+
+	@Override
+	public String toString() {
+		return name + "(" + witness + ".class)";
+	}
+
+	/**
+	 * Extracts the kinds described by the constants of the
+	 * given enum declaration. The declaration must come from
+	 * an AST with resolved bindings.
+	 *
+	 * @param enumDecl
+	 * @return the list of kinds, in the order of declaration,
+	 * 	or {@code null} if some constant has no witness class
+	 */
+	static /* NULLABLE */ List<HierarchyKind> of(EnumDeclaration enumDecl) {
+		@SuppressWarnings("unchecked")
+		List<EnumConstantDeclaration> kindDecls =
+			(List<EnumConstantDeclaration>) enumDecl.enumConstants();
+		List<HierarchyKind> res = new ArrayList<>(kindDecls.size());
+		for (EnumConstantDeclaration kindDecl : kindDecls) {
+			String name = kindDecl.getName().getIdentifier();
+			// The constant is initialized with a type literal T.class,
+			// let's fetch T!
+			if (kindDecl.arguments().isEmpty()) {
+				Metrics.err("No witness class for kind " + name);
+				return null;
+			}
+			Expression arg = (Expression) kindDecl.arguments().get(0);
+			if (!(arg instanceof TypeLiteral)) {
+				Metrics.err("Witness for kind " + name + " is not a class literal");
+				return null;
+			}
+			ITypeBinding ctypeBinding = ((TypeLiteral) arg).getType().resolveBinding();
+			if (ctypeBinding == null) {
+				Metrics.err("Could not resolve witness class for kind " + name);
+				return null;
+			}
+			String witness = ctypeBinding.getTypeDeclaration().getQualifiedName();
+			// Local and anonymous classes have no qualified name
+			if (witness.isEmpty()) {
+				Metrics.err("Witness class for kind " + name + " has no qualified name");
+				return null;
+			}
+			res.add(new HierarchyKind(name, witness));
+		}
+		return Collections.unmodifiableList(res);
+	}
+
+	/**
+	 * Extracts the kinds described by the constants of the given
+	 * enum type from the Java model, without parsing the compilation
+	 * unit nor resolving any binding. The witness class of each
+	 * constant is read from the source of its declaration, and
+	 * only its name is resolved, in the context of the enum type.
+	 * <p>
+	 * This is much cheaper than {@link #of(EnumDeclaration)} on an
+	 * external compilation unit, but it is not as thorough: it gives
+	 * up on witnesses which are not plain class literals, or whose
+	 * name cannot be resolved to exactly one type.
+	 *
+	 * @param enumType
+	 * @return the list of kinds, in the order of declaration,
+	 * 	or {@code null} if some witness class could not be found
+	 * @throws JavaModelException
+	 */
+	static /* NULLABLE */ List<HierarchyKind> of(IType enumType) throws JavaModelException {
+		IField[] fields = enumType.getFields();
+		List<HierarchyKind> res = new ArrayList<>(fields.length);
+		// Witness names are often repeated in big enums, resolve each only once
+		Map<String, String> resolved = new HashMap<>();
+		IScanner scanner = ToolFactory.createScanner(false, false, false, false);
+		for (IField field : fields) {
+			if (!field.isEnumConstant()) continue;
+			String name = field.getElementName();
+			String witnessName = witnessNameOf(field, scanner);
+			if (witnessName == null) {
+				if (Metrics.getDefault().isLogging())
+					Metrics.log("No class literal found for kind " + name);
+				return null;
+			}
+			String witness = resolved.get(witnessName);
+			if (witness == null) {
+				witness = resolveTypeName(enumType, witnessName);
+				if (witness == null) {
+					if (Metrics.getDefault().isLogging())
+						Metrics.log("Could not resolve witness " + witnessName);
+					return null;
+				}
+				resolved.put(witnessName, witness);
+			}
+			res.add(new HierarchyKind(name, witness));
+		}
+		return Collections.unmodifiableList(res);
+	}
+	
+	/**
+	 * Extracts the kinds described by the constants of a binary enum,
+	 * e.g. an enum from a library without attached source, by decoding
+	 * its class file. The witness class of each constant is the first
+	 * class constant loaded by {@code ldc} in the static initializer
+	 * between the creation of the constant and its store in its field,
+	 * as compiled from:
+	 * <pre>
+	 * new Kind; dup; ldc "A"; iconst_0; ldc A.class; invokespecial; putstatic A
+	 * </pre>
+	 * where constants with a body create a {@code Kind$1} instead, and
+	 * other classes created in the arguments start no new constant.
+	 * No source and no decompilation is needed, but names of member
+	 * types are only recovered by convention, with {@code $} as the
+	 * separator.
+	 *
+	 * @param classFile	the class file of the enum
+	 * @return the list of kinds, in the order of declaration,
+	 * 	or {@code null} if some constant has no witness class
+	 * @throws JavaModelException
+	 */
+	static /* NULLABLE */ List<HierarchyKind> of(IClassFile classFile) throws JavaModelException {
+		IClassFileReader reader = ToolFactory.createDefaultClassFileReader(
+			new ByteArrayInputStream(classFile.getBytes()),
+			IClassFileReader.FIELD_INFOS | IClassFileReader.METHOD_INFOS | IClassFileReader.METHOD_BODIES);
+		if (reader == null) {
+			Metrics.err("Could not read class file " + classFile.getElementName());
+			return null;
+		}
+		final String enumName = qualifiedNameOf(reader.getClassName());
+		final String enumInternalName = new String(reader.getClassName());
+		
+		// The witness classes by constant name, as initialized in <clinit>
+		final Map<String, String> witnesses = new HashMap<>();
+		for (IMethodInfo method : reader.getMethodInfos()) {
+			if (!method.isClinit() || method.getCodeAttribute() == null) continue;
+			try {
+				method.getCodeAttribute().traverse(new ByteCodeVisitorAdapter() {
+					// The first class constant since the creation of the last constant
+					private String witness = null;
+					private boolean creating = false;
+					
+					@Override
+					public void _new(int pc, int index, IConstantPoolEntry constantClass) {
+						// Objects created in the arguments of the constructor
+						// are not constants, they must not hide the witness
+						if (!isConstantClass(new String(constantClass.getClassInfoName()), enumInternalName))
+							return;
+						witness = null;
+						creating = true;
+					}
+					
+					@Override
+					public void _ldc(int pc, int index, IConstantPoolEntry constantPoolEntry) {
+						load(constantPoolEntry);
+					}
+					
+					@Override
+					public void _ldc_w(int pc, int index, IConstantPoolEntry constantPoolEntry) {
+						load(constantPoolEntry);
+					}
+					
+					private void load(IConstantPoolEntry entry) {
+						if (!creating || witness != null) return;
+						if (entry.getKind() != IConstantPoolConstant.CONSTANT_Class) return;
+						char[] name = entry.getClassInfoName();
+						// Arrays are no witnesses
+						if (name.length == 0 || name[0] == '[') return;
+						witness = qualifiedNameOf(name);
+					}
+					
+					@Override
+					public void _putstatic(int pc, int index, IConstantPoolEntry constantFieldref) {
+						if (creating && witness != null &&
+							qualifiedNameOf(constantFieldref.getClassName()).equals(enumName))
+							witnesses.putIfAbsent(new String(constantFieldref.getFieldName()), witness);
+						witness = null;
+						creating = false;
+					}
+				});
+			} catch (ClassFormatException e) {
+				Metrics.err("Could not decode initializer of " + enumName + ": " + e.getMessage());
+				return null;
+			}
+		}
+		
+		List<HierarchyKind> res = new ArrayList<>();
+		for (IFieldInfo field : reader.getFieldInfos()) {
+			if ((field.getAccessFlags() & IModifierConstants.ACC_ENUM) == 0) continue;
+			String name = new String(field.getName());
+			String witness = witnesses.get(name);
+			if (witness == null) {
+				Metrics.err("No witness class for kind " + name);
+				return null;
+			}
+			res.add(new HierarchyKind(name, witness));
+		}
+		return Collections.unmodifiableList(res);
+	}
+	
+	/**
+	 * @param created	the internal name of a class instantiated in the
+	 * 	static initializer of an enum
+	 * @param enumName	the internal name of the enum
+	 * @return whether an instance of {@code created} is a constant of
+	 * 	the enum, i.e. it is the enum itself or the anonymous class of
+	 * 	the body of a constant, e.g. {@code Kind$1}
+	 */
+	private static boolean isConstantClass(String created, String enumName) {
+		if (created.equals(enumName)) return true;
+		if (created.length() <= enumName.length() + 1 || !created.startsWith(enumName)
+			|| created.charAt(enumName.length()) != '$') return false;
+		for (int i = enumName.length() + 1; i < created.length(); ++i) {
+			if (!Character.isDigit(created.charAt(i))) return false;
+		}
+		return true;
+	}
+	
+	private static String qualifiedNameOf(char[] binaryName) {
+		return new String(binaryName).replace('/', '.').replace('$', '.');
+	}
+	
+	/**
+	 * @param field	an enum constant
+	 * @param scanner
+	 * @return the type name, as written in the source, of the class literal
+	 * 	passed as first argument in the declaration of the constant,
+	 * 	or {@code null} if there is no such argument
+	 * @throws JavaModelException
+	 */
+	// IScanner still returns ITerminalSymbols.TokenNameIdentifier for
+	// identifiers, and the public API offers no replacement for it
+	@SuppressWarnings("deprecation")
+	private static /* NULLABLE */ String witnessNameOf(IField field, IScanner scanner)
+			throws JavaModelException {
+		String source = field.getSource();
+		ISourceRange range = field.getSourceRange();
+		ISourceRange nameRange = field.getNameRange();
+		if (source == null || range == null || nameRange == null) return null;
+		// Only look at what follows the constant's name, so as
+		// to skip the constant's annotations and Javadoc
+		int start = nameRange.getOffset() + nameRange.getLength() - range.getOffset();
+		if (start < 0 || start > source.length()) return null;
+		scanner.setSource(source.substring(start).toCharArray());
+		
+		// Expecting '(' Ident ('.' Ident)* '.' 'class' (',' | ')')
+		try {
+			if (scanner.getNextToken() != ITerminalSymbols.TokenNameLPAREN) return null;
+			if (scanner.getNextToken() != ITerminalSymbols.TokenNameIdentifier) return null;
+			StringBuilder buf = new StringBuilder();
+			buf.append(scanner.getCurrentTokenSource());
+			while (true) {
+				if (scanner.getNextToken() != ITerminalSymbols.TokenNameDOT) return null;
+				int token = scanner.getNextToken();
+				if (token == ITerminalSymbols.TokenNameclass) break;
+				if (token != ITerminalSymbols.TokenNameIdentifier) return null;
+				buf.append('.').append(scanner.getCurrentTokenSource());
+			}
+			int token = scanner.getNextToken();
+			if (token != ITerminalSymbols.TokenNameCOMMA &&
+				token != ITerminalSymbols.TokenNameRPAREN) return null;
+			return buf.toString();
+		} catch (InvalidInputException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Resolves the given type name, as it appears in the declaration
+	 * of the given type. The common cases of a type declared in an
+	 * enclosing type, imported explicitly, or declared in the same
+	 * package are looked up directly in the Java model, other cases
+	 * go through {@link IType#resolveType(String)}.
+	 *
+	 * @param context
+	 * @param typeName	a simple or qualified type name
+	 * @return the fully qualified name of the type, or {@code null}
+	 * 	if it could not be resolved to a single type
+	 * @throws JavaModelException
+	 */
+	static /* NULLABLE */ String resolveTypeName(IType context, String typeName)
+			throws JavaModelException {
+		int dot = typeName.indexOf('.');
+		String first = dot < 0 ? typeName : typeName.substring(0, dot);
+		String rest = dot < 0 ? "" : typeName.substring(dot);
+		
+		// Member type of an enclosing type, including the enum itself
+		for (IType ty = context; ty != null; ty = ty.getDeclaringType()) {
+			if (ty.getElementName().equals(first))
+				return ty.getFullyQualifiedName('.') + rest;
+			IType member = ty.getType(first);
+			if (member.exists())
+				return member.getFullyQualifiedName('.') + rest;
+		}
+		ICompilationUnit cu = context.getCompilationUnit();
+		if (cu != null) {
+			// Single-type import
+			for (IImportDeclaration imp : cu.getImports()) {
+				if (imp.isOnDemand()) continue;
+				String impName = imp.getElementName();
+				if (impName.endsWith("." + first))
+					return impName + rest;
+			}
+			// Top-level type in the same package
+			IType sibling = context.getPackageFragment()
+				.getCompilationUnit(first + ".java").getType(first);
+			if (sibling.exists())
+				return sibling.getFullyQualifiedName('.') + rest;
+		}
+		
+		// Anything else (on-demand imports, java.lang, inherited member
+		// types, fully qualified names...) is left to the Java model
+		String[][] candidates = context.resolveType(typeName);
+		if (candidates == null || candidates.length != 1) return null;
+		String pkg = candidates[0][0];
+		return pkg.isEmpty() ? candidates[0][1] : pkg + "." + candidates[0][1];
+	}
+}
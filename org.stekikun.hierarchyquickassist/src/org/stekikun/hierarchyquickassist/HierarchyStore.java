@@ -0,0 +1,246 @@
+package org.stekikun.hierarchyquickassist;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.core.resources.IResource;
+import org.eclipse.jdt.core.ICompilationUnit;
+import org.eclipse.jdt.core.IJavaElement;
+import org.eclipse.jdt.core.IType;
+import org.eclipse.jdt.core.JavaCore;
+import org.eclipse.jdt.core.JavaModelException;
+import org.stekikun.hierarchyquickassist.Metrics.Counter;
+
+/**
+ * A persistent copy of the hierarchy descriptions cached by the
+ * quick-assist, so that hierarchies need not be interpreted again,
+ * nor their enums parsed, after a restart.
+ * <p>
+ * The store is a binary file in the plug-in's state location, which
+ * is written when the plug-in stops and memory-mapped when it starts.
+ * Only the table of keys is decoded when the file is opened, each
+ * description is decoded when it is first looked up, and only if the
+ * compilation units it was computed from have the same modification
+ * stamps as when it was stored. Descriptions of hierarchies whose enum
+ * is binary cannot be validated that way, and are not stored.
+ * <p>
+ * The file is made of, all numbers being big-endian:
+ * <pre>
+ * magic version count (key offset length){count} entry{count}
+ * entry ::= units (handle stamp){units} descriptor
+ * </pre>
+ * where offsets are relative to the first entry, and strings are
+ * written as by {@link HierarchyDescriptor#writeString}.
+ */
+final class HierarchyStore {
+
+	private static final int MAGIC = 0x48514131;	// "HQA1"
+	// Version 2 keys the descriptions by project as well
+	private static final int VERSION = 2;
+	/** The maximal number of stored descriptions */
+	private static final int MAX_ENTRIES = 4096;
+
+	private static final HierarchyStore instance = new HierarchyStore();
+
+	/**
+	 * @return the store of the plug-in
+	 */
+	static HierarchyStore getDefault() {
+		return instance;
+	}
+
+	private /* NULLABLE */ File file;
+	// The mapped entries, and the offset and length of each one by key
+	private /* NULLABLE */ ByteBuffer entries;
+	private Map<String, int[]> index = Collections.emptyMap();
+
+	private HierarchyStore() {
+		// Singleton
+	}
+
+	/**
+	 * Maps the given file, and decodes its table of keys. The file
+	 * written by the previous session, if any, replaces it first:
+	 * it could not be renamed then, since it was still mapped.
+	 *
+	 * @param file
+	 */
+	synchronized void open(File file) {
+		this.file = file;
+		File saved = savedFileOf(file);
+		if (saved.exists()) {
+			if ((file.exists() && !file.delete()) || !saved.renameTo(file))
+				Metrics.err("Could not replace hierarchy store " + file);
+		}
+		if (!file.exists()) return;
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			// The mapping remains valid once the channel is closed
+			ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+				Metrics.log("Ignoring hierarchy store in another format");
+				return;
+			}
+			int count = buf.getInt();
+			Map<String, int[]> index = new HashMap<>(2 * count);
+			for (int i = 0; i < count; ++i) {
+				String key = HierarchyDescriptor.readString(buf);
+				index.put(key, new int[] { buf.getInt(), buf.getInt() });
+			}
+			this.entries = buf.slice();
+			this.index = index;
+			if (Metrics.getDefault().isLogging())
+				Metrics.log("Opened hierarchy store with " + count + " entries");
+		} catch (IOException | RuntimeException e) {
+			Metrics.err("Could not open hierarchy store: " + e);
+			this.entries = null;
+			this.index = Collections.emptyMap();
+		}
+	}
+
+	/**
+	 * Looks up a description in the store, and if it is still valid,
+	 * records it in {@link QuickAssistHierarchySwitch#descriptorCache}.
+	 * Each key is looked up only once.
+	 *
+	 * @param key	the key of an annotated type or method
+	 * @return the valid description stored for the given key,
+	 * 	or {@code null} if there is none
+	 */
+	synchronized /* NULLABLE */ HierarchyDescriptor lookup(String key) {
+		int[] location = index.remove(key);
+		if (location == null) return null;
+		ByteBuffer in = entries.duplicate();
+		in.position(location[0]);
+		in.limit(location[0] + location[1]);
+		try {
+			ICompilationUnit[] units = new ICompilationUnit[in.getInt()];
+			for (int i = 0; i < units.length; ++i) {
+				IJavaElement elt = JavaCore.create(HierarchyDescriptor.readString(in));
+				long stamp = in.getLong();
+				if (!(elt instanceof ICompilationUnit)) return null;
+				IResource res = elt.getResource();
+				if (res == null || res.getModificationStamp() != stamp) {
+					if (Metrics.getDefault().isLogging())
+						Metrics.log("Stored hierarchy " + key + " is out-of-date");
+					return null;
+				}
+				units[i] = (ICompilationUnit) elt;
+			}
+			HierarchyDescriptor descriptor = HierarchyDescriptor.read(in);
+			QuickAssistHierarchySwitch.descriptorCache.put(key, descriptor, units);
+			Metrics.count(Counter.STORE_HITS);
+			return descriptor;
+		} catch (RuntimeException e) {
+			Metrics.err("Could not read stored hierarchy " + key + ": " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Saves the descriptions which are cached, along with the stored ones
+	 * which were not looked up during this session, to a file which will
+	 * replace the store the next time it is opened.
+	 */
+	synchronized void save() {
+		if (file == null) return;
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		final Map<String, int[]> saved = new LinkedHashMap<>();
+		try {
+			QuickAssistHierarchySwitch.descriptorCache.forEach(
+				(String key, HierarchyDescriptor descriptor, ICompilationUnit[] units, long[] stamps) -> {
+					if (saved.size() >= MAX_ENTRIES || units.length == 0 || isBinary(descriptor)
+						|| hasUnsavedChanges(units))
+						return;
+					int offset = out.size();
+					try {
+						out.writeInt(units.length);
+						for (int i = 0; i < units.length; ++i) {
+							HierarchyDescriptor.writeString(out, units[i].getPrimary().getHandleIdentifier());
+							out.writeLong(stamps[i]);
+						}
+						descriptor.write(out);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+					saved.put(key, new int[] { offset, out.size() - offset });
+				});
+			// Stored entries are copied as they are, without decoding them
+			for (Map.Entry<String, int[]> e : index.entrySet()) {
+				if (saved.size() >= MAX_ENTRIES) break;
+				if (saved.containsKey(e.getKey())) continue;
+				int[] location = e.getValue();
+				byte[] entry = new byte[location[1]];
+				ByteBuffer in = entries.duplicate();
+				in.position(location[0]);
+				in.get(entry);
+				saved.put(e.getKey(), new int[] { out.size(), entry.length });
+				out.write(entry);
+			}
+
+			try (DataOutputStream fout = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(savedFileOf(file))))) {
+				fout.writeInt(MAGIC);
+				fout.writeInt(VERSION);
+				fout.writeInt(saved.size());
+				for (Map.Entry<String, int[]> e : saved.entrySet()) {
+					HierarchyDescriptor.writeString(fout, e.getKey());
+					fout.writeInt(e.getValue()[0]);
+					fout.writeInt(e.getValue()[1]);
+				}
+				bytes.writeTo(fout);
+			}
+			if (Metrics.getDefault().isLogging())
+				Metrics.log("Saved hierarchy store with " + saved.size() + " entries");
+		} catch (IOException | UncheckedIOException e) {
+			Metrics.err("Could not save hierarchy store: " + e);
+		}
+	}
+
+	/**
+	 * Forgets the store, the file remains
+	 */
+	synchronized void close() {
+		file = null;
+		entries = null;
+		index = Collections.emptyMap();
+	}
+
+	private static boolean isBinary(HierarchyDescriptor descriptor) {
+		IJavaElement enumType = JavaCore.create(descriptor.enumHandle);
+		return !(enumType instanceof IType) || ((IType) enumType).isBinary();
+	}
+
+	/**
+	 * A description computed from a working copy with unsaved changes
+	 * does not match the stamp of the file on disk, and may not match
+	 * its contents either
+	 */
+	private static boolean hasUnsavedChanges(ICompilationUnit[] units) {
+		for (ICompilationUnit unit : units) {
+			try {
+				if (unit.hasUnsavedChanges()) return true;
+			} catch (JavaModelException e) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static File savedFileOf(File file) {
+		return new File(file.getPath() + ".new");
+	}
+}
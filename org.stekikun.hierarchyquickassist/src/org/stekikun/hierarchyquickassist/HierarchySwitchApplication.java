@@ -0,0 +1,296 @@
+package org.stekikun.hierarchyquickassist;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IProjectDescription;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IWorkspace;
+import org.eclipse.core.resources.IWorkspaceDescription;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.core.runtime.Path;
+import org.eclipse.equinox.app.IApplication;
+import org.eclipse.equinox.app.IApplicationContext;
+import org.eclipse.jdt.core.ICompilationUnit;
+import org.eclipse.jdt.core.IJavaElement;
+import org.eclipse.jdt.core.IJavaProject;
+import org.eclipse.jdt.core.JavaCore;
+import org.eclipse.jdt.core.dom.ASTRequestor;
+import org.eclipse.jdt.core.dom.CompilationUnit;
+import org.eclipse.jdt.core.refactoring.CompilationUnitChange;
+import org.eclipse.ltk.core.refactoring.CompositeChange;
+import org.eclipse.ltk.core.refactoring.PerformChangeOperation;
+import org.eclipse.ltk.core.refactoring.RefactoringStatus;
+import org.stekikun.hierarchyquickassist.HierarchySwitchCleanup.Site;
+
+/**
+ * Headless application which generates, or only reports, all the
+ * hierarchy switches in a workspace, e.g. as part of a build:
+ * <pre>
+ * eclipse -nosplash -data &lt;workspace&gt;
+ *   -application org.stekikun.hierarchyquickassist.generate
+ *   [-check] [-threads N] [-output FILE] [-import DIR]* [PATH]*
+ * </pre>
+ * Each PATH is a workspace path to a project, source folder, package
+ * or compilation unit; all Java projects are processed if there are
+ * none. Each {@code -import} option first loads the existing project
+ * found in the given directory into the workspace.
+ * <p>
+ * With {@code -check}, no edit is made and the application exits with
+ * code 1 if some switch remains to be generated. Otherwise, all sites
+ * are generated at once at the end, as with
+ * {@link GenerateHierarchySwitchesHandler}.
+ * <p>
+ * Compilation units are parsed in batches by a pool of {@code -threads}
+ * workers (one per processor by default). The output has one
+ * tab-separated record per line:
+ * <pre>
+ * site	&lt;file&gt;	&lt;line&gt;	&lt;hierarchy&gt;
+ * file	&lt;file&gt;	&lt;sites&gt;	&lt;parse ms&gt;	&lt;generate ms&gt;
+ * error	&lt;file&gt;	&lt;message&gt;
+ * total	&lt;files&gt;	&lt;sites&gt;	&lt;elapsed ms&gt;
+ * </pre>
+ * where parse times are measured between two units of the same batch.
+ */
+public class HierarchySwitchApplication implements IApplication {
+
+	/** Exit code when sites remain in {@code -check} mode */
+	private static final Integer EXIT_SITES = 1;
+	/** Exit code on bad arguments or failures */
+	private static final Integer EXIT_ERROR = 2;
+
+	private boolean check = false;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private /* NULLABLE */ String output = null;
+	private final List<String> imports = new ArrayList<>();
+	private final List<String> paths = new ArrayList<>();
+
+	private PrintWriter out;
+	private final CompositeChange changes = new CompositeChange("Generate hierarchy switches");
+	private int files = 0;
+	private int sites = 0;
+	private int errors = 0;
+
+	@Override
+	public Object start(IApplicationContext context) throws Exception {
+		String[] args = (String[]) context.getArguments().get(IApplicationContext.APPLICATION_ARGS);
+		if (!parseArguments(args)) {
+			System.err.println("Usage: [-check] [-threads N] [-output FILE] [-import DIR]* [PATH]*");
+			return EXIT_ERROR;
+		}
+		out = output == null ?
+			new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)) :
+			new PrintWriter(new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8));
+		try {
+			IWorkspace workspace = ResourcesPlugin.getWorkspace();
+			// Building would only compete with the workers, but the
+			// workspace is saved as it was found
+			IWorkspaceDescription original = workspace.getDescription();
+			IWorkspaceDescription desc = workspace.getDescription();
+			desc.setAutoBuilding(false);
+			workspace.setDescription(desc);
+			try {
+				for (String dir : imports)
+					importProject(workspace, dir);
+				List<ICompilationUnit> units = HierarchySwitchCleanup.collectUnits(getElements(workspace));
+				long start = System.nanoTime();
+				process(HierarchySwitchCleanup.byProject(units));
+				if (!check && changes.getChildren().length > 0)
+					apply(workspace);
+				long elapsed = (System.nanoTime() - start) / 1000000;
+				out.println("total\t" + files + "\t" + sites + "\t" + elapsed);
+			} finally {
+				workspace.setDescription(original);
+			}
+			workspace.save(true, null);
+		} finally {
+			out.close();
+		}
+		if (errors > 0) return EXIT_ERROR;
+		if (check && sites > 0) return EXIT_SITES;
+		return EXIT_OK;
+	}
+
+	@Override
+	public void stop() {
+		// Nothing to do
+	}
+
+	private boolean parseArguments(/* NULLABLE */ String[] args) {
+		if (args == null) return true;
+		for (int i = 0; i < args.length; ++i) {
+			String arg = args[i];
+			if ("-check".equals(arg))
+				check = true;
+			else if ("-threads".equals(arg) && i + 1 < args.length) {
+				try {
+					threads = Integer.parseInt(args[++i]);
+				} catch (NumberFormatException e) {
+					return false;
+				}
+				if (threads < 1) return false;
+			}
+			else if ("-output".equals(arg) && i + 1 < args.length)
+				output = args[++i];
+			else if ("-import".equals(arg) && i + 1 < args.length)
+				imports.add(args[++i]);
+			else if (arg.startsWith("-"))
+				return false;
+			else
+				paths.add(arg);
+		}
+		return true;
+	}
+
+	private static void importProject(IWorkspace workspace, String dir) throws CoreException {
+		IPath location = new Path(new File(dir).getAbsolutePath());
+		IProjectDescription desc =
+			workspace.loadProjectDescription(location.append(IProjectDescription.DESCRIPTION_FILE_NAME));
+		IProject project = workspace.getRoot().getProject(desc.getName());
+		if (!project.exists())
+			project.create(desc, null);
+		if (!project.isOpen())
+			project.open(null);
+	}
+
+	private List<IJavaElement> getElements(IWorkspace workspace) throws CoreException {
+		List<IJavaElement> elements = new ArrayList<>();
+		if (paths.isEmpty()) {
+			for (IProject project : workspace.getRoot().getProjects()) {
+				if (!project.isOpen() || !project.hasNature(JavaCore.NATURE_ID)) continue;
+				// Sources may have changed since the workspace was last opened
+				project.refreshLocal(IResource.DEPTH_INFINITE, null);
+				elements.add(JavaCore.create(project));
+			}
+			return elements;
+		}
+		for (String path : paths) {
+			IResource res = workspace.getRoot().findMember(path);
+			IJavaElement elt = res == null ? null : JavaCore.create(res);
+			if (elt == null) {
+				out.println("error\t" + path + "\tNot a Java element");
+				++errors;
+				continue;
+			}
+			res.refreshLocal(IResource.DEPTH_INFINITE, null);
+			elements.add(elt);
+		}
+		return elements;
+	}
+
+	/**
+	 * Parses all units in batches, spread over a pool of workers
+	 */
+	private void process(Map<IJavaProject, List<ICompilationUnit>> projects)
+			throws InterruptedException {
+		int total = 0;
+		for (List<ICompilationUnit> l : projects.values())
+			total += l.size();
+		// Smaller batches when there are few units, so that all workers get some
+		int batchSize = Math.max(1, Math.min(HierarchySwitchCleanup.BATCH_SIZE,
+			(total + threads - 1) / threads));
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<?>> futures = new ArrayList<>();
+		try {
+			for (Map.Entry<IJavaProject, List<ICompilationUnit>> e : projects.entrySet()) {
+				final IJavaProject project = e.getKey();
+				List<ICompilationUnit> units = e.getValue();
+				for (int i = 0; i < units.size(); i += batchSize) {
+					final List<ICompilationUnit> batch =
+						units.subList(i, Math.min(i + batchSize, units.size()));
+					futures.add(pool.submit(() -> HierarchySwitchCleanup.parseBatch(
+						project, batch, new Requestor(), new NullProgressMonitor())));
+				}
+			}
+			for (Future<?> f : futures) {
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					report("error\t-\t" + e.getCause());
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Handles the units of one batch, as they are parsed
+	 */
+	private final class Requestor extends ASTRequestor {
+		private long last = System.nanoTime();
+
+		@Override
+		public void acceptAST(ICompilationUnit source, CompilationUnit ast) {
+			long parsed = System.nanoTime();
+			String file = fileOf(source);
+			StringBuilder buf = new StringBuilder();
+			int count = 0;
+			try {
+				List<Site> found = HierarchySwitchCleanup.findSites(source, ast);
+				count = found.size();
+				for (Site site : found) {
+					buf.append("site\t").append(file).append('\t').append(site.getLine())
+						.append('\t').append(site.config.name).append('\n');
+				}
+				if (!check) {
+					CompilationUnitChange change =
+						HierarchySwitchCleanup.createChange(source, ast, found);
+					if (change != null) addChange(change);
+				}
+			} catch (CoreException | RuntimeException e) {
+				report("error\t" + file + "\t" + e);
+			}
+			long generated = System.nanoTime();
+			buf.append("file\t").append(file).append('\t').append(count)
+				.append('\t').append((parsed - last) / 1000000)
+				.append('\t').append((generated - parsed) / 1000000);
+			last = generated;
+			synchronized (HierarchySwitchApplication.this) {
+				++files;
+				sites += count;
+				out.println(buf);
+			}
+		}
+	}
+
+	private synchronized void addChange(CompilationUnitChange change) {
+		changes.add(change);
+	}
+
+	private synchronized void report(String line) {
+		++errors;
+		out.println(line);
+	}
+
+	private static String fileOf(ICompilationUnit unit) {
+		IResource res = unit.getResource();
+		IPath location = res == null ? null : res.getLocation();
+		return (location == null ? unit.getPath() : location).toOSString();
+	}
+
+	private void apply(IWorkspace workspace) throws CoreException {
+		NullProgressMonitor monitor = new NullProgressMonitor();
+		changes.initializeValidationData(monitor);
+		PerformChangeOperation op = new PerformChangeOperation(changes);
+		workspace.run(op, monitor);
+		RefactoringStatus status = op.getValidationStatus();
+		if (status != null && status.hasFatalError())
+			report("error\t-\t" + status.getMessageMatchingSeverity(RefactoringStatus.FATAL));
+	}
+}
@@ -0,0 +1,479 @@
+package org.stekikun.hierarchyquickassist;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IMarker;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.jdt.core.ICompilationUnit;
+import org.eclipse.jdt.core.IJavaElement;
+import org.eclipse.jdt.core.IJavaProject;
+import org.eclipse.jdt.core.IPackageFragmentRoot;
+import org.eclipse.jdt.core.JavaCore;
+import org.eclipse.jdt.core.JavaModelException;
+import org.eclipse.jdt.core.compiler.BuildContext;
+import org.eclipse.jdt.core.compiler.CompilationParticipant;
+import org.eclipse.jdt.core.dom.ASTRequestor;
+import org.eclipse.jdt.core.dom.ASTVisitor;
+import org.eclipse.jdt.core.dom.CompilationUnit;
+import org.eclipse.jdt.core.dom.Expression;
+import org.eclipse.jdt.core.dom.FieldAccess;
+import org.eclipse.jdt.core.dom.IBinding;
+import org.eclipse.jdt.core.dom.IMethodBinding;
+import org.eclipse.jdt.core.dom.ITypeBinding;
+import org.eclipse.jdt.core.dom.IVariableBinding;
+import org.eclipse.jdt.core.dom.MethodInvocation;
+import org.eclipse.jdt.core.dom.QualifiedName;
+import org.eclipse.jdt.core.dom.SwitchStatement;
+import org.stekikun.hierarchyquickassist.QuickAssistHierarchySwitch.DispatcherKind;
+import org.stekikun.hierarchyquickassist.QuickAssistHierarchySwitch.HierarchyConfig;
+
+/**
+ * Reports hierarchy switches which miss some kinds of their hierarchy,
+ * e.g. after a constant was added to the kind enum, as problem markers.
+ * Unlike the compiler's check on enum switches, this also applies to
+ * switches followed by a throw of the unmatched exception. Switches
+ * with a {@code default} case are considered exhaustive.
+ * <p>
+ * The checker is only active on projects which declare, or require
+ * projects declaring, hierarchies known to the {@link HierarchyIndex},
+ * and only parses the units which mention the method or field giving
+ * the kind of one of these hierarchies.
+ * <p>
+ * The check is incremental: the units compiled by the Java builder are
+ * checked again, along with the units containing hierarchy switches on
+ * an enum declared in one of them, which are found through a map from
+ * each enum's compilation unit to the compilation units switching on it.
+ * This map is saved in the plug-in's state location along with the
+ * projects which were checked fully, like the markers it goes with, so
+ * only the first build of a project, or a full build, checks all the
+ * units of the project.
+ */
+public class HierarchySwitchChecker extends CompilationParticipant {
+
+	/** The type of the problem markers reported by the checker */
+	public static final String MARKER_TYPE = Activator.PLUGIN_ID + ".hierarchyProblem";
+
+	private static final int MAGIC = 0x48514144;	// "HQAD"
+	private static final int VERSION = 1;
+
+	// Handles of the units with hierarchy switches, by handle of
+	// the unit of their enum, and the other way around
+	private final Map<String, Set<String>> dependents = new HashMap<>();
+	private final Map<String, Set<String>> dependencies = new HashMap<>();
+	// Projects checked fully in this session
+	private final Set<String> checkedProjects = new HashSet<>();
+	// Units waiting to be checked after the current build, by project
+	private final Map<IJavaProject, Set<ICompilationUnit>> pending = new HashMap<>();
+	// Where the maps above are saved, and whether they changed since
+	private final /* NULLABLE */ File file;
+	private boolean dirty = false;
+
+	public HierarchySwitchChecker() {
+		Activator plugin = Activator.getDefault();
+		file = plugin == null ? null :
+			plugin.getStateLocation().append("dependencies.bin").toFile();
+		load();
+	}
+
+	@Override
+	public boolean isActive(IJavaProject project) {
+		Set<String> names = HierarchyIndex.getDefault().dispatchNamesFor(project);
+		// Until the index is ready, nothing can be ruled out
+		if (names == null || !names.isEmpty()) return true;
+		synchronized (this) {
+			if (!checkedProjects.remove(project.getElementName())) return false;
+			// The hierarchies are gone, and so are the problems with their switches
+			forgetProject(project.getElementName());
+			dirty = true;
+		}
+		try {
+			project.getProject().deleteMarkers(MARKER_TYPE, false, IResource.DEPTH_INFINITE);
+		} catch (CoreException e) {
+			Metrics.err("Could not clear hierarchy markers: " + e.getMessage());
+		}
+		save();
+		return false;
+	}
+
+	@Override
+	public void cleanStarting(IJavaProject project) {
+		synchronized (this) {
+			if (checkedProjects.remove(project.getElementName()))
+				dirty = true;
+		}
+		try {
+			project.getProject().deleteMarkers(MARKER_TYPE, false, IResource.DEPTH_INFINITE);
+		} catch (CoreException e) {
+			Metrics.err("Could not clear hierarchy markers: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public void buildStarting(BuildContext[] files, boolean isBatch) {
+		if (files.length == 0) return;
+		IJavaProject project = JavaCore.create(files[0].getFile().getProject());
+		synchronized (this) {
+			Set<ICompilationUnit> units = pending.get(project);
+			if (units == null) {
+				units = new LinkedHashSet<>();
+				pending.put(project, units);
+			}
+			if (isBatch || !checkedProjects.contains(project.getElementName())) {
+				// Nothing is known about this project yet
+				checkedProjects.add(project.getElementName());
+				dirty = true;
+				units.addAll(allUnits(project));
+				return;
+			}
+			for (BuildContext file : files) {
+				ICompilationUnit cu = JavaCore.createCompilationUnitFrom(file.getFile());
+				if (cu == null) continue;
+				units.add(cu);
+				// Also check the switches on the enums in this unit
+				Set<String> deps = dependents.get(cu.getHandleIdentifier());
+				if (deps == null) continue;
+				for (String handle : deps) {
+					IJavaElement dep = JavaCore.create(handle);
+					if (dep instanceof ICompilationUnit)
+						units.add((ICompilationUnit) dep);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void buildFinished(IJavaProject project) {
+		Set<ICompilationUnit> units;
+		synchronized (this) {
+			units = pending.remove(project);
+		}
+		if (units == null || units.isEmpty()) return;
+		long start = Metrics.start();
+		List<ICompilationUnit> existing = new ArrayList<>(units.size());
+		for (ICompilationUnit unit : units) {
+			if (unit.exists())
+				existing.add(unit);
+			else
+				forget(unit.getHandleIdentifier());
+		}
+		// Units which cannot contain a hierarchy switch anymore have no problem
+		Map<IJavaProject, List<ICompilationUnit>> byProject =
+			HierarchySwitchCleanup.byProject(existing);
+		Set<ICompilationUnit> switching = new HashSet<>();
+		for (Map.Entry<IJavaProject, List<ICompilationUnit>> e : byProject.entrySet()) {
+			Set<String> names = HierarchyIndex.getDefault().dispatchNamesFor(e.getKey());
+			if (names != null)
+				e.getValue().removeIf(unit -> !mentionsAny(unit, names));
+			switching.addAll(e.getValue());
+		}
+		for (ICompilationUnit unit : existing) {
+			if (!switching.contains(unit)) {
+				forget(unit.getHandleIdentifier());
+				clearMarkers(unit);
+			}
+		}
+		for (Map.Entry<IJavaProject, List<ICompilationUnit>> e : byProject.entrySet()) {
+			HierarchySwitchCleanup.parse(e.getKey(), e.getValue(), new ASTRequestor() {
+				@Override
+				public void acceptAST(ICompilationUnit source, CompilationUnit ast) {
+					check(source, ast);
+				}
+			}, new NullProgressMonitor());
+		}
+		save();
+		if (Metrics.getDefault().isLogging())
+			Metrics.log("Checked " + switching.size() + " of " + existing.size()
+				+ " units for hierarchy switches in " + (System.nanoTime() - start) / 1000000 + " ms");
+	}
+
+	private static boolean mentionsAny(ICompilationUnit unit, Set<String> names) {
+		try {
+			String source = unit.getSource();
+			if (source == null) return false;
+			for (String name : names) {
+				if (source.contains(name)) return true;
+			}
+			return false;
+		} catch (JavaModelException e) {
+			return false;
+		}
+	}
+
+	private static List<ICompilationUnit> allUnits(IJavaProject project) {
+		List<ICompilationUnit> units = new ArrayList<>();
+		try {
+			for (IPackageFragmentRoot root : project.getPackageFragmentRoots()) {
+				// Other projects' roots are checked when building them
+				if (root.getKind() != IPackageFragmentRoot.K_SOURCE
+					|| !project.equals(root.getJavaProject())) continue;
+				units.addAll(HierarchySwitchCleanup.collectUnits(Collections.singletonList(root)));
+			}
+		} catch (JavaModelException e) {
+			Metrics.err("Could not list units of " + project.getElementName() + ": " + e.getMessage());
+		}
+		return units;
+	}
+
+	/**
+	 * Checks all the hierarchy switches of the given unit, and
+	 * updates its problem markers and its dependencies accordingly
+	 *
+	 * @param unit
+	 * @param ast	the AST of {@code unit}, with resolved bindings
+	 */
+	private void check(ICompilationUnit unit, CompilationUnit ast) {
+		final Set<String> enumUnits = new HashSet<>();
+		final List<String> problems = new ArrayList<>();
+		final List<SwitchStatement> problemSites = new ArrayList<>();
+		ast.accept(new ASTVisitor() {
+			@Override
+			public boolean visit(SwitchStatement node) {
+				if (node.statements().isEmpty()) return true;
+				HierarchyConfig config = getGeneratedHierarchyConfig(node);
+				if (config == null) return true;
+				ICompilationUnit enumUnit = config.enumType.getCompilationUnit();
+				if (enumUnit != null)
+					enumUnits.add(enumUnit.getPrimary().getHandleIdentifier());
+				String missing = missingKinds(unit, ast, node, config);
+				if (missing != null) {
+					problems.add("Hierarchy switch on " + config.enumType.getElementName()
+						+ " misses kinds: " + missing);
+					problemSites.add(node);
+				}
+				return true;
+			}
+		});
+
+		String handle = unit.getPrimary().getHandleIdentifier();
+		synchronized (this) {
+			forget(handle);
+			if (!enumUnits.isEmpty()) {
+				dirty = true;
+				dependencies.put(handle, enumUnits);
+				for (String enumUnit : enumUnits) {
+					Set<String> deps = dependents.get(enumUnit);
+					if (deps == null) {
+						deps = new HashSet<>();
+						dependents.put(enumUnit, deps);
+					}
+					deps.add(handle);
+				}
+			}
+		}
+
+		clearMarkers(unit);
+		IResource res = unit.getResource();
+		if (!(res instanceof IFile)) return;
+		for (int i = 0; i < problems.size(); ++i) {
+			Expression expr = problemSites.get(i).getExpression();
+			try {
+				IMarker marker = res.createMarker(MARKER_TYPE);
+				marker.setAttribute(IMarker.SEVERITY, IMarker.SEVERITY_WARNING);
+				marker.setAttribute(IMarker.MESSAGE, problems.get(i));
+				marker.setAttribute(IMarker.CHAR_START, expr.getStartPosition());
+				marker.setAttribute(IMarker.CHAR_END, expr.getStartPosition() + expr.getLength());
+				marker.setAttribute(IMarker.LINE_NUMBER, ast.getLineNumber(expr.getStartPosition()));
+			} catch (CoreException e) {
+				Metrics.err("Could not create hierarchy marker: " + e.getMessage());
+			}
+		}
+	}
+
+	private synchronized void forget(String handle) {
+		Set<String> enumUnits = dependencies.remove(handle);
+		if (enumUnits == null) return;
+		dirty = true;
+		for (String enumUnit : enumUnits) {
+			Set<String> deps = dependents.get(enumUnit);
+			if (deps == null) continue;
+			deps.remove(handle);
+			if (deps.isEmpty()) dependents.remove(enumUnit);
+		}
+	}
+
+	private synchronized void forgetProject(String project) {
+		for (Iterator<String> it = dependencies.keySet().iterator(); it.hasNext(); ) {
+			IJavaElement unit = JavaCore.create(it.next());
+			if (unit == null || project.equals(unit.getJavaProject().getElementName()))
+				it.remove();
+		}
+		dependents.clear();
+		for (Map.Entry<String, Set<String>> e : dependencies.entrySet()) {
+			for (String enumUnit : e.getValue())
+				dependents.computeIfAbsent(enumUnit, k -> new HashSet<>()).add(e.getKey());
+		}
+	}
+
+	/**
+	 * Reads the checked projects and the dependencies saved by a previous
+	 * session, if any. The file is made of, all numbers being big-endian
+	 * and strings being written as by {@link DataOutputStream#writeUTF}:
+	 * <pre>
+	 * magic version count project{count} count (handle units handle{units}){count}
+	 * </pre>
+	 */
+	private synchronized void load() {
+		if (file == null || !file.exists()) return;
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				Metrics.log("Ignoring hierarchy dependencies in another format");
+				return;
+			}
+			for (int i = in.readInt(); i > 0; --i)
+				checkedProjects.add(in.readUTF());
+			for (int i = in.readInt(); i > 0; --i) {
+				String handle = in.readUTF();
+				Set<String> enumUnits = new HashSet<>();
+				for (int j = in.readInt(); j > 0; --j) {
+					String enumUnit = in.readUTF();
+					enumUnits.add(enumUnit);
+					dependents.computeIfAbsent(enumUnit, k -> new HashSet<>()).add(handle);
+				}
+				dependencies.put(handle, enumUnits);
+			}
+			if (Metrics.getDefault().isLogging())
+				Metrics.log("Loaded hierarchy dependencies of " + dependencies.size() + " units");
+		} catch (IOException e) {
+			Metrics.err("Could not load hierarchy dependencies: " + e);
+			// Check everything again rather than miss some dependencies
+			checkedProjects.clear();
+			dependencies.clear();
+			dependents.clear();
+		}
+	}
+
+	/**
+	 * Saves the checked projects and the dependencies, if they changed
+	 */
+	private synchronized void save() {
+		if (file == null || !dirty) return;
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(checkedProjects.size());
+			for (String project : checkedProjects)
+				out.writeUTF(project);
+			out.writeInt(dependencies.size());
+			for (Map.Entry<String, Set<String>> e : dependencies.entrySet()) {
+				out.writeUTF(e.getKey());
+				out.writeInt(e.getValue().size());
+				for (String enumUnit : e.getValue())
+					out.writeUTF(enumUnit);
+			}
+			dirty = false;
+		} catch (IOException e) {
+			Metrics.err("Could not save hierarchy dependencies: " + e);
+		}
+	}
+
+	private static void clearMarkers(ICompilationUnit unit) {
+		IResource res = unit.getResource();
+		if (res == null || !res.exists()) return;
+		try {
+			res.deleteMarkers(MARKER_TYPE, false, IResource.DEPTH_ZERO);
+		} catch (CoreException e) {
+			Metrics.err("Could not clear hierarchy markers: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Recognizes a switch statement on the kind of an instance of
+	 * a hierarchy, such as the ones generated by the quick-assist:
+	 * {@code switch (x.getKind())}, {@code switch (x.kind)}, or
+	 * {@code switch (dispatch(x))}.
+	 *
+	 * @param ss	a switch statement from an AST with resolved bindings
+	 * @return the configuration of the hierarchy, or {@code null} if
+	 * 	the switch is not on the kind of a hierarchy
+	 */
+	static /* NULLABLE */ HierarchyConfig getGeneratedHierarchyConfig(SwitchStatement ss) {
+		Expression sw = ss.getExpression();
+		ITypeBinding ty = sw.resolveTypeBinding();
+		if (ty == null || !ty.isEnum()) return null;
+
+		final IBinding binding;
+		final Expression receiver;
+		final String name;
+		if (sw instanceof MethodInvocation) {
+			MethodInvocation mi = (MethodInvocation) sw;
+			IMethodBinding method = mi.resolveMethodBinding();
+			if (method == null) return null;
+			if (mi.arguments().size() == 1) {
+				// External dispatcher
+				return QuickAssistHierarchySwitch.getHierarchyConfig(
+					method, (Expression) mi.arguments().get(0));
+			}
+			if (!mi.arguments().isEmpty() || mi.getExpression() == null) return null;
+			receiver = mi.getExpression();
+			binding = receiver.resolveTypeBinding();
+			name = mi.getName().getIdentifier();
+		}
+		else if (sw instanceof FieldAccess) {
+			receiver = ((FieldAccess) sw).getExpression();
+			binding = receiver.resolveTypeBinding();
+			name = ((FieldAccess) sw).getName().getIdentifier();
+		}
+		else if (sw instanceof QualifiedName) {
+			QualifiedName qn = (QualifiedName) sw;
+			IBinding qualifier = qn.getQualifier().resolveBinding();
+			// The qualifier must be a variable, not a type
+			if (!(qualifier instanceof IVariableBinding)) return null;
+			receiver = qn.getQualifier();
+			binding = ((IVariableBinding) qualifier).getType();
+			name = qn.getName().getIdentifier();
+		}
+		else
+			return null;
+		if (binding == null) return null;
+
+		HierarchyConfig config = QuickAssistHierarchySwitch.getHierarchyConfig(
+			binding, receiver);
+		if (config == null || !config.name.equals(name)) return null;
+		boolean isField = !(sw instanceof MethodInvocation);
+		if (isField != (config.dispatcherKind == DispatcherKind.FIELD)) return null;
+		return config;
+	}
+
+	/**
+	 * @param unit
+	 * @param ast
+	 * @param ss
+	 * @param config	the configuration of the hierarchy switched on by {@code ss}
+	 * @return the comma-separated names of the kinds which are not covered
+	 * 	by the given switch, or {@code null} if there are none
+	 */
+	private static /* NULLABLE */ String missingKinds(ICompilationUnit unit,
+			CompilationUnit ast, SwitchStatement ss, HierarchyConfig config) {
+		List<HierarchyKind> kinds = QuickAssistHierarchySwitch.getEnumKinds(unit, ast, config);
+		if (kinds == null) return null;
+		List<HierarchyKind> missing = QuickAssistHierarchySwitch.missingKinds(ss, kinds);
+		if (missing.isEmpty()) return null;
+		StringBuilder buf = new StringBuilder();
+		for (HierarchyKind kind : missing) {
+			if (buf.length() > 0) buf.append(", ");
+			buf.append(kind.name);
+		}
+		return buf.toString();
+	}
+}
@@ -0,0 +1,320 @@
+package org.stekikun.hierarchyquickassist;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
+import org.eclipse.core.runtime.SubMonitor;
+import org.eclipse.jdt.core.ICompilationUnit;
+import org.eclipse.jdt.core.IJavaElement;
+import org.eclipse.jdt.core.IJavaProject;
+import org.eclipse.jdt.core.IPackageFragment;
+import org.eclipse.jdt.core.IPackageFragmentRoot;
+import org.eclipse.jdt.core.JavaModelException;
+import org.eclipse.jdt.core.dom.AST;
+import org.eclipse.jdt.core.dom.ASTParser;
+import org.eclipse.jdt.core.dom.ASTRequestor;
+import org.eclipse.jdt.core.dom.ASTVisitor;
+import org.eclipse.jdt.core.dom.CompilationUnit;
+import org.eclipse.jdt.core.dom.SwitchStatement;
+import org.eclipse.jdt.core.dom.rewrite.ASTRewrite;
+import org.eclipse.jdt.core.dom.rewrite.ImportRewrite;
+import org.eclipse.jdt.core.refactoring.CompilationUnitChange;
+import org.eclipse.ltk.core.refactoring.CompositeChange;
+import org.eclipse.text.edits.MultiTextEdit;
+import org.stekikun.hierarchyquickassist.Metrics.Phase;
+import org.stekikun.hierarchyquickassist.QuickAssistHierarchySwitch.HierarchyConfig;
+
+/**
+ * Generates the hierarchy switches for all the empty switch
+ * statements over a hierarchy, e.g. {@code switch (base) {}},
+ * found in a set of compilation units.
+ * <p>
+ * Compilation units are parsed in batches, hierarchy configurations
+ * and kinds are shared through the quick-assist's caches, and all
+ * the changes end up in one composite change. Switches are generated
+ * with 'break' statements, which is always safe: unlike 'return'
+ * statements, they do not skip the code following the switch.
+ */
+final class HierarchySwitchCleanup {
+
+	/** The number of compilation units parsed at once */
+	static final int BATCH_SIZE = 250;
+
+	private HierarchySwitchCleanup() {
+		// Static utility only
+	}
+
+	/**
+	 * @param elements	Java projects, source folders, packages
+	 * 	or compilation units
+	 * @return all the source compilation units in the given elements
+	 * @throws JavaModelException
+	 */
+	static List<ICompilationUnit> collectUnits(Collection<? extends IJavaElement> elements)
+			throws JavaModelException {
+		Set<ICompilationUnit> units = new LinkedHashSet<>();
+		for (IJavaElement elt : elements)
+			collectUnits(elt, units);
+		return new ArrayList<>(units);
+	}
+
+	private static void collectUnits(IJavaElement elt, Set<ICompilationUnit> units)
+			throws JavaModelException {
+		switch (elt.getElementType()) {
+		case IJavaElement.JAVA_PROJECT:
+			for (IPackageFragmentRoot root : ((IJavaProject) elt).getPackageFragmentRoots())
+				collectUnits(root, units);
+			return;
+		case IJavaElement.PACKAGE_FRAGMENT_ROOT:
+			IPackageFragmentRoot root = (IPackageFragmentRoot) elt;
+			if (root.getKind() != IPackageFragmentRoot.K_SOURCE) return;
+			for (IJavaElement pkg : root.getChildren())
+				collectUnits(pkg, units);
+			return;
+		case IJavaElement.PACKAGE_FRAGMENT:
+			for (ICompilationUnit cu : ((IPackageFragment) elt).getCompilationUnits())
+				units.add(cu);
+			return;
+		case IJavaElement.COMPILATION_UNIT:
+			units.add(((ICompilationUnit) elt).getPrimary());
+			return;
+		default:
+			// Look for the enclosing compilation unit, if any
+			IJavaElement cu = elt.getAncestor(IJavaElement.COMPILATION_UNIT);
+			if (cu != null) units.add(((ICompilationUnit) cu).getPrimary());
+			return;
+		}
+	}
+
+	/**
+	 * @param unit
+	 * @return whether the unit may contain a switch statement
+	 */
+	static boolean maySwitch(ICompilationUnit unit) {
+		// Much cheaper than parsing, and most units don't qualify
+		try {
+			String source = unit.getSource();
+			return source != null && source.contains("switch");
+		} catch (JavaModelException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Groups the units by Java project, since units parsed together
+	 * must come from the same project, and drops those which cannot
+	 * contain a switch statement.
+	 *
+	 * @param units
+	 * @return the units which may contain a switch, by project
+	 */
+	static Map<IJavaProject, List<ICompilationUnit>> byProject(List<ICompilationUnit> units) {
+		Map<IJavaProject, List<ICompilationUnit>> res = new LinkedHashMap<>();
+		for (ICompilationUnit unit : units) {
+			if (!maySwitch(unit)) continue;
+			List<ICompilationUnit> l = res.get(unit.getJavaProject());
+			if (l == null) {
+				l = new ArrayList<>();
+				res.put(unit.getJavaProject(), l);
+			}
+			l.add(unit);
+		}
+		return res;
+	}
+
+	/**
+	 * @param ast
+	 * @return the switch statements in the given AST which are empty
+	 */
+	static List<SwitchStatement> findEmptySwitches(CompilationUnit ast) {
+		final List<SwitchStatement> res = new ArrayList<>();
+		ast.accept(new ASTVisitor() {
+			@Override
+			public boolean visit(SwitchStatement node) {
+				if (node.statements().isEmpty())
+					res.add(node);
+				return true;
+			}
+		});
+		return res;
+	}
+
+	/**
+	 * An empty switch statement over a hierarchy, along with
+	 * the configuration and kinds of this hierarchy
+	 */
+	static final class Site {
+		final SwitchStatement ss;
+		final HierarchyConfig config;
+		final List<HierarchyKind> kinds;
+
+		Site(SwitchStatement ss, HierarchyConfig config, List<HierarchyKind> kinds) {
+			this.ss = ss;
+			this.config = config;
+			this.kinds = kinds;
+		}
+
+		/**
+		 * @return the line of the switch statement in its compilation unit
+		 */
+		int getLine() {
+			return ((CompilationUnit) ss.getRoot()).getLineNumber(ss.getStartPosition());
+		}
+	}
+
+	/**
+	 * @param unit
+	 * @param ast	the AST of {@code unit}, with resolved bindings
+	 * @return the hierarchy switches to generate in the given AST
+	 */
+	static List<Site> findSites(ICompilationUnit unit, CompilationUnit ast) {
+		List<SwitchStatement> switches = findEmptySwitches(ast);
+		if (switches.isEmpty()) return Collections.emptyList();
+		List<Site> sites = new ArrayList<>(switches.size());
+		for (SwitchStatement ss : switches) {
+			HierarchyConfig config = QuickAssistHierarchySwitch.getHierarchyConfig(ss);
+			if (config == null) continue;
+			List<HierarchyKind> kinds = QuickAssistHierarchySwitch.getEnumKinds(unit, ast, config);
+			if (kinds == null) continue;
+			sites.add(new Site(ss, config, kinds));
+		}
+		return sites;
+	}
+
+	/**
+	 * Records the generation of all hierarchy switches in the given AST
+	 *
+	 * @param unit
+	 * @param ast	the AST of {@code unit}, with resolved bindings
+	 * @return the change generating the switches, or {@code null}
+	 * 	if there are none to generate in this unit
+	 * @throws CoreException
+	 */
+	static /* NULLABLE */ CompilationUnitChange createChange(
+			ICompilationUnit unit, CompilationUnit ast) throws CoreException {
+		return createChange(unit, ast, findSites(unit, ast));
+	}
+
+	/**
+	 * Records the generation of the given hierarchy switches
+	 *
+	 * @param unit
+	 * @param ast	the AST of {@code unit}, with resolved bindings
+	 * @param sites	sites found in {@code ast} by {@link #findSites}
+	 * @return the change generating the switches, or {@code null}
+	 * 	if {@code sites} is empty
+	 * @throws CoreException
+	 */
+	static /* NULLABLE */ CompilationUnitChange createChange(
+			ICompilationUnit unit, CompilationUnit ast, List<Site> sites) throws CoreException {
+		if (sites.isEmpty()) return null;
+
+		// All switches of the unit share the same rewrites
+		ASTRewrite rew = ASTRewrite.create(ast.getAST());
+		ImportRewrite imports = ImportRewrite.create(ast, true);
+		for (Site site : sites) {
+			QuickAssistHierarchySwitch.getHierarchySwitchRewrite(
+				site.ss, site.config, site.kinds, (AST a) -> a.newBreakStatement(), false, rew, imports);
+		}
+		if (Metrics.getDefault().isLogging())
+			Metrics.log("Generating " + sites.size() + " switches in " + unit.getElementName());
+
+		MultiTextEdit edit = new MultiTextEdit();
+		long start = Metrics.start();
+		edit.addChild(rew.rewriteAST());
+		Metrics.record(Phase.REWRITE, start);
+		if (imports.hasRecordedChanges()) {
+			start = Metrics.start();
+			edit.addChild(imports.rewriteImports(null));
+			Metrics.record(Phase.IMPORTS, start);
+		}
+		CompilationUnitChange change = new CompilationUnitChange(unit.getElementName(), unit);
+		change.setEdit(edit);
+		return change;
+	}
+
+	/**
+	 * Parses the given units in batches, and calls the given requestor
+	 * for each of them.
+	 *
+	 * @param project	the project of all units
+	 * @param units
+	 * @param requestor
+	 * @param monitor
+	 */
+	static void parse(IJavaProject project, List<ICompilationUnit> units,
+			ASTRequestor requestor, IProgressMonitor monitor) {
+		SubMonitor sub = SubMonitor.convert(monitor, units.size());
+		for (int i = 0; i < units.size(); i += BATCH_SIZE) {
+			if (sub.isCanceled()) throw new OperationCanceledException();
+			List<ICompilationUnit> batch = units.subList(i, Math.min(i + BATCH_SIZE, units.size()));
+			parseBatch(project, batch, requestor, sub.newChild(batch.size()));
+		}
+	}
+
+	/**
+	 * Parses the given units all at once, and calls the given
+	 * requestor for each of them. Batches of different units can
+	 * be parsed concurrently.
+	 *
+	 * @param project	the project of all units
+	 * @param batch
+	 * @param requestor
+	 * @param monitor
+	 */
+	static void parseBatch(IJavaProject project, List<ICompilationUnit> batch,
+			ASTRequestor requestor, IProgressMonitor monitor) {
+		ASTParser parser = ASTParser.newParser(AST.getJLSLatest());
+		parser.setProject(project);
+		parser.setResolveBindings(true);
+		parser.setKind(ASTParser.K_COMPILATION_UNIT);
+		parser.createASTs(batch.toArray(new ICompilationUnit[batch.size()]),
+			new String[0], requestor, monitor);
+	}
+
+	/**
+	 * @param name		the name of the resulting change
+	 * @param units
+	 * @param monitor
+	 * @return a change generating all the hierarchy switches in
+	 * 	the given units, ready to be performed
+	 * @throws CoreException
+	 */
+	static CompositeChange createChange(String name, List<ICompilationUnit> units,
+			IProgressMonitor monitor) throws CoreException {
+		final CompositeChange composite = new CompositeChange(name);
+		Map<IJavaProject, List<ICompilationUnit>> projects = byProject(units);
+		int total = 0;
+		for (List<ICompilationUnit> l : projects.values())
+			total += l.size();
+		SubMonitor sub = SubMonitor.convert(monitor, name, total + 1);
+
+		final CoreException[] failure = new CoreException[1];
+		for (Map.Entry<IJavaProject, List<ICompilationUnit>> e : projects.entrySet()) {
+			parse(e.getKey(), e.getValue(), new ASTRequestor() {
+				@Override
+				public void acceptAST(ICompilationUnit source, CompilationUnit ast) {
+					if (failure[0] != null) return;
+					try {
+						CompilationUnitChange change = createChange(source, ast);
+						if (change != null) composite.add(change);
+					} catch (CoreException ex) {
+						failure[0] = ex;
+					}
+				}
+			}, sub.newChild(e.getValue().size()));
+			if (failure[0] != null) throw failure[0];
+		}
+		composite.initializeValidationData(sub.newChild(1));
+		return composite;
+	}
+}
@@ -0,0 +1,193 @@
+package org.stekikun.hierarchyquickassist;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jdt.core.ICompilationUnit;
+import org.eclipse.jdt.core.IJavaProject;
+import org.eclipse.jdt.core.IType;
+import org.eclipse.jdt.core.JavaModelException;
+import org.eclipse.jdt.core.dom.AST;
+import org.eclipse.jdt.core.dom.ASTParser;
+import org.eclipse.jdt.core.dom.CompilationUnit;
+import org.eclipse.jdt.core.dom.IBinding;
+import org.eclipse.jdt.core.dom.ITypeBinding;
+import org.stekikun.hierarchyquickassist.Metrics.Phase;
+import org.stekikun.hierarchyquickassist.QuickAssistHierarchySwitch.DispatcherKind;
+import org.stekikun.hierarchyquickassist.QuickAssistHierarchySwitch.HierarchyConfig;
+
+/**
+ * A hierarchy along with its sub-hierarchies, i.e. the witness classes
+ * of its kinds which are themselves annotated with {@code @Hierarchy},
+ * recursively down to the leaves:
+ * <pre>
+ * &#64;Hierarchy("getKind") class Base            Kind  { A, B, C }
+ * &#64;Hierarchy(value="ckind", field=true)
+ * class C extends Base                      CKind { CA, CB, CC }
+ * </pre>
+ * <p>
+ * The tree is explored breadth-first, and the bindings of all the
+ * witness classes of one level are resolved at once, by a single
+ * batched parse, rather than once per sub-hierarchy. So are the
+ * enums of the sub-hierarchies of one level, when their kinds must
+ * be parsed.
+ */
+final class HierarchyTree {
+	/** The configuration of this hierarchy, with the receiver at the root only */
+	final HierarchyConfig config;
+	/** The kinds of this hierarchy */
+	final List<HierarchyKind> kinds;
+	// The level of the tree at which this hierarchy was first found
+	private final int depth;
+	// The sub-hierarchies, by the qualified name of their base type
+	private final Map<String, HierarchyTree> children = new HashMap<>();
+
+	private HierarchyTree(HierarchyConfig config, List<HierarchyKind> kinds, int depth) {
+		this.config = config;
+		this.kinds = kinds;
+		this.depth = depth;
+	}
+
+	/**
+	 * @param kind	one of the kinds of this hierarchy
+	 * @return the sub-hierarchy whose base type is the witness
+	 * 	of the given kind, or {@code null} if there is none
+	 */
+	/* NULLABLE */ HierarchyTree childOf(HierarchyKind kind) {
+		return children.get(kind.witness);
+	}
+
+	/**
+	 * This only asks the index, and is cheap enough to decide whether
+	 * a full hierarchy switch should be proposed at all. Sub-hierarchies
+	 * declared in binary types are not indexed, and are only found by
+	 * {@link #of}.
+	 *
+	 * @param kinds	the kinds of a hierarchy
+	 * @return whether some witness of the given kinds may be the base
+	 * 	of a sub-hierarchy
+	 */
+	static boolean mayHaveChildren(List<HierarchyKind> kinds) {
+		HierarchyIndex index = HierarchyIndex.getDefault();
+		for (HierarchyKind kind : kinds) {
+			if (index.mayDeclare(kind.witness))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Explores the sub-hierarchies of the given hierarchy. Only the
+	 * witness classes which are annotated themselves are followed,
+	 * sub-hierarchies using an external dispatcher are ignored since
+	 * nothing ties them to their base type. A type appearing several
+	 * times in the tree is only explored once, and is only nested below
+	 * the hierarchies found before it, so the tree has no cycle even if
+	 * the hierarchies are circular.
+	 *
+	 * @param cu		the compilation unit where the hierarchy switch is
+	 * @param astRoot	the AST of {@code cu}
+	 * @param config	the configuration of the hierarchy
+	 * @param kinds		the kinds of the hierarchy
+	 * @return the tree of the given hierarchy
+	 */
+	static HierarchyTree of(ICompilationUnit cu, CompilationUnit astRoot,
+			HierarchyConfig config, List<HierarchyKind> kinds) {
+		final IJavaProject project = cu.getJavaProject();
+		final HierarchyIndex index = HierarchyIndex.getDefault();
+		final HierarchyTree root = new HierarchyTree(config, kinds, 0);
+		// The trees found so far, and null for types which aren't hierarchies
+		final Map<String, HierarchyTree> explored = new HashMap<>();
+		// A witness of the root's own base type is no sub-hierarchy
+		ITypeBinding base = HierarchyDispatchTable.baseTypeOf(config);
+		if (base != null)
+			explored.put(base.getQualifiedName(), root);
+
+		List<HierarchyTree> level = Collections.singletonList(root);
+		while (!level.isEmpty()) {
+			// The witness classes of this level which remain to be explored
+			Map<String, IType> witnesses = new LinkedHashMap<>();
+			for (HierarchyTree tree : level) {
+				for (HierarchyKind kind : tree.kinds) {
+					if (explored.containsKey(kind.witness) || witnesses.containsKey(kind.witness))
+						continue;
+					IType type = findType(project, kind.witness);
+					// Source types can be filtered with the index
+					if (type == null || (!type.isBinary() && !index.mayDeclare(kind.witness))) {
+						explored.put(kind.witness, null);
+						continue;
+					}
+					witnesses.put(kind.witness, type);
+				}
+			}
+
+			// Resolve them all at once
+			List<HierarchyTree> next = new ArrayList<>();
+			if (!witnesses.isEmpty()) {
+				long start = Metrics.start();
+				ASTParser parser = ASTParser.newParser(AST.getJLSLatest());
+				parser.setProject(project);
+				IBinding[] bindings = parser.createBindings(
+					witnesses.values().toArray(new IType[witnesses.size()]), null);
+				Metrics.record(Phase.BINDING_RESOLUTION, start);
+
+				// Then the configurations and kinds of the sub-hierarchies
+				Map<String, HierarchyConfig> configs = new LinkedHashMap<>();
+				int i = 0;
+				for (String witness : witnesses.keySet()) {
+					IBinding binding = bindings[i++];
+					HierarchyConfig subConfig = binding == null ? null :
+						QuickAssistHierarchySwitch.getHierarchyConfig(binding, null);
+					if (subConfig != null && subConfig.dispatcherKind != DispatcherKind.EXTERNAL)
+						configs.put(witness, subConfig);
+					else
+						explored.put(witness, null);
+				}
+				QuickAssistHierarchySwitch.prefetchEnumKinds(cu, new ArrayList<>(configs.values()));
+				for (Map.Entry<String, HierarchyConfig> e : configs.entrySet()) {
+					HierarchyTree child = explore(cu, astRoot, e.getKey(), e.getValue(),
+						level.get(0).depth + 1);
+					explored.put(e.getKey(), child);
+					if (child != null) next.add(child);
+				}
+			}
+
+			// Link this level to the next one
+			for (HierarchyTree tree : level) {
+				for (HierarchyKind kind : tree.kinds) {
+					HierarchyTree child = explored.get(kind.witness);
+					if (child != null && child.depth > tree.depth)
+						tree.children.put(kind.witness, child);
+				}
+			}
+			level = next;
+		}
+		return root;
+	}
+
+	private static /* NULLABLE */ HierarchyTree explore(ICompilationUnit cu,
+			CompilationUnit astRoot, String witness, HierarchyConfig config, int depth) {
+		// The kinds were prefetched, or are read from the AST at hand
+		List<HierarchyKind> kinds = QuickAssistHierarchySwitch.getEnumKinds(cu, astRoot, config);
+		if (kinds == null) {
+			Metrics.err("Could not find enum declaration for sub-hierarchy " + witness);
+			return null;
+		}
+		if (Metrics.getDefault().isLogging())
+			Metrics.log("Found sub-hierarchy " + witness + " with " + kinds.size() + " kinds");
+		return new HierarchyTree(config, kinds, depth);
+	}
+
+	private static /* NULLABLE */ IType findType(IJavaProject project, String name) {
+		try {
+			return project.findType(name);
+		} catch (JavaModelException e) {
+			Metrics.err("Could not find witness class " + name + ": " + e.getMessage());
+			return null;
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package org.stekikun.hierarchyquickassist;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.jdt.core.dom.CompilationUnit;
+import org.eclipse.jdt.core.dom.Statement;
+import org.eclipse.jdt.core.dom.rewrite.ImportRewrite;
+import org.eclipse.jdt.core.dom.rewrite.ImportRewrite.ImportRewriteContext;
+import org.stekikun.hierarchyquickassist.Metrics.Phase;
+import org.stekikun.hierarchyquickassist.QuickAssistHierarchySwitch.HierarchyConfig;
+
+/**
+ * The import decisions for the types a hierarchy switch refers to,
+ * i.e. the witness classes of its kinds and its unmatched exception.
+ * Whether each of them can be imported, or must be qualified because
+ * its simple name is already taken, is settled in a single pass over
+ * all of them, and the plan is then replayed in the import rewrite
+ * of each proposal generated for the same switch. The plan is part of
+ * the {@link SwitchPlan}, which the proposals share through a single
+ * {@link SwitchPlan.Shared}, so it is only computed once, when the first
+ * of them is previewed or applied.
+ * <p>
+ * Types which are not in the plan, e.g. the witnesses of the
+ * sub-hierarchies of a full switch, are still decided one by one.
+ */
+final class ImportPlan {
+	// The results of ImportRewriteContext#findInContext, by qualified name
+	private final Map<String, Integer> decisions;
+
+	private ImportPlan(Map<String, Integer> decisions) {
+		this.decisions = decisions;
+	}
+
+	/**
+	 * Settles the imports of the types referred to by a hierarchy switch.
+	 *
+	 * @param statement	the switch statement to replace
+	 * @param config	the configuration of the hierarchy
+	 * @param kinds		the kinds of the hierarchy
+	 * @return the plan for the given switch
+	 */
+	static ImportPlan of(Statement statement, HierarchyConfig config, List<HierarchyKind> kinds) {
+		long start = Metrics.start();
+		Set<String> names = new LinkedHashSet<>();
+		for (HierarchyKind kind : kinds)
+			names.add(kind.witness);
+		if (config.unmatched != null)
+			names.add(config.unmatched);
+
+		ImportRewrite imports = ImportRewrite.create((CompilationUnit) statement.getRoot(), true);
+		@SuppressWarnings("restriction")
+		final ImportRewriteContext context =
+			new org.eclipse.jdt.internal.corext.codemanipulation.
+				ContextSensitiveImportRewriteContext(statement, imports);
+		// The planned types by simple name, to detect clashes among them
+		Map<String, String> claimed = new HashMap<>();
+		Map<String, Integer> decisions = new HashMap<>();
+		for (String name : names) {
+			int sep = name.lastIndexOf('.');
+			String simpleName = name.substring(sep + 1);
+			int res = context.findInContext(
+				sep < 0 ? "" : name.substring(0, sep), simpleName, ImportRewriteContext.KIND_TYPE);
+			if (res != ImportRewriteContext.RES_NAME_CONFLICT) {
+				String other = claimed.putIfAbsent(simpleName, name);
+				if (other != null)
+					res = ImportRewriteContext.RES_NAME_CONFLICT;
+			}
+			decisions.put(name, res);
+		}
+		Metrics.record(Phase.IMPORT_PLAN, start);
+		if (Metrics.getDefault().isLogging())
+			Metrics.log("Planned imports for " + decisions.size() + " types");
+		return new ImportPlan(decisions);
+	}
+
+	/**
+	 * @param qualifiedName	the qualified name of a type
+	 * @return the name the given type should be referred to with,
+	 * 	or {@code null} if it is not in this plan
+	 */
+	/* NULLABLE */ String typeNameOf(String qualifiedName) {
+		Integer res = decisions.get(qualifiedName);
+		if (res == null) return null;
+		return res == ImportRewriteContext.RES_NAME_CONFLICT ?
+			qualifiedName : qualifiedName.substring(qualifiedName.lastIndexOf('.') + 1);
+	}
+
+	/**
+	 * @param qualifiedName	the qualified name of a type
+	 * @return whether the given type is in this plan, and
+	 * 	must be imported to be referred to by its simple name
+	 */
+	boolean needsImport(String qualifiedName) {
+		Integer res = decisions.get(qualifiedName);
+		return res != null && res == ImportRewriteContext.RES_NAME_UNKNOWN;
+	}
+
+	/**
+	 * @param fallback	the context deciding the imports of the
+	 * 	types which are not in this plan
+	 * @return a context answering with this plan for the planned types
+	 */
+	ImportRewriteContext contextFor(final ImportRewriteContext fallback) {
+		return new ImportRewriteContext() {
+			@Override
+			public int findInContext(String qualifier, String name, int kind) {
+				if (kind == KIND_TYPE) {
+					Integer res = decisions.get(qualifier.isEmpty() ? name : qualifier + '.' + name);
+					if (res != null) return res;
+				}
+				return fallback.findInContext(qualifier, name, kind);
+			}
+		};
+	}
+}
@@ -0,0 +1,476 @@
+package org.stekikun.hierarchyquickassist;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+
+/**
+ * Latency histograms, allocated bytes and counters for the phases of
+ * the quick-assist, exposed through JMX (see {@link MetricsMXBean}),
+ * along with an optional rolling log file for messages and slow phases.
+ * <p>
+ * Recording is cheap and lock-free, so phases are always measured.
+ * Allocations are measured with the per-thread allocation counter of
+ * {@code com.sun.management.ThreadMXBean}, when the JVM supports it. The log is off by default, it is turned on with the
+ * system property {@value #LOG_PROPERTY} set to {@code true}, or through
+ * JMX; messages which take some work to build should only be built if
+ * {@code Metrics.getDefault().isLogging()}.
+ */
+final class Metrics implements MetricsMXBean {
+
+	/** The name under which the metrics are registered */
+	static final String OBJECT_NAME = "org.stekikun.hierarchyquickassist:type=Metrics";
+	/** The system property enabling the rolling log at startup */
+	static final String LOG_PROPERTY = "org.stekikun.hierarchyquickassist.log";
+
+	/** Phases taking longer than this are logged */
+	private static final long SLOW_NANOS = 50 * 1000000L;
+	/** The log file is rolled over when it gets larger than this */
+	private static final long MAX_LOG_SIZE = 1 << 20;
+	/** The number of buckets of the histograms, the last one is unbounded */
+	private static final int BUCKETS = 32;
+	/** The maximal nesting of phases whose allocations are measured */
+	private static final int MAX_NESTING = 16;
+
+	/**
+	 * The measured phases of the quick-assist
+	 */
+	static enum Phase {
+		/** Resolving the bindings of the switch expression */
+		BINDING_RESOLUTION,
+		/** Looking for the hierarchy annotation of a binding */
+		ANNOTATION_LOOKUP,
+		/** Interpreting a hierarchy annotation */
+		CONFIG,
+		/** Finding the kinds of a hierarchy, whichever way */
+		ENUM_KINDS,
+		/** Parsing another compilation unit to find the kinds */
+		ENUM_PARSE,
+		/** Decoding the class file of a binary enum to find the kinds */
+		ENUM_DECODE,
+		/** Building the switch and rewriting the AST */
+		REWRITE,
+		/** Rewriting the imports */
+		IMPORTS,
+		/** Planning the imports shared by the proposals for a switch */
+		IMPORT_PLAN;
+	}
+
+	/**
+	 * The events counted by the quick-assist
+	 */
+	static enum Counter {
+		PROPOSALS,
+		CONFIG_CACHE_HITS,
+		CONFIG_CACHE_MISSES,
+		KINDS_CACHE_HITS,
+		KINDS_CACHE_MISSES,
+		SHARED_AST_HITS,
+		STORE_HITS,
+		INDEX_FILTERED,
+		KINDS_DEFERRED,
+		ERRORS;
+	}
+
+	private static final class Stats {
+		final AtomicLong count = new AtomicLong();
+		final AtomicLong totalNanos = new AtomicLong();
+		final AtomicLong maxNanos = new AtomicLong();
+		final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		// The bytes allocated by the runs whose allocations were measured
+		final AtomicLong allocCount = new AtomicLong();
+		final AtomicLong totalBytes = new AtomicLong();
+
+		void record(long nanos, long bytes) {
+			count.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+			if (bytes >= 0) {
+				allocCount.incrementAndGet();
+				totalBytes.addAndGet(bytes);
+			}
+			long max;
+			do {
+				max = maxNanos.get();
+			} while (nanos > max && !maxNanos.compareAndSet(max, nanos));
+			long micros = nanos / 1000;
+			int bucket = 64 - Long.numberOfLeadingZeros(micros);
+			buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+		}
+
+		void reset() {
+			count.set(0);
+			totalNanos.set(0);
+			maxNanos.set(0);
+			allocCount.set(0);
+			totalBytes.set(0);
+			for (int i = 0; i < BUCKETS; ++i)
+				buckets.set(i, 0);
+		}
+
+		/**
+		 * @param p	a fraction between 0 and 1
+		 * @return an upper bound of the given percentile, in microseconds
+		 */
+		long percentileMicros(double p) {
+			long n = count.get();
+			if (n == 0) return 0;
+			long threshold = (long) Math.ceil(p * n);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS - 1; ++i) {
+				seen += buckets.get(i);
+				if (seen >= threshold) return 1L << i;
+			}
+			return maxNanos.get() / 1000;
+		}
+	}
+
+	/**
+	 * Reads the bytes allocated by the current thread, if the JVM can.
+	 * {@code com.sun.management} is not part of the execution environment
+	 * of the plug-in, so it is only reached through a method handle.
+	 */
+	private static final class Allocations {
+		// (ThreadMXBean, long) -> long, or null if not supported
+		private static final /* NULLABLE */ MethodHandle allocatedBytes = allocatedBytes();
+		private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+		private static /* NULLABLE */ MethodHandle allocatedBytes() {
+			try {
+				Class<?> cls = Class.forName("com.sun.management.ThreadMXBean");
+				ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+				if (!cls.isInstance(bean)) return null;
+				MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+				MethodHandle supported = lookup.findVirtual(cls,
+					"isThreadAllocatedMemorySupported", MethodType.methodType(boolean.class));
+				MethodHandle enabled = lookup.findVirtual(cls,
+					"isThreadAllocatedMemoryEnabled", MethodType.methodType(boolean.class));
+				MethodHandle enable = lookup.findVirtual(cls,
+					"setThreadAllocatedMemoryEnabled", MethodType.methodType(void.class, boolean.class));
+				if (!(boolean) supported.invoke(bean)) return null;
+				if (!(boolean) enabled.invoke(bean))
+					enable.invoke(bean, true);
+				return lookup.findVirtual(cls, "getThreadAllocatedBytes",
+						MethodType.methodType(long.class, long.class))
+					.asType(MethodType.methodType(long.class, ThreadMXBean.class, long.class));
+			} catch (Throwable e) {
+				return null;
+			}
+		}
+
+		/**
+		 * @return the bytes allocated by the current thread so far,
+		 * 	or -1 if they cannot be measured
+		 */
+		static long current() {
+			if (allocatedBytes == null) return -1;
+			try {
+				return (long) allocatedBytes.invokeExact(threads, Thread.currentThread().getId());
+			} catch (Throwable e) {
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * The start times and allocated bytes of the phases running in a
+	 * thread, innermost last, so that {@link #record} can tell the bytes
+	 * allocated by a phase from its start time alone
+	 */
+	private static final class Running {
+		final long[] starts = new long[MAX_NESTING];
+		final long[] bytes = new long[MAX_NESTING];
+		int size = 0;
+	}
+
+	private static final ThreadLocal<Running> running = ThreadLocal.withInitial(Running::new);
+	private static volatile boolean allocations = true;
+
+	private static final Metrics INSTANCE = new Metrics();
+
+	private final Stats[] phases = new Stats[Phase.values().length];
+	private final AtomicLongArray counters = new AtomicLongArray(Counter.values().length);
+
+	private volatile boolean logging = false;
+	// The log is only written under the instance's lock
+	private /* NULLABLE */ File logFile = null;
+	private /* NULLABLE */ Writer logWriter = null;
+	private long logSize = 0;
+
+	private Metrics() {
+		for (int i = 0; i < phases.length; ++i)
+			phases[i] = new Stats();
+	}
+
+	/**
+	 * @return the metrics of the plug-in
+	 */
+	static Metrics getDefault() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @return the start time of a phase, to pass to {@link #record}
+	 */
+	static long start() {
+		long start = System.nanoTime();
+		if (allocations) {
+			long bytes = Allocations.current();
+			if (bytes < 0) {
+				allocations = false;
+				return start;
+			}
+			Running r = running.get();
+			// Phases whose end was not recorded are dropped along the way
+			if (r.size == MAX_NESTING) r.size = 0;
+			r.starts[r.size] = start;
+			r.bytes[r.size++] = bytes;
+		}
+		return start;
+	}
+
+	/**
+	 * Records that the given phase ran since {@code start}
+	 *
+	 * @param phase
+	 * @param start	the result of {@link #start()} when the phase started
+	 */
+	static void record(Phase phase, long start) {
+		long nanos = System.nanoTime() - start;
+		long bytes = -1;
+		if (allocations) {
+			Running r = running.get();
+			for (int i = r.size - 1; i >= 0; --i) {
+				if (r.starts[i] != start) continue;
+				bytes = Allocations.current() - r.bytes[i];
+				r.size = i;
+				break;
+			}
+		}
+		INSTANCE.phases[phase.ordinal()].record(nanos, bytes);
+		if (nanos > SLOW_NANOS && INSTANCE.logging)
+			INSTANCE.write("SLOW " + name(phase) + " took " + nanos / 1000000 + " ms"
+				+ (bytes >= 0 ? " and allocated " + bytes / 1024 + " KB" : ""));
+	}
+
+	/**
+	 * @param counter	the counter to increment
+	 */
+	static void count(Counter counter) {
+		INSTANCE.counters.incrementAndGet(counter.ordinal());
+	}
+
+	/**
+	 * Logs a trace message, if logging is enabled
+	 *
+	 * @param s
+	 */
+	static void log(String s) {
+		if (INSTANCE.logging) INSTANCE.write(s);
+	}
+
+	/**
+	 * Counts and logs an error, typically a misconfigured hierarchy
+	 *
+	 * @param s
+	 */
+	static void err(String s) {
+		count(Counter.ERRORS);
+		if (INSTANCE.logging) INSTANCE.write("ERROR " + s);
+	}
+
+	/**
+	 * Registers the metrics in the platform MBean server,
+	 * and starts logging in the given file if required
+	 *
+	 * @param file	the log file, or {@code null} if there is none
+	 */
+	void register(/* NULLABLE */ File file) {
+		synchronized (this) {
+			logFile = file;
+		}
+		setLogging(Boolean.getBoolean(LOG_PROPERTY));
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!server.isRegistered(name))
+				server.registerMBean(this, name);
+		} catch (JMException e) {
+			Activator.getDefault().getLog().log(
+				new Status(IStatus.WARNING, Activator.PLUGIN_ID, "Could not register metrics", e));
+		}
+	}
+
+	/**
+	 * Unregisters the metrics, and closes the log file
+	 */
+	void unregister() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (server.isRegistered(name))
+				server.unregisterMBean(name);
+		} catch (JMException e) {
+			// Going away anyway
+		}
+		setLogging(false);
+		synchronized (this) {
+			logFile = null;
+		}
+	}
+
+	private static String name(Enum<?> e) {
+		return e.name().toLowerCase(Locale.ROOT);
+	}
+
+	private synchronized void write(String s) {
+		if (!logging || logFile == null) return;
+		try {
+			if (logWriter == null || logSize > MAX_LOG_SIZE) {
+				if (logWriter != null) {
+					// Roll over, keeping only the previous log
+					logWriter.close();
+					File old = new File(logFile.getPath() + ".1");
+					old.delete();
+					logFile.renameTo(old);
+				}
+				logWriter = new OutputStreamWriter(
+					new FileOutputStream(logFile, true), StandardCharsets.UTF_8);
+				logSize = logFile.length();
+			}
+			String line = String.format("%tF %<tT.%<tL [%s] %s%n",
+				System.currentTimeMillis(), Thread.currentThread().getName(), s);
+			logWriter.write(line);
+			logWriter.flush();
+			logSize += line.length();
+		} catch (IOException e) {
+			// Do not insist
+			logging = false;
+		}
+	}
+
+	@Override
+	public Map<String, Long> getPhaseCounts() {
+		Map<String, Long> res = new LinkedHashMap<>();
+		for (Phase phase : Phase.values())
+			res.put(name(phase), phases[phase.ordinal()].count.get());
+		return res;
+	}
+
+	@Override
+	public Map<String, Long> getPhaseMeanMicros() {
+		Map<String, Long> res = new LinkedHashMap<>();
+		for (Phase phase : Phase.values()) {
+			Stats stats = phases[phase.ordinal()];
+			long count = stats.count.get();
+			res.put(name(phase), count == 0 ? 0 : stats.totalNanos.get() / count / 1000);
+		}
+		return res;
+	}
+
+	@Override
+	public Map<String, Long> getPhaseMaxMicros() {
+		Map<String, Long> res = new LinkedHashMap<>();
+		for (Phase phase : Phase.values())
+			res.put(name(phase), phases[phase.ordinal()].maxNanos.get() / 1000);
+		return res;
+	}
+
+	@Override
+	public Map<String, Long> getPhaseMeanAllocatedBytes() {
+		Map<String, Long> res = new LinkedHashMap<>();
+		for (Phase phase : Phase.values()) {
+			Stats stats = phases[phase.ordinal()];
+			long count = stats.allocCount.get();
+			res.put(name(phase), count == 0 ? -1 : stats.totalBytes.get() / count);
+		}
+		return res;
+	}
+
+	@Override
+	public Map<String, long[]> getPhaseHistograms() {
+		Map<String, long[]> res = new LinkedHashMap<>();
+		for (Phase phase : Phase.values()) {
+			AtomicLongArray buckets = phases[phase.ordinal()].buckets;
+			long[] histogram = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; ++i)
+				histogram[i] = buckets.get(i);
+			res.put(name(phase), histogram);
+		}
+		return res;
+	}
+
+	@Override
+	public Map<String, Long> getCounters() {
+		Map<String, Long> res = new LinkedHashMap<>();
+		for (Counter counter : Counter.values())
+			res.put(name(counter), counters.get(counter.ordinal()));
+		return res;
+	}
+
+	@Override
+	public boolean isLogging() {
+		return logging;
+	}
+
+	@Override
+	public synchronized void setLogging(boolean logging) {
+		this.logging = logging;
+		if (!logging && logWriter != null) {
+			try {
+				logWriter.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+			logWriter = null;
+		}
+	}
+
+	@Override
+	public void reset() {
+		for (Stats stats : phases)
+			stats.reset();
+		for (int i = 0; i < counters.length(); ++i)
+			counters.set(i, 0);
+	}
+
+	@Override
+	public String dump() {
+		StringBuilder buf = new StringBuilder();
+		buf.append(String.format("%-20s %8s %10s %10s %10s %10s %10s %12s%n",
+			"phase", "count", "mean(us)", "p50(us)", "p90(us)", "p99(us)", "max(us)", "alloc(B)"));
+		for (Phase phase : Phase.values()) {
+			Stats stats = phases[phase.ordinal()];
+			long count = stats.count.get();
+			long allocCount = stats.allocCount.get();
+			buf.append(String.format("%-20s %8d %10d %10d %10d %10d %10d %12s%n",
+				name(phase), count,
+				count == 0 ? 0 : stats.totalNanos.get() / count / 1000,
+				stats.percentileMicros(0.5), stats.percentileMicros(0.9),
+				stats.percentileMicros(0.99), stats.maxNanos.get() / 1000,
+				allocCount == 0 ? "-" : Long.toString(stats.totalBytes.get() / allocCount)));
+		}
+		for (Counter counter : Counter.values())
+			buf.append(String.format("%-20s %8d%n", name(counter), counters.get(counter.ordinal())));
+		return buf.toString();
+	}
+}
@@ -0,0 +1,69 @@
+package org.stekikun.hierarchyquickassist;
+
+import java.util.Map;
+
+/**
+ * The management interface of the quick-assist's metrics, registered
+ * in the platform MBean server as {@value Metrics#OBJECT_NAME}, e.g.
+ * for inspection with JConsole or VisualVM.
+ * <p>
+ * Phases and counters are keyed by their lower-case names.
+ */
+public interface MetricsMXBean {
+
+	/**
+	 * @return the number of times each phase ran
+	 */
+	Map<String, Long> getPhaseCounts();
+
+	/**
+	 * @return the mean duration of each phase, in microseconds
+	 */
+	Map<String, Long> getPhaseMeanMicros();
+
+	/**
+	 * @return the longest duration of each phase, in microseconds
+	 */
+	Map<String, Long> getPhaseMaxMicros();
+
+	/**
+	 * @return the mean number of bytes allocated by the thread running
+	 * 	each phase, including nested phases, or -1 if it was not measured
+	 */
+	Map<String, Long> getPhaseMeanAllocatedBytes();
+
+	/**
+	 * @return the duration histogram of each phase, where bucket
+	 * 	{@code i} counts durations below {@code 2^i} microseconds,
+	 * 	and above those counted in bucket {@code i - 1}
+	 */
+	Map<String, long[]> getPhaseHistograms();
+
+	/**
+	 * @return the value of each counter
+	 */
+	Map<String, Long> getCounters();
+
+	/**
+	 * @return whether messages and slow phases are written to the
+	 * 	rolling log file in the plug-in's state location
+	 */
+	boolean isLogging();
+
+	/**
+	 * @param logging
+	 * @see #isLogging()
+	 */
+	void setLogging(boolean logging);
+
+	/**
+	 * Resets all phases and counters
+	 */
+	void reset();
+
+	/**
+	 * @return a human-readable summary of all phases, with
+	 * 	estimated percentiles, and of all counters
+	 */
+	String dump();
+}
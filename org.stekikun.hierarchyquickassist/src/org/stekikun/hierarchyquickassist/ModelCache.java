@@ -0,0 +1,267 @@
+package org.stekikun.hierarchyquickassist;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.core.resources.IResource;
+import org.eclipse.jdt.core.ElementChangedEvent;
+import org.eclipse.jdt.core.ICompilationUnit;
+import org.eclipse.jdt.core.IElementChangedListener;
+import org.eclipse.jdt.core.IJavaElement;
+import org.eclipse.jdt.core.IJavaElementDelta;
+
+/**
+ * A bounded cache of values computed from the sources of
+ * some compilation units, e.g. the kinds of a hierarchy enum
+ * declared in another compilation unit than the one where the
+ * quick-assist is invoked, which otherwise require a separate parse.
+ * <p>
+ * Each entry remembers the compilation units it was computed from,
+ * along with their modification stamps. An entry is dropped as soon
+ * as the stamp of one of these units changes, or as soon as a Java
+ * element delta reports a change in one of them (which also covers
+ * unsaved changes in working copies, via reconciliation). Values
+ * computed from binary types only depend on the classpath, and are
+ * dropped with everything else when a classpath changes.
+ * When the cache is full, the least recently used entry is evicted.
+ * <p>
+ * Values are only softly reachable from the cache, so that the
+ * garbage collector can reclaim them when memory gets tight, in
+ * which case their entries are dropped too.
+ *
+ * @param <V>	the type of cached values
+ */
+final class ModelCache<V> implements IElementChangedListener {
+
+	private final int maxEntries;
+
+	private static final class Entry<V> extends SoftReference<V> {
+		final String key;
+		final String[] unitHandles;
+		final ICompilationUnit[] units;
+		final long[] stamps;
+
+		Entry(String key, ICompilationUnit[] units, V value, ReferenceQueue<? super V> queue) {
+			super(value, queue);
+			this.key = key;
+			this.units = units;
+			this.unitHandles = new String[units.length];
+			this.stamps = new long[units.length];
+			for (int i = 0; i < units.length; ++i) {
+				unitHandles[i] = handleOf(units[i]);
+				stamps[i] = stampOf(units[i]);
+			}
+		}
+
+		Entry(Entry<V> entry, V value, ReferenceQueue<? super V> queue) {
+			super(value, queue);
+			this.key = entry.key;
+			this.unitHandles = entry.unitHandles;
+			this.units = entry.units;
+			this.stamps = entry.stamps;
+		}
+
+		boolean isValid() {
+			for (int i = 0; i < units.length; ++i) {
+				if (stamps[i] != stampOf(units[i])) return false;
+			}
+			return true;
+		}
+
+		boolean dependsOn(String handle) {
+			for (String unitHandle : unitHandles) {
+				if (unitHandle.equals(handle)) return true;
+			}
+			return false;
+		}
+	}
+
+	private final Map<String, Entry<V>> entries;
+	// The entries whose value was reclaimed
+	private final ReferenceQueue<V> reclaimed = new ReferenceQueue<>();
+
+	/**
+	 * @param maxEntries	the maximal number of entries in the cache
+	 */
+	ModelCache(final int maxEntries) {
+		this.maxEntries = maxEntries;
+		// Access-ordered, so that iteration goes from least
+		// to most recently used entry
+		this.entries = new LinkedHashMap<String, Entry<V>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry<V>> eldest) {
+				return size() > ModelCache.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * @param key
+	 * @return the value cached for the given key, or {@code null}
+	 * 	if there is none or if it is out-of-date
+	 */
+	synchronized /* NULLABLE */ V get(String key) {
+		purge();
+		Entry<V> entry = entries.get(key);
+		if (entry == null) return null;
+		V value = entry.get();
+		if (value == null || !entry.isValid()) {
+			entries.remove(key);
+			return null;
+		}
+		return value;
+	}
+
+	/**
+	 * @param key
+	 * @return whether an up-to-date value is cached for the given key
+	 */
+	boolean contains(String key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * Records the value computed for the given key
+	 *
+	 * @param key
+	 * @param value
+	 * @param units	the compilation units the value was computed from
+	 */
+	synchronized void put(String key, V value, ICompilationUnit... units) {
+		purge();
+		entries.put(key, new Entry<V>(key, units, value, reclaimed));
+	}
+
+	/**
+	 * Replaces the value cached for the given key, if any, by a value
+	 * computed from the same compilation units
+	 *
+	 * @param key
+	 * @param value
+	 */
+	synchronized void replace(String key, V value) {
+		Entry<V> entry = entries.get(key);
+		if (entry == null) return;
+		entries.put(key, new Entry<V>(entry, value, reclaimed));
+	}
+
+	/**
+	 * Visits the entries of a cache
+	 *
+	 * @param <V>	the type of cached values
+	 */
+	static interface Visitor<V> {
+		/**
+		 * @param key
+		 * @param value
+		 * @param units		the compilation units the value was computed from
+		 * @param stamps	the modification stamps of {@code units} at the time
+		 */
+		void visit(String key, V value, ICompilationUnit[] units, long[] stamps);
+	}
+
+	/**
+	 * Visits the valid entries, from the most to the least recently used
+	 *
+	 * @param visitor
+	 */
+	synchronized void forEach(Visitor<? super V> visitor) {
+		purge();
+		List<Entry<V>> valid = new ArrayList<>(entries.size());
+		for (Entry<V> entry : entries.values()) {
+			if (entry.isValid()) valid.add(entry);
+		}
+		for (int i = valid.size() - 1; i >= 0; --i) {
+			Entry<V> entry = valid.get(i);
+			V value = entry.get();
+			if (value != null)
+				visitor.visit(entry.key, value, entry.units, entry.stamps);
+		}
+	}
+
+	/**
+	 * Drops all entries
+	 */
+	synchronized void clear() {
+		entries.clear();
+		while (reclaimed.poll() != null) { /* drop */ }
+	}
+
+	// Drops the entries whose value was reclaimed, unless
+	// they were replaced by a new entry since
+	private void purge() {
+		Reference<? extends V> ref;
+		while ((ref = reclaimed.poll()) != null) {
+			Entry<?> entry = (Entry<?>) ref;
+			if (entries.get(entry.key) == entry)
+				entries.remove(entry.key);
+		}
+	}
+
+	private synchronized void evict(ICompilationUnit cu) {
+		final String handle = handleOf(cu);
+		Iterator<Entry<V>> it = entries.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().dependsOn(handle))
+				it.remove();
+		}
+	}
+
+	private static String handleOf(ICompilationUnit cu) {
+		// Working copies and their primary unit share the same entries
+		return cu.getPrimary().getHandleIdentifier();
+	}
+
+	private static long stampOf(ICompilationUnit cu) {
+		IResource res = cu.getResource();
+		if (res == null) return IResource.NULL_STAMP;
+		return res.getModificationStamp();
+	}
+
+	@Override
+	public void elementChanged(ElementChangedEvent event) {
+		synchronized (this) {
+			// Nothing to invalidate, spare the delta traversal
+			if (entries.isEmpty()) return;
+		}
+		visit(event.getDelta());
+	}
+
+	private void visit(IJavaElementDelta delta) {
+		IJavaElement elt = delta.getElement();
+		switch (elt.getElementType()) {
+		case IJavaElement.COMPILATION_UNIT:
+			evict((ICompilationUnit) elt);
+			return;
+		case IJavaElement.JAVA_MODEL:
+		case IJavaElement.JAVA_PROJECT:
+		case IJavaElement.PACKAGE_FRAGMENT_ROOT:
+		case IJavaElement.PACKAGE_FRAGMENT:
+			// Whole containers disappearing or changing their
+			// classpath can change any binding key, just start over
+			if (delta.getKind() == IJavaElementDelta.REMOVED ||
+				(delta.getFlags() & (IJavaElementDelta.F_CLOSED |
+									 IJavaElementDelta.F_CLASSPATH_CHANGED |
+									 IJavaElementDelta.F_REMOVED_FROM_CLASSPATH |
+									 IJavaElementDelta.F_ARCHIVE_CONTENT_CHANGED)) != 0) {
+				clear();
+				return;
+			}
+			for (IJavaElementDelta child : delta.getAffectedChildren())
+				visit(child);
+			return;
+		default:
+			// Deltas below compilation units are reported on
+			// their compilation unit anyway
+			return;
+		}
+	}
+}
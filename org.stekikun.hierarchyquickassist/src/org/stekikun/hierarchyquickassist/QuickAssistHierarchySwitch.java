@@ -1,19 +1,40 @@
 package org.stekikun.hierarchyquickassist;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.function.Function;
 
 import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.jdt.core.Flags;
+import org.eclipse.jdt.core.IClassFile;
 import org.eclipse.jdt.core.ICompilationUnit;
+import org.eclipse.jdt.core.IJavaElement;
+import org.eclipse.jdt.core.IJavaProject;
 import org.eclipse.jdt.core.IType;
+import org.eclipse.jdt.core.JavaCore;
+import org.eclipse.jdt.core.JavaModelException;
 import org.eclipse.jdt.core.dom.AST;
 import org.eclipse.jdt.core.dom.ASTNode;
 import org.eclipse.jdt.core.dom.ASTParser;
+import org.eclipse.jdt.core.dom.ASTRequestor;
 import org.eclipse.jdt.core.dom.Block;
+import org.eclipse.jdt.core.dom.BodyDeclaration;
 import org.eclipse.jdt.core.dom.CastExpression;
 import org.eclipse.jdt.core.dom.ChildListPropertyDescriptor;
 import org.eclipse.jdt.core.dom.ClassInstanceCreation;
 import org.eclipse.jdt.core.dom.CompilationUnit;
-import org.eclipse.jdt.core.dom.EnumConstantDeclaration;
 import org.eclipse.jdt.core.dom.EnumDeclaration;
 import org.eclipse.jdt.core.dom.Expression;
 import org.eclipse.jdt.core.dom.FieldAccess;
@@ -26,42 +47,49 @@ import org.eclipse.jdt.core.dom.ITypeBinding;
 import org.eclipse.jdt.core.dom.IVariableBinding;
 import org.eclipse.jdt.core.dom.MethodDeclaration;
 import org.eclipse.jdt.core.dom.MethodInvocation;
+import org.eclipse.jdt.core.dom.Modifier;
 import org.eclipse.jdt.core.dom.Modifier.ModifierKeyword;
 import org.eclipse.jdt.core.dom.Name;
-import org.eclipse.jdt.core.dom.NameQualifiedType;
 import org.eclipse.jdt.core.dom.PrimitiveType;
-import org.eclipse.jdt.core.dom.QualifiedName;
-import org.eclipse.jdt.core.dom.QualifiedType;
 import org.eclipse.jdt.core.dom.ReturnStatement;
-import org.eclipse.jdt.core.dom.SimpleName;
-import org.eclipse.jdt.core.dom.SimpleType;
 import org.eclipse.jdt.core.dom.Statement;
 import org.eclipse.jdt.core.dom.StructuralPropertyDescriptor;
+import org.eclipse.jdt.core.dom.SimpleName;
+import org.eclipse.jdt.core.dom.SingleVariableDeclaration;
 import org.eclipse.jdt.core.dom.SwitchCase;
 import org.eclipse.jdt.core.dom.SwitchStatement;
 import org.eclipse.jdt.core.dom.ThrowStatement;
 import org.eclipse.jdt.core.dom.Type;
-import org.eclipse.jdt.core.dom.TypeLiteral;
+import org.eclipse.jdt.core.dom.TypePattern;
 import org.eclipse.jdt.core.dom.VariableDeclarationFragment;
 import org.eclipse.jdt.core.dom.VariableDeclarationStatement;
 import org.eclipse.jdt.core.dom.rewrite.ASTRewrite;
 import org.eclipse.jdt.core.dom.rewrite.ImportRewrite;
 import org.eclipse.jdt.core.dom.rewrite.ImportRewrite.ImportRewriteContext;
 import org.eclipse.jdt.core.dom.rewrite.ListRewrite;
+import org.eclipse.jdt.core.manipulation.SharedASTProviderCore;
 import org.eclipse.jdt.ui.text.java.IInvocationContext;
 import org.eclipse.jdt.ui.text.java.IJavaCompletionProposal;
 import org.eclipse.jdt.ui.text.java.IProblemLocation;
 import org.eclipse.jdt.ui.text.java.IQuickAssistProcessor;
-import org.eclipse.jdt.ui.text.java.correction.ASTRewriteCorrectionProposal;
+import org.eclipse.jdt.ui.text.java.correction.CUCorrectionProposal;
+import org.eclipse.jface.text.IDocument;
 import org.eclipse.jface.text.ITextViewer;
 import org.eclipse.jface.viewers.StyledString;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.text.edits.TextEdit;
+import org.eclipse.ui.PlatformUI;
+import org.stekikun.hierarchyquickassist.Metrics.Counter;
+import org.stekikun.hierarchyquickassist.Metrics.Phase;
 
 public class QuickAssistHierarchySwitch implements IQuickAssistProcessor {
 
 	@Override
 	public boolean hasAssists(IInvocationContext context) throws CoreException {
-		ASTNode coveredNode = context.getCoveringNode();
-		return coveredNode != null;
+		// Purely syntactic, no binding must be resolved here
+		ASTNode coveringNode = context.getCoveringNode();
+		return findSwitchStatement(coveringNode) != null ||
+			HierarchyDispatcher.findEnumDeclaration(coveringNode) != null;
 	}
 
 	@Override
@@ -111,56 +139,355 @@ public class QuickAssistHierarchySwitch implements IQuickAssistProcessor {
 		// hierarchy switch
 		IJavaCompletionProposal[] hierSwitch = getHierarchySwitchProposals(context);
 		
-		if (hierSwitch == null) 
-			return new IJavaCompletionProposal[] { };
+		if (hierSwitch == null) {
+			// Otherwise maybe the proposal generating a dispatcher for an enum
+			EnumDeclaration decl = HierarchyDispatcher.findEnumDeclaration(context.getCoveringNode());
+			IJavaCompletionProposal dispatcher = decl == null ? null :
+				HierarchyDispatcher.getDispatcherProposal(context.getCompilationUnit(), decl);
+			if (dispatcher == null)
+				return new IJavaCompletionProposal[] { };
+			Metrics.count(Counter.PROPOSALS);
+			return new IJavaCompletionProposal[] { dispatcher };
+		}
 		else
 			return hierSwitch;
 	}
 	
-	private static boolean logging = false;
-	private static void log(String s) {
-		if (logging) System.out.println(s);
-	}
-	private static void err(String s) {
-		System.err.println(s);
-	}
+	/** Kinds of the enums declared in other compilation units, see {@link #enumKindsKeyOf} */
+	static final ModelCache<List<HierarchyKind>> enumKindsCache = new ModelCache<>(64);
+	/** Descriptions of the interpreted hierarchies, see {@link HierarchyConfig#keyOf} */
+	static final ModelCache<HierarchyDescriptor> descriptorCache = new ModelCache<>(256);
 	
 	private static /* NULLABLE */ 
 		IJavaCompletionProposal[]
 		getHierarchySwitchProposals(IInvocationContext context) {
-		ASTNode coveringNode = context.getCoveringNode();
-		if (coveringNode == null) return null;
+		SwitchStatement ss = findSwitchStatement(context.getCoveringNode());
+		if (ss == null) return null;
 		
-		// Is it a switch statement?
-		if (coveringNode.getNodeType() != ASTNode.SWITCH_STATEMENT) {
-			// Or maybe is it the expression in a switch statement?
-			// (or a sub-expression thereof)
-			ASTNode heir = coveringNode;
-			ASTNode parent;
-			while (true) {
-				parent = heir.getParent();
-				if (parent == null) return null;
-				if (parent.getNodeType() == ASTNode.SWITCH_STATEMENT) break;
-				heir = parent;
+		// A switch which is already filled in can only be updated,
+		// it must not be replaced altogether
+		final boolean update = !ss.statements().isEmpty();
+		final HierarchyConfig config = update ?
+			HierarchySwitchChecker.getGeneratedHierarchyConfig(ss) : getHierarchyConfig(ss);
+		if (config == null) return null;
+		
+		ICompilationUnit cu = context.getCompilationUnit();
+		List<HierarchyKind> kinds;
+		if (EnumKindsJob.isNeeded(cu, config)) {
+			// Resolving the kinds may require parsing another unit, which
+			// must not freeze the editor: it is done in the background
+			EnumKindsJob job = EnumKindsJob.schedule(cu, config);
+			if (!job.await(EnumKindsJob.SYNC_BUDGET_MILLIS, null)) {
+				Metrics.count(Counter.KINDS_DEFERRED);
+				Metrics.count(Counter.PROPOSALS);
+				return new IJavaCompletionProposal[] {
+					new PendingSwitchProposal(cu, ss, config, job, update) };
 			}
-			// Check that we weren't in the body part of a switch, in which
-			// case it's too dangerous to propose to replace the whole switch
-			// (Imagine a cascade of generated switches, and applying one of
-			// the sub-switches incorrectly will apply to the outer switch...)
-			if (((SwitchStatement) parent).getExpression() != heir)
-				return null;
-			coveringNode = (SwitchStatement) parent;
+			kinds = job.getKinds();
 		}
-		SwitchStatement ss = (SwitchStatement) coveringNode;
-		if (ss.getExpression() == null) return null;
+		else
+			kinds = getEnumKinds(cu, context.getASTRoot(), config);
+		if (kinds == null) {
+			Metrics.err("Could not find enum declaration for hierarchy kind");
+			return null;
+		}
+		
+		// The rewrites themselves are only computed if the
+		// proposals are previewed or applied
+		if (update) {
+			if (missingKinds(ss, kinds).isEmpty()) return null;
+			HierarchySwitchProposal rewUpdate =
+				new HierarchySwitchProposal(
+						"Update hierarchy switch (add missing cases)", 12,
+						cu, ss, config, kinds,
+						closerOf(ss), false, Mode.UPDATE, null);
+			Metrics.count(Counter.PROPOSALS);
+			return new IJavaCompletionProposal[] { rewUpdate };
+		}
+		// The variants below are all rendered from the same plan,
+		// which is only computed once for all of them
+		final SwitchPlan.Shared plan = new SwitchPlan.Shared(ss, config, kinds);
+		HierarchySwitchProposal rewReturn =
+			new HierarchySwitchProposal(
+					"Generate hierarchy switch (return)", 12,
+					cu, ss, config, kinds,
+					returnCloser(ss), true, Mode.REPLACE, plan);
+		HierarchySwitchProposal rewBreak =
+			new HierarchySwitchProposal(
+					"Generate hierarchy switch (break)", 11,
+					cu, ss, config, kinds,
+					(AST ast) -> ast.newBreakStatement(), false, Mode.REPLACE, plan);
+		
+		List<IJavaCompletionProposal> res = new ArrayList<>(7);
+		if (canUsePatternSwitch(cu, ss, config)) {
+			res.add(new HierarchySwitchProposal(
+					"Generate pattern switch (return)", 13,
+					cu, ss, config, kinds,
+					returnCloser(ss), true, Mode.PATTERN, plan));
+			res.add(new HierarchySwitchProposal(
+					"Generate pattern switch (break)", 12,
+					cu, ss, config, kinds,
+					null, false, Mode.PATTERN, plan));
+		}
+		res.add(rewReturn);
+		res.add(rewBreak);
+		// The sub-hierarchies are only explored if a full switch is previewed
+		// or applied, the index simply tells whether there may be some
+		if (HierarchyTree.mayHaveChildren(kinds)) {
+			res.add(new HierarchySwitchProposal(
+					"Generate full hierarchy switch (return)", 10,
+					cu, ss, config, kinds,
+					returnCloser(ss), true, Mode.FULL, plan));
+			res.add(new HierarchySwitchProposal(
+					"Generate full hierarchy switch (break)", 9,
+					cu, ss, config, kinds,
+					(AST ast) -> ast.newBreakStatement(), false, Mode.FULL, plan));
+		}
+		if (HierarchyDispatchTable.baseTypeOf(config) != null &&
+			HierarchyDispatchTable.hostOf(ss) != null) {
+			res.add(new HierarchySwitchProposal(
+					"Generate hierarchy dispatch table", 8,
+					cu, ss, config, kinds,
+					null, false, Mode.TABLE, plan));
+		}
+		
+		Metrics.count(Counter.PROPOSALS);
+		return res.toArray(new IJavaCompletionProposal[res.size()]);
+	}
+	
+	private static Function<AST, Statement> returnCloser(SwitchStatement ss) {
+		return (AST ast) -> {
+			ReturnStatement ret = ast.newReturnStatement();
+			// 'return null' or simply 'return' depending on the return type
+			// of the enclosing function
+			if (!inVoidFunction(ss))
+				ret.setExpression(ast.newNullLiteral());
+			return ret;
+		};
+	}
+	
+	/**
+	 * A type-pattern switch on the receiver is offered if the project
+	 * complies with Java 21, and if the base type of the hierarchy is
+	 * sealed or final. Only these cheap checks are made when proposing
+	 * it: whether a case could dominate another one is only checked
+	 * when it is generated, see {@link #hasUnrelatedWitnesses}.
+	 * 
+	 * @param cu
+	 * @param ss
+	 * @param config
+	 * @return whether a pattern switch may be generated
+	 */
+	private static boolean canUsePatternSwitch(ICompilationUnit cu, SwitchStatement ss,
+			HierarchyConfig config) {
+		if (ss.getAST().apiLevel() < AST.JLS21) return false;
+		IJavaProject project = cu.getJavaProject();
+		String compliance = project.getOption(JavaCore.COMPILER_COMPLIANCE, true);
+		if (JavaCore.compareJavaVersions(compliance, JavaCore.VERSION_21) < 0) return false;
+		ITypeBinding base = config.receiver.resolveTypeBinding();
+		if (base == null) return false;
+		int modifiers = base.getErasure().getModifiers();
+		return Modifier.isSealed(modifiers) || Modifier.isFinal(modifiers);
+	}
+	
+	/**
+	 * No case of a pattern switch can dominate another one if the
+	 * witness classes are distinct and none is a subtype of another.
+	 * The result is remembered along with the description of the
+	 * hierarchy, if any.
+	 * 
+	 * @param cu		the compilation unit where the switch is
+	 * @param config	the configuration of the hierarchy
+	 * @param kinds		the kinds of the hierarchy
+	 * @return whether the witness classes are pairwise unrelated
+	 */
+	private static boolean hasUnrelatedWitnesses(ICompilationUnit cu,
+			HierarchyConfig config, List<HierarchyKind> kinds) {
+		HierarchyDescriptor descriptor =
+			config.key == null ? null : descriptorCache.get(config.key);
+		if (descriptor != null && descriptor.unrelatedWitnesses != null)
+			return descriptor.unrelatedWitnesses;
+		boolean unrelated = checkUnrelatedWitnesses(cu.getJavaProject(), kinds);
+		if (descriptor != null)
+			descriptorCache.replace(config.key, descriptor.withUnrelatedWitnesses(unrelated));
+		return unrelated;
+	}
+	
+	private static boolean checkUnrelatedWitnesses(IJavaProject project, List<HierarchyKind> kinds) {
+		Set<String> names = new HashSet<>();
+		List<IType> witnesses = new ArrayList<>(kinds.size());
+		boolean allFinal = true;
+		try {
+			for (HierarchyKind kind : kinds) {
+				if (!names.add(kind.witness)) return false;
+				IType witness = project.findType(kind.witness);
+				if (witness == null) return false;
+				witnesses.add(witness);
+				allFinal &= Flags.isFinal(witness.getFlags());
+			}
+		} catch (JavaModelException e) {
+			Metrics.err("Could not check witness classes: " + e.getMessage());
+			return false;
+		}
+		// Distinct final classes cannot be subtypes of one another
+		if (allFinal) return true;
+		
+		// Otherwise look for other witnesses among the supertypes of each
+		long start = Metrics.start();
+		ASTParser parser = ASTParser.newParser(AST.getJLSLatest());
+		parser.setProject(project);
+		IBinding[] bindings = parser.createBindings(
+			witnesses.toArray(new IType[witnesses.size()]), null);
+		Metrics.record(Phase.BINDING_RESOLUTION, start);
+		Set<String> keys = new HashSet<>();
+		for (IBinding binding : bindings) {
+			if (!(binding instanceof ITypeBinding)) return false;
+			keys.add(binding.getKey());
+		}
+		for (IBinding binding : bindings) {
+			if (hasSupertypeIn((ITypeBinding) binding, keys, new HashSet<String>()))
+				return false;
+		}
+		return true;
+	}
+	
+	private static boolean hasSupertypeIn(ITypeBinding type, Set<String> keys, Set<String> visited) {
+		List<ITypeBinding> supers = new ArrayList<>();
+		if (type.getSuperclass() != null) supers.add(type.getSuperclass());
+		Collections.addAll(supers, type.getInterfaces());
+		for (ITypeBinding sup : supers) {
+			sup = sup.getErasure();
+			if (!visited.add(sup.getKey())) continue;
+			if (keys.contains(sup.getKey()) || hasSupertypeIn(sup, keys, visited))
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * A pattern switch is exhaustive without a default case if its
+	 * witness classes cover all the permitted subtypes of the base
+	 * type, recursively through abstract sealed classes and sealed
+	 * interfaces. When that cannot be established, e.g. because the
+	 * permitted subtypes are implicit, a default case is generated,
+	 * which is legal anyway.
+	 * 
+	 * @param config	the configuration of the hierarchy
+	 * @param kinds		the kinds of the hierarchy
+	 * @return whether a pattern switch on the given hierarchy is exhaustive
+	 */
+	private static boolean isExhaustive(HierarchyConfig config, List<HierarchyKind> kinds) {
+		ITypeBinding base = config.receiver.resolveTypeBinding();
+		if (base == null) return false;
+		Set<String> witnesses = new HashSet<>();
+		for (HierarchyKind kind : kinds)
+			witnesses.add(kind.witness);
+		try {
+			IJavaElement elt = base.getErasure().getJavaElement();
+			return elt instanceof IType && coversPermittedSubtypes((IType) elt, witnesses);
+		} catch (JavaModelException e) {
+			Metrics.err("Could not check permitted subtypes: " + e.getMessage());
+			return false;
+		}
+	}
+	
+	private static boolean coversPermittedSubtypes(/* NULLABLE */ IType type, Set<String> witnesses)
+			throws JavaModelException {
+		if (type == null) return false;
+		if (witnesses.contains(type.getFullyQualifiedName('.'))) return true;
+		if (!type.isSealed()) return false;
+		// Instances of a concrete sealed class match none of its subtypes
+		if (!type.isInterface() && !Flags.isAbstract(type.getFlags())) return false;
+		String[] names = type.getPermittedSubtypeNames();
+		// Permitted subtypes which are implicit are not listed
+		if (names.length == 0) return false;
+		for (String name : names) {
+			if (!coversPermittedSubtypes(resolveType(type, name), witnesses))
+				return false;
+		}
+		return true;
+	}
+	
+	private static /* NULLABLE */ IType resolveType(IType context, String name)
+			throws JavaModelException {
+		IJavaProject project = context.getJavaProject();
+		// Names are qualified in class files, and as written in sources
+		if (context.isBinary())
+			return project.findType(name.replace('$', '.'));
+		String[][] resolved = context.resolveType(name);
+		if (resolved == null || resolved.length != 1) return null;
+		return project.findType(resolved[0][0], resolved[0][1]);
+	}
+	
+	/**
+	 * @param ss	a switch statement with some cases already
+	 * @return a statement closing new cases in the same way as
+	 * 	the last existing case block, i.e. 'return' or 'break'
+	 */
+	private static Function<AST, Statement> closerOf(SwitchStatement ss) {
+		@SuppressWarnings("unchecked")
+		List<Statement> statements = (List<Statement>) ss.statements();
+		for (int i = statements.size() - 1; i >= 0; --i) {
+			Statement st = statements.get(i);
+			if (st instanceof SwitchCase) continue;
+			if (st instanceof Block) {
+				List<?> bstatements = ((Block) st).statements();
+				if (bstatements.isEmpty()) continue;
+				st = (Statement) bstatements.get(bstatements.size() - 1);
+			}
+			if (st instanceof ReturnStatement) return returnCloser(ss);
+			break;
+		}
+		return (AST ast) -> ast.newBreakStatement();
+	}
+	
+	/**
+	 * @param ss
+	 * @param kinds
+	 * @return the kinds which have no case in the given switch,
+	 * 	which is empty if it has a default case
+	 */
+	static List<HierarchyKind> missingKinds(SwitchStatement ss, List<HierarchyKind> kinds) {
+		Set<String> covered = new HashSet<>();
+		for (Object o : ss.statements()) {
+			if (!(o instanceof SwitchCase)) continue;
+			SwitchCase sc = (SwitchCase) o;
+			if (sc.isDefault()) return Collections.emptyList();
+			Expression label = caseLabel(sc);
+			if (label instanceof SimpleName)
+				covered.add(((SimpleName) label).getIdentifier());
+		}
+		List<HierarchyKind> res = new ArrayList<>();
+		for (HierarchyKind kind : kinds) {
+			if (!covered.contains(kind.name))
+				res.add(kind);
+		}
+		return res;
+	}
+	
+	/**
+	 * Resolves the hierarchy on which the given switch statement
+	 * operates, if any.
+	 * 
+	 * @param ss	a switch statement from an AST with resolved bindings
+	 * @return the configuration of the hierarchy, along with the
+	 * 	receiver whose kind is switched on, or {@code null} if the
+	 * 	switch isn't on a hierarchy
+	 */
+	static /* NULLABLE */ HierarchyConfig getHierarchyConfig(SwitchStatement ss) {
 		Expression sw = ss.getExpression();
 		// Now that we have a switch expression, we are interested in either
 		// an expression whose type is an enum, obtained by a method annotated
 		// as @Hierarchy, or a base hierarchy class, in which case we'll have
 		// to add the method invocation / field access to retrieve the enum.
+		long start = Metrics.start();
 		ITypeBinding ty = sw.resolveTypeBinding();
+		IMethodBinding method = ty != null && ty.isEnum() && sw instanceof MethodInvocation ?
+			((MethodInvocation) sw).resolveMethodBinding() : null;
+		Metrics.record(Phase.BINDING_RESOLUTION, start);
 		if (ty == null) return null;
-		log("Type of switch expression is " + ty.getName());
+		if (Metrics.getDefault().isLogging())
+			Metrics.log("Type of switch expression is " + ty.getName());
 		final IBinding binding;
 		final Expression receiver;
 		if (ty.isEnum()) {
@@ -168,7 +495,6 @@ public class QuickAssistHierarchySwitch implements IQuickAssistProcessor {
 			// hierarchy, so it has to be the result of an external kind method
 			if (!(sw instanceof MethodInvocation)) return null;
 			MethodInvocation m = (MethodInvocation) sw;
-			IMethodBinding method = m.resolveMethodBinding();
 			if (method == null) return null;
 			if (m.arguments() == null || m.arguments().size() != 1) return null;
 			Expression arg = (Expression) m.arguments().get(0);
@@ -182,69 +508,364 @@ public class QuickAssistHierarchySwitch implements IQuickAssistProcessor {
 			binding = ty;
 			receiver = sw;
 		}
+		return getHierarchyConfig(binding, receiver);
+	}
+	
+	/**
+	 * Resolves the hierarchy declared by the given type or dispatcher
+	 * method, if any.
+	 * 
+	 * @param binding	the base type of a hierarchy, or an external dispatcher
+	 * @param receiver	the expression whose kind is switched on
+	 * @return the configuration of the hierarchy, along with the
+	 * 	given receiver, or {@code null} if the binding doesn't
+	 * 	declare a hierarchy
+	 */
+	static /* NULLABLE */ HierarchyConfig getHierarchyConfig(
+			IBinding binding, /* NULLABLE */ Expression receiver) {
+		// All hierarchies declared in the workspace's sources are indexed,
+		// so if the binding is one of those and isn't in the index, there
+		// is no need to look any further
+		final HierarchyIndex index = HierarchyIndex.getDefault();
+		if (index.covers(binding) && index.lookup(binding) == null) {
+			Metrics.count(Counter.INDEX_FILTERED);
+			if (Metrics.getDefault().isLogging())
+				Metrics.log("No hierarchy indexed for " + binding.getName());
+			return null;
+		}
 		
-		// Find the Hierarchy annotation on the class/method declaration
-		// (note: we stop at the first one we find, it doesn't
-		//  make sense to add more than one anyway)
-		IAnnotationBinding[] annots = binding.getAnnotations();
-		IAnnotationBinding hannot = null;
-		if (annots.length != 0) {
-			log("Annotations on binding: ");
-			for (IAnnotationBinding annot : annots) {
-				log(annot.toString());
-				if (annot.getName().equals("Hierarchy")) {
-					hannot = annot;
+		// Maybe the configuration of this hierarchy was interpreted already
+		HierarchyConfig config = HierarchyConfig.cached(binding, receiver);
+		if (config == null) {
+			// Find the Hierarchy annotation on the class/method declaration
+			// (note: we stop at the first one we find, it doesn't
+			//  make sense to add more than one anyway)
+			long start = Metrics.start();
+			IAnnotationBinding[] annots = binding.getAnnotations();
+			IAnnotationBinding hannot = null;
+			if (annots.length != 0) {
+				final boolean logging = Metrics.getDefault().isLogging();
+				if (logging) Metrics.log("Annotations on binding: ");
+				for (IAnnotationBinding annot : annots) {
+					if (logging) Metrics.log(annot.toString());
+					if (annot.getName().equals("Hierarchy")) {
+						hannot = annot;
+					}
 				}
 			}
+			Metrics.record(Phase.ANNOTATION_LOOKUP, start);
+			if (hannot == null) return null;
+			
+			// Interpret the configuration in the annotation
+			start = Metrics.start();
+			config = HierarchyConfig.of(binding, hannot, receiver);
+			Metrics.record(Phase.CONFIG, start);
 		}
-		if (hannot == null) return null;
+		return config;
+	}
+	
+	/**
+	 * Finds the switch statement on which the quick-assist could
+	 * apply, given the node covered by the selection. This only
+	 * looks at the syntax, and is called for every quick-assist
+	 * request, so it must remain cheap.
+	 * 
+	 * @param coveringNode
+	 * @return the switch statement which is either the covering node,
+	 * 	or whose expression contains the covering node, or {@code null}
+	 */
+	private static /* NULLABLE */ SwitchStatement findSwitchStatement(
+			/* NULLABLE */ ASTNode coveringNode) {
+		if (coveringNode == null) return null;
 		
-		// Interpret the configuration in the annotation
-		final HierarchyConfig config =
-			HierarchyConfig.of(ss.getAST(), binding, hannot, receiver);
-		if (config == null) return null;
+		// Is it a switch statement?
+		if (coveringNode.getNodeType() != ASTNode.SWITCH_STATEMENT) {
+			// Or maybe is it the expression in a switch statement?
+			// (or a sub-expression thereof)
+			ASTNode heir = coveringNode;
+			ASTNode parent;
+			while (true) {
+				parent = heir.getParent();
+				if (parent == null) return null;
+				if (parent.getNodeType() == ASTNode.SWITCH_STATEMENT) break;
+				// Statements and declarations cannot be part of the
+				// expression of a switch, no need to climb further up
+				if (parent instanceof Statement || parent instanceof BodyDeclaration)
+					return null;
+				heir = parent;
+			}
+			// Check that we weren't in the body part of a switch, in which
+			// case it's too dangerous to propose to replace the whole switch
+			// (Imagine a cascade of generated switches, and applying one of
+			// the sub-switches incorrectly will apply to the outer switch...)
+			if (((SwitchStatement) parent).getExpression() != heir)
+				return null;
+			coveringNode = parent;
+		}
+		SwitchStatement ss = (SwitchStatement) coveringNode;
+		if (ss.getExpression() == null) return null;
+		return ss;
+	}
+	
+	private static enum Mode {
+		/** Replaces an empty switch with the switch on the hierarchy */
+		REPLACE,
+		/** Adds the missing cases to a hierarchy switch */
+		UPDATE,
+		/** Replaces an empty switch, with nested switches on sub-hierarchies */
+		FULL,
+		/** Replaces an empty switch by a lookup in a dispatch table */
+		TABLE,
+		/** Replaces an empty switch by a type-pattern switch on the receiver */
+		PATTERN;
+	}
+	
+	/**
+	 * A proposal for generating a hierarchy switch, which only
+	 * holds a description of the switch to generate. The rewrite
+	 * is built when the proposal's change is first needed, i.e.
+	 * when the proposal is previewed or applied.
+	 */
+	private static class HierarchySwitchProposal extends CUCorrectionProposal {
+		protected final SwitchStatement ss;
+		protected final HierarchyConfig config;
+		/** The kinds of the hierarchy, {@code null} if they are still being resolved */
+		private final /* NULLABLE */ List<HierarchyKind> kinds;
+		/** Closes the generated cases, {@code null} for dispatch tables and empty cases */
+		private final /* NULLABLE */ Function<AST, Statement> caseCloser;
+		private final boolean withThrow;
+		private final Mode mode;
+		/** The plan shared with the other variants of this switch, if any */
+		private final /* NULLABLE */ SwitchPlan.Shared sharedPlan;
 		
-		EnumDeclaration enumDecl = getEnumDeclaration(context, config.enumType);
-		if (enumDecl == null) {
-			err("Could not find enum declaration for hierarchy kind");
-			return null;
+		@SuppressWarnings("restriction")
+		HierarchySwitchProposal(String name, int relevance, ICompilationUnit cu,
+				SwitchStatement ss, HierarchyConfig config, List<HierarchyKind> kinds,
+				/* NULLABLE */ Function<AST, Statement> caseCloser, boolean withThrow, Mode mode,
+				/* NULLABLE */ SwitchPlan.Shared sharedPlan) {
+			super(name, cu, relevance,
+				org.eclipse.jdt.internal.ui.JavaPluginImages.get(
+					org.eclipse.jdt.internal.ui.JavaPluginImages.IMG_CORRECTION_CHANGE));
+			this.ss = ss;
+			this.config = config;
+			this.kinds = kinds;
+			this.caseCloser = caseCloser;
+			this.withThrow = withThrow;
+			this.mode = mode;
+			this.sharedPlan = sharedPlan;
 		}
-		@SuppressWarnings("unchecked")
-		List<EnumConstantDeclaration> kindDecls =
-			(List<EnumConstantDeclaration>) enumDecl.enumConstants();
 		
-		final Function<AST, Statement> returnStatement = (AST ast) -> {
-			ReturnStatement ret = ast.newReturnStatement();
-			// 'return null' or simply 'return' depending on the return type
-			// of the enclosing function
-			if (!inVoidFunction(ss))
-				ret.setExpression(ast.newNullLiteral());
-			return ret;
-		};
-		ASTRewriteCorrectionProposal rewReturn =
-			getHierarchySwitchRewrite(
-					"Generate hierarchy switch (return)", 12,
-					context, ss, config, kindDecls,
-					returnStatement, true);
-		ASTRewriteCorrectionProposal rewBreak =
-			getHierarchySwitchRewrite(
-					"Generate hierarchy switch (break)", 11,
-					context, ss, config, kindDecls,
-					(AST ast) -> ast.newBreakStatement(), false);
+		/**
+		 * @return the kinds of the hierarchy
+		 * @throws CoreException if they could not be found
+		 */
+		protected List<HierarchyKind> kinds() throws CoreException {
+			return kinds;
+		}
+		
+		@Override
+		protected void addEdits(IDocument document, TextEdit editRoot) throws CoreException {
+			super.addEdits(document, editRoot);
+			final List<HierarchyKind> kinds = kinds();
+			long start = Metrics.start();
+			final SwitchPlan plan = sharedPlan == null ? null : sharedPlan.get();
+			final SwitchContext swCtxt;
+			switch (mode) {
+			case UPDATE:
+				swCtxt = getHierarchySwitchUpdate(ss, config, kinds, caseCloser, null, null);
+				break;
+			case FULL:
+				HierarchyTree tree = HierarchyTree.of(getCompilationUnit(),
+					(CompilationUnit) ss.getRoot(), config, kinds);
+				swCtxt = getFullHierarchySwitchRewrite(ss, tree, caseCloser, withThrow, plan, null, null);
+				break;
+			case PATTERN:
+				if (hasUnrelatedWitnesses(getCompilationUnit(), config, kinds)) {
+					swCtxt = getPatternSwitchRewrite(ss, config, kinds, caseCloser, withThrow, plan, null, null);
+					break;
+				}
+				// Some case could dominate another, fall back to the hierarchy switch
+				swCtxt = getHierarchySwitchRewrite(ss, config, kinds, null,
+					caseCloser != null ? caseCloser : (AST ast) -> ast.newBreakStatement(),
+					withThrow, plan, null, null);
+				break;
+			case TABLE:
+				swCtxt = HierarchyDispatchTable.getDispatchTableRewrite(ss, config, kinds,
+					HierarchyDispatchTable.baseTypeOf(config), HierarchyDispatchTable.hostOf(ss),
+					plan, null, null);
+				break;
+			default:
+				swCtxt = getHierarchySwitchRewrite(ss, config, kinds, null,
+					caseCloser, withThrow, plan, null, null);
+				break;
+			}
+			try {
+				editRoot.addChild(swCtxt.rew.rewriteAST());
+			} catch (IllegalArgumentException e) {
+				throw new CoreException(
+					new Status(IStatus.ERROR, Activator.PLUGIN_ID, e.getMessage(), e));
+			}
+			Metrics.record(Phase.REWRITE, start);
+			start = Metrics.start();
+			editRoot.addChild(swCtxt.imports.rewriteImports(new NullProgressMonitor()));
+			Metrics.record(Phase.IMPORTS, start);
+		}
 		
-		return new IJavaCompletionProposal[] { rewReturn, rewBreak };
+		// Since JDT 3.30, proposals delegate the creation of their change to
+		// a core proposal by default, which would not call #addEdits above
+		@SuppressWarnings("unused")
+		protected boolean useDelegateToCreateTextChange() {
+			return false;
+		}
 	}
 	
-	private static ASTRewriteCorrectionProposal
-		getHierarchySwitchRewrite(
-			String name, int relevance, IInvocationContext context,
-			SwitchStatement ss, HierarchyConfig config, List<EnumConstantDeclaration> kindDecls,
-			Function<AST, Statement> caseCloser, boolean withThrow) {
+	/**
+	 * Stands for the proposals of a hierarchy switch whose kinds took
+	 * too long to resolve. The kinds keep being resolved in the background,
+	 * and the proposal waits for them when it is previewed or applied, by
+	 * which time they are usually ready. On the UI thread, it waits with
+	 * a busy cursor, then a progress dialog which can cancel the wait.
+	 * The next invocation of the quick-assist finds the kinds in the
+	 * cache and makes the actual proposals.
+	 */
+	private static final class PendingSwitchProposal extends HierarchySwitchProposal {
+		private final EnumKindsJob job;
+		
+		PendingSwitchProposal(ICompilationUnit cu, SwitchStatement ss,
+				HierarchyConfig config, EnumKindsJob job, boolean update) {
+			super(update ?
+					"Update hierarchy switch (resolving kinds...)" :
+					"Generate hierarchy switch (resolving kinds...)", 12,
+				cu, ss, config, null,
+				update ? closerOf(ss) : returnCloser(ss), !update,
+				update ? Mode.UPDATE : Mode.REPLACE, null);
+			this.job = job;
+		}
+		
+		@Override
+		protected List<HierarchyKind> kinds() throws CoreException {
+			if (!await())
+				throw new CoreException(new Status(IStatus.CANCEL, Activator.PLUGIN_ID,
+					"Cancelled resolution of hierarchy " + config.enumType.getElementName()));
+			List<HierarchyKind> kinds = job.getKinds();
+			if (kinds == null)
+				throw new CoreException(new Status(IStatus.ERROR, Activator.PLUGIN_ID,
+					"Could not find the kinds of hierarchy " + config.enumType.getElementName()));
+			return kinds;
+		}
+		
+		/**
+		 * @return whether the job is finished, {@code false}
+		 * 	if the wait was cancelled
+		 */
+		private boolean await() throws CoreException {
+			if (job.await(1, null)) return true;
+			// The job keeps running if the wait is cancelled
+			if (Display.getCurrent() == null) return job.await(0, null);
+			try {
+				PlatformUI.getWorkbench().getProgressService().busyCursorWhile(
+					(IProgressMonitor monitor) -> {
+						monitor.beginTask("Resolving kinds of " + config.enumType.getElementName(),
+							IProgressMonitor.UNKNOWN);
+						if (!job.await(0, monitor))
+							throw new InterruptedException();
+						monitor.done();
+					});
+				return true;
+			} catch (InterruptedException e) {
+				return false;
+			} catch (InvocationTargetException e) {
+				throw new CoreException(new Status(IStatus.ERROR, Activator.PLUGIN_ID,
+					e.getCause().getMessage(), e.getCause()));
+			}
+		}
+	}
+	
+	/**
+	 * Records the generation of a hierarchy switch in place of the given
+	 * switch statement. The changes are recorded in the given rewrites if
+	 * provided, so that several switches in the same compilation unit can
+	 * be generated at once, and in new rewrites otherwise.
+	 * 
+	 * @param ss		the switch statement to replace
+	 * @param config	the configuration of the hierarchy
+	 * @param kinds		the kinds of the hierarchy
+	 * @param caseCloser	creates the statement closing each case
+	 * @param withThrow	whether the unmatched exception, if any, should
+	 * 	be thrown after the switch
+	 * @param rew		the rewrite to record changes in, or {@code null}
+	 * @param imports	the import rewrite to record imports in, or {@code null}
+	 * @return the context in which changes were recorded
+	 */
+	static SwitchContext getHierarchySwitchRewrite(
+			SwitchStatement ss, HierarchyConfig config, List<HierarchyKind> kinds,
+			Function<AST, Statement> caseCloser, boolean withThrow,
+			/* NULLABLE */ ASTRewrite rew, /* NULLABLE */ ImportRewrite imports) {
+		return getHierarchySwitchRewrite(ss, config, kinds, null, caseCloser, withThrow, null, rew, imports);
+	}
+	
+	/**
+	 * Records the generation of a hierarchy switch in place of the given
+	 * switch statement, like {@link #getHierarchySwitchRewrite(SwitchStatement,
+	 * HierarchyConfig, List, Function, boolean, ASTRewrite, ImportRewrite)},
+	 * except that the case of each kind whose witness is the base of a
+	 * sub-hierarchy contains a nested switch on that sub-hierarchy, and
+	 * so on down to the leaves.
+	 * 
+	 * @param ss		the switch statement to replace
+	 * @param tree		the hierarchy, whose configuration has the
+	 * 	receiver of the switch, and its sub-hierarchies
+	 * @param caseCloser	creates the statement closing each case
+	 * @param withThrow	whether the unmatched exception, if any, should
+	 * 	be thrown after each switch
+	 * @param plan		the plan of this switch, or {@code null}
+	 * @param rew		the rewrite to record changes in, or {@code null}
+	 * @param imports	the import rewrite to record imports in, or {@code null}
+	 * @return the context in which changes were recorded
+	 */
+	static SwitchContext getFullHierarchySwitchRewrite(
+			SwitchStatement ss, HierarchyTree tree,
+			Function<AST, Statement> caseCloser, boolean withThrow, /* NULLABLE */ SwitchPlan plan,
+			/* NULLABLE */ ASTRewrite rew, /* NULLABLE */ ImportRewrite imports) {
+		return getHierarchySwitchRewrite(ss, tree.config, tree.kinds, tree,
+			caseCloser, withThrow, plan, rew, imports);
+	}
+	
+	private static SwitchContext getHierarchySwitchRewrite(
+			SwitchStatement ss, HierarchyConfig config, List<HierarchyKind> kinds,
+			/* NULLABLE */ HierarchyTree tree,
+			Function<AST, Statement> caseCloser, boolean withThrow, /* NULLABLE */ SwitchPlan plan,
+			/* NULLABLE */ ASTRewrite rew, /* NULLABLE */ ImportRewrite imports) {
 		final SwitchContext swCtxt =
-			SwitchContext.of(ss, withThrow && config.unmatched != null);
-		final AST ast = swCtxt.ast;
+			SwitchContext.of(ss, withThrow && config.unmatched != null,
+				plan == null ? null : plan.imports, rew, imports);
 		final Expression sw = ss.getExpression();
 
+		// Record the new switch statement
+		List<SwitchPlan.Case> cases = plan == null ?
+			SwitchPlan.casesOf(kinds, Collections.<String> emptySet()) : plan.cases;
+		SwitchStatement newss = makeSwitch(swCtxt, sw, config, cases, tree,
+			caseCloser, withThrow, Collections.<String> emptySet());
+		swCtxt.replaceSwitch(newss);
+		
+		// If a post statement is necessary, let's add it
+		if (withThrow && config.unmatched != null) {
+			// Record the new throw statement
+			swCtxt.addThrow(makeThrow(swCtxt, sw, config));
+		}
+		
+		// Apply changes to ASTRewrite and return the
+		// corresponding context
+		swCtxt.commit();
+		return swCtxt;
+	}
+	
+	private static SwitchStatement makeSwitch(SwitchContext swCtxt,
+			/* NULLABLE */ Expression sw, HierarchyConfig config, List<SwitchPlan.Case> cases,
+			/* NULLABLE */ HierarchyTree tree, Function<AST, Statement> caseCloser,
+			boolean withThrow, Set<String> names) {
+		final AST ast = swCtxt.ast;
+		
 		// Create the new switch to generate, initially empty
 		SwitchStatement newss = ast.newSwitchStatement();
 		
@@ -258,95 +879,313 @@ public class QuickAssistHierarchySwitch implements IQuickAssistProcessor {
 		// all cases and their inner blocks
 		@SuppressWarnings("unchecked")
 		List<Statement> statements = (List<Statement>) newss.statements();
-		for (EnumConstantDeclaration kindDecl : kindDecls) {
+		for (SwitchPlan.Case c : cases) {
+			SwitchCase scase = makeCase(swCtxt, c.kind);
+			statements.add(scase);
+			HierarchyTree sub = tree == null ? null : tree.childOf(c.kind);
+			statements.add(makeCaseBlock(swCtxt, config, c, sub, caseCloser, withThrow, names));
+		}
+		return newss;
+	}
+	
+	private static ThrowStatement makeThrow(SwitchContext swCtxt,
+			/* NULLABLE */ Expression sw, HierarchyConfig config) {
+		final AST ast = swCtxt.ast;
+		// throw new ...
+		ThrowStatement newThrow = ast.newThrowStatement();
+		ClassInstanceCreation newNew = ast.newClassInstanceCreation();
+		newThrow.setExpression(newNew);
+		
+		// .. ExnType(<expression returning the kind>)
+		Type exnType = swCtxt.addImport(config.unmatched);
+		newNew.setType(exnType);
+		@SuppressWarnings("unchecked")
+		List<Expression> newArgs = newNew.arguments();
+		// We cannot just copy the switch's expression because its receiver
+		// is a lazy copy of sw and thus is empty for now...
+		newArgs.add(makeInstanceKind(sw, config, swCtxt.rew));
+		return newThrow;
+	}
+	
+	/**
+	 * Records the generation of a type-pattern switch on the receiver
+	 * of the hierarchy in place of the given switch statement, with
+	 * one case per witness class:
+	 * <pre>
+	 * switch (base) {
+	 * case A a -> { ... }
+	 * ...
+	 * default -> throw new Unmatched(base.getKind());
+	 * }
+	 * </pre>
+	 * The default case is only left out if the witness classes cover
+	 * all the permitted subtypes of a sealed base type, see {@link #isExhaustive}.
+	 * This requires an AST at level {@link AST#JLS21} at least.
+	 * 
+	 * @param ss		the switch statement to replace
+	 * @param config	the configuration of the hierarchy
+	 * @param kinds		the kinds of the hierarchy
+	 * @param caseCloser	creates the statement closing each case,
+	 * 	or {@code null} if cases should be left empty
+	 * @param withThrow	whether the unmatched exception, if any, should
+	 * 	be thrown in the default case
+	 * @param plan		the plan of this switch, or {@code null}
+	 * @param rew		the rewrite to record changes in, or {@code null}
+	 * @param imports	the import rewrite to record imports in, or {@code null}
+	 * @return the context in which changes were recorded
+	 */
+	@SuppressWarnings("unchecked")
+	static SwitchContext getPatternSwitchRewrite(
+			SwitchStatement ss, HierarchyConfig config, List<HierarchyKind> kinds,
+			/* NULLABLE */ Function<AST, Statement> caseCloser, boolean withThrow,
+			/* NULLABLE */ SwitchPlan plan,
+			/* NULLABLE */ ASTRewrite rew, /* NULLABLE */ ImportRewrite imports) {
+		final SwitchContext swCtxt =
+			SwitchContext.of(ss, false, plan == null ? null : plan.imports, rew, imports);
+		final AST ast = swCtxt.ast;
+		
+		// switch (receiver) { ... }
+		SwitchStatement newss = ast.newSwitchStatement();
+		newss.setExpression(copyReceiver(config.receiver, swCtxt.rew));
+		List<Statement> statements = (List<Statement>) newss.statements();
+		
+		// Pattern variables must not clash with the receiver
+		String receiverName = config.receiver instanceof SimpleName ?
+			((SimpleName) config.receiver).getIdentifier() : null;
+		List<SwitchPlan.Case> cases = plan == null ?
+			SwitchPlan.casesOf(kinds, Collections.<String> emptySet()) : plan.cases;
+		for (SwitchPlan.Case c : cases) {
+			// case A a -> { ... }
+			String cid = c.variable;
+			if (cid.equals(receiverName)) cid = cid + 2;
+			SingleVariableDeclaration var = ast.newSingleVariableDeclaration();
+			var.setType(swCtxt.addImport(c));
+			var.setName(ast.newSimpleName(cid));
+			TypePattern pattern = ast.newTypePattern();
+			pattern.setPatternVariable(var);
 			SwitchCase scase = ast.newSwitchCase();
-			// case EnumValue: ...
-			scase.setExpression(ast.newSimpleName(kindDecl.getName().getIdentifier()));
+			scase.setSwitchLabeledRule(true);
+			scase.expressions().add(pattern);
 			statements.add(scase);
-			// .. : { ... }
 			Block block = ast.newBlock();
+			if (caseCloser != null)
+				block.statements().add(caseCloser.apply(ast));
 			statements.add(block);
-			@SuppressWarnings("unchecked")
-			List<Statement> bstatements = (List<Statement>) block.statements();
-			
-			// The constant is initialized with a type literal T.class,
-			// let's fetch T!
-			Expression arg = (Expression) kindDecl.arguments().get(0);
-			if (!(arg instanceof TypeLiteral))
-				return null;
-			Type ctype = ((TypeLiteral) arg).getType();
-			ITypeBinding ctypeBinding = ctype.resolveBinding();
-			String cid = variableNameOf(ctype);
-			Type typeref = swCtxt.addImport(ctypeBinding);
-			
-			// final A a = (A) receiver
-			VariableDeclarationFragment vdeclf = ast.newVariableDeclarationFragment();
-			vdeclf.setName(ast.newSimpleName(cid));
-			CastExpression ce = ast.newCastExpression();
-			
-			// NB: do not copy from newsw, it is lazily copied when rew is applied...
-			ce.setExpression((Expression) ASTNode.copySubtree(ast, config.receiver));
-			ce.setType(typeref);
-			vdeclf.setInitializer(ce);
-			
-			VariableDeclarationStatement vdecl = ast.newVariableDeclarationStatement(vdeclf);
-			@SuppressWarnings("unchecked")
-			List<IExtendedModifier> modifiers = (List<IExtendedModifier>) vdecl.modifiers();
-			modifiers.add(ast.newModifier(ModifierKeyword.FINAL_KEYWORD));
-			vdecl.setType((Type) ASTNode.copySubtree(ast, typeref));
-			
-			bstatements.add(vdecl);
-			
-			// closing the case block
-			bstatements.add(caseCloser.apply(ast));
 		}
-
-		// Record the new switch statement
+		
+		if (!isExhaustive(config, kinds)) {
+			// default -> ...
+			SwitchCase dflt = ast.newSwitchCase();
+			dflt.setSwitchLabeledRule(true);
+			statements.add(dflt);
+			if (withThrow && config.unmatched != null)
+				statements.add(makeThrow(swCtxt, ss.getExpression(), config));
+			else {
+				Block block = ast.newBlock();
+				if (caseCloser != null)
+					block.statements().add(caseCloser.apply(ast));
+				statements.add(block);
+			}
+		}
+		
 		swCtxt.replaceSwitch(newss);
+		swCtxt.commit();
+		return swCtxt;
+	}
+	
+	/**
+	 * Records the addition of the missing cases of the given switch
+	 * statement, leaving the existing cases untouched. Each missing
+	 * case is inserted before the first group of existing cases whose
+	 * first label comes after it in the enum, or before the group of
+	 * the default case, if any, or at the end of the switch. Cases are
+	 * never inserted inside a group of labels falling through to the
+	 * same statements, which would change what the group executes.
+	 * 
+	 * @param ss		the switch statement to update, whose expression
+	 * 	is already the kind of the receiver of {@code config}
+	 * @param config	the configuration of the hierarchy
+	 * @param kinds		the kinds of the hierarchy
+	 * @param caseCloser	creates the statement closing each new case
+	 * @param rew		the rewrite to record changes in, or {@code null}
+	 * @param imports	the import rewrite to record imports in, or {@code null}
+	 * @return the context in which changes were recorded
+	 */
+	static SwitchContext getHierarchySwitchUpdate(
+			SwitchStatement ss, HierarchyConfig config, List<HierarchyKind> kinds,
+			Function<AST, Statement> caseCloser,
+			/* NULLABLE */ ASTRewrite rew, /* NULLABLE */ ImportRewrite imports) {
+		final SwitchContext swCtxt = SwitchContext.of(ss, false, rew, imports);
+		final ListRewrite listRew = swCtxt.rew.getListRewrite(ss, SwitchStatement.STATEMENTS_PROPERTY);
 		
-		// If a post statement is necessary, let's add it
-		if (withThrow && config.unmatched != null) {
-			// throw new ...
-			ThrowStatement newThrow = ast.newThrowStatement();
-			ClassInstanceCreation newNew = ast.newClassInstanceCreation();
-			newThrow.setExpression(newNew);
-			
-			// .. ExnType(<expression returning the kind>)
-			Type exnType = swCtxt.addImport(config.unmatched);
-			newNew.setType(exnType);
-			@SuppressWarnings("unchecked")
-			List<Expression> newArgs = newNew.arguments();
-			// We cannot just copy newss.getExpression() because its receiver
-			// is a lazy copy of sw and thus is empty for now...
-			newArgs.add(makeInstanceKind(sw, config, swCtxt.rew));
-			
-			// Record the new throw statement
-			swCtxt.addThrow(newThrow);
+		Map<String, Integer> ranks = new HashMap<>();
+		for (int i = 0; i < kinds.size(); ++i)
+			ranks.put(kinds.get(i).name, i);
+		// The existing cases starting a group of labels, and their rank in
+		// the enum, and the first case of the group of the default case
+		List<SwitchCase> cases = new ArrayList<>();
+		List<Integer> caseRanks = new ArrayList<>();
+		SwitchCase defaultCase = null;
+		SwitchCase groupStart = null;
+		for (Object o : ss.statements()) {
+			if (!(o instanceof SwitchCase)) {
+				groupStart = null;
+				continue;
+			}
+			SwitchCase sc = (SwitchCase) o;
+			boolean startsGroup = groupStart == null;
+			if (startsGroup) groupStart = sc;
+			if (sc.isDefault()) {
+				defaultCase = groupStart;
+				continue;
+			}
+			if (!startsGroup) continue;
+			Expression label = caseLabel(sc);
+			Integer rank = label instanceof SimpleName ?
+				ranks.get(((SimpleName) label).getIdentifier()) : null;
+			if (rank == null) continue;
+			cases.add(sc);
+			caseRanks.add(rank);
 		}
 		
-		// Apply changes to ASTRewrite and return the
-		// corresponding proposal
+		for (SwitchPlan.Case c : SwitchPlan.casesOf(
+				missingKinds(ss, kinds), Collections.<String> emptySet())) {
+			int rank = ranks.get(c.kind.name);
+			ASTNode next = defaultCase;
+			for (int i = 0; i < cases.size(); ++i) {
+				if (caseRanks.get(i) > rank) {
+					next = cases.get(i);
+					break;
+				}
+			}
+			SwitchCase scase = makeCase(swCtxt, c.kind);
+			Block block = makeCaseBlock(swCtxt, config, c, caseCloser);
+			// Inserting several nodes before the same one keeps their order
+			if (next == null) {
+				listRew.insertLast(scase, null);
+				listRew.insertLast(block, null);
+			} else {
+				listRew.insertBefore(scase, next, null);
+				listRew.insertBefore(block, next, null);
+			}
+		}
 		swCtxt.commit();
-		ICompilationUnit cu = context.getCompilationUnit();
-		ASTRewriteCorrectionProposal proposal =
-			new ASTRewriteCorrectionProposal(name, cu, swCtxt.rew, relevance);
-		proposal.setImportRewrite(swCtxt.imports);
-		return proposal;
+		return swCtxt;
+	}
+	
+	private static SwitchCase makeCase(SwitchContext swCtxt, HierarchyKind kind) {
+		// case EnumValue: ...
+		SwitchCase scase = swCtxt.ast.newSwitchCase();
+		addCaseLabel(scase, swCtxt.ast.newSimpleName(kind.name));
+		return scase;
+	}
+	
+	/**
+	 * @param sc
+	 * @return the only label of the given case, or {@code null}
+	 * 	if it is the default case or has several labels
+	 */
+	@SuppressWarnings("deprecation")
+	static /* NULLABLE */ Expression caseLabel(SwitchCase sc) {
+		// Since Java 14, cases can have several labels
+		if (sc.getAST().apiLevel() < AST.JLS14)
+			return sc.getExpression();
+		List<?> labels = sc.expressions();
+		return labels.size() == 1 ? (Expression) labels.get(0) : null;
+	}
+	
+	@SuppressWarnings({ "deprecation", "unchecked" })
+	private static void addCaseLabel(SwitchCase sc, Expression label) {
+		if (sc.getAST().apiLevel() < AST.JLS14)
+			sc.setExpression(label);
+		else
+			sc.expressions().add(label);
+	}
+	
+	private static Block makeCaseBlock(SwitchContext swCtxt, HierarchyConfig config,
+			SwitchPlan.Case c, Function<AST, Statement> caseCloser) {
+		return makeCaseBlock(swCtxt, config, c, null, caseCloser, false,
+			Collections.<String> emptySet());
+	}
+	
+	/**
+	 * @param swCtxt
+	 * @param config	the configuration of the switched hierarchy
+	 * @param c			the case, whose variable does not shadow
+	 * 	the variables declared in the enclosing cases
+	 * @param sub		the sub-hierarchy whose base type is the witness
+	 * 	of the case, if a nested switch must be generated
+	 * @param caseCloser
+	 * @param withThrow	whether to throw the unmatched exception of
+	 * 	the sub-hierarchy, if any, after the nested switch
+	 * @param names		the names of the variables declared in the
+	 * 	enclosing cases, which must not be shadowed
+	 * @return the block of the case
+	 */
+	private static Block makeCaseBlock(SwitchContext swCtxt, HierarchyConfig config,
+			SwitchPlan.Case c, /* NULLABLE */ HierarchyTree sub,
+			Function<AST, Statement> caseCloser, boolean withThrow, Set<String> names) {
+		final AST ast = swCtxt.ast;
+		// .. : { ... }
+		Block block = ast.newBlock();
+		@SuppressWarnings("unchecked")
+		List<Statement> bstatements = (List<Statement>) block.statements();
+		
+		// The witness class T of the constant, i.e. its
+		// declaration was initialized with T.class
+		String cid = c.variable;
+		Type typeref = swCtxt.addImport(c);
+		
+		// final A a = (A) receiver
+		VariableDeclarationFragment vdeclf = ast.newVariableDeclarationFragment();
+		vdeclf.setName(ast.newSimpleName(cid));
+		CastExpression ce = ast.newCastExpression();
+		
+		// NB: do not copy from newsw, it is lazily copied when rew is applied...
+		ce.setExpression((Expression) ASTNode.copySubtree(ast, config.receiver));
+		ce.setType(typeref);
+		vdeclf.setInitializer(ce);
+		
+		VariableDeclarationStatement vdecl = ast.newVariableDeclarationStatement(vdeclf);
+		@SuppressWarnings("unchecked")
+		List<IExtendedModifier> modifiers = (List<IExtendedModifier>) vdecl.modifiers();
+		modifiers.add(ast.newModifier(ModifierKeyword.FINAL_KEYWORD));
+		vdecl.setType((Type) ASTNode.copySubtree(ast, typeref));
+		
+		bstatements.add(vdecl);
+		
+		// switch (a.getSubKind()) { ... }
+		if (sub != null) {
+			Set<String> subNames = new HashSet<>(names);
+			subNames.add(cid);
+			HierarchyConfig subConfig = sub.config.withReceiver(ast.newSimpleName(cid));
+			bstatements.add(makeSwitch(swCtxt, null, subConfig,
+				SwitchPlan.casesOf(sub.kinds, subNames), sub, caseCloser, withThrow, subNames));
+			if (withThrow && subConfig.unmatched != null) {
+				// The throw closes the case block already
+				bstatements.add(makeThrow(swCtxt, null, subConfig));
+				return block;
+			}
+		}
+		
+		// closing the case block
+		bstatements.add(caseCloser.apply(ast));
+		return block;
 	}
 	
-	private static Expression makeInstanceKind(
+	static Expression makeInstanceKind(
 			Expression sw, HierarchyConfig config, ASTRewrite rew) {
 		final AST ast = rew.getAST();
 		switch (config.dispatcherKind) {
 		case METHOD: {
-			Expression newReceiver = (Expression) rew.createCopyTarget(config.receiver);
+			Expression newReceiver = copyReceiver(config.receiver, rew);
 			MethodInvocation mi = ast.newMethodInvocation();
 			mi.setName(ast.newSimpleName(config.name));
 			mi.setExpression(newReceiver);
 			return mi;
 		}
 		case FIELD: {
-			Expression newReceiver = (Expression) rew.createCopyTarget(config.receiver);
+			Expression newReceiver = copyReceiver(config.receiver, rew);
 			FieldAccess fa = ast.newFieldAccess();
 			fa.setName(ast.newSimpleName(config.name));
 			fa.setExpression(newReceiver);
@@ -359,61 +1198,392 @@ public class QuickAssistHierarchySwitch implements IQuickAssistProcessor {
 		throw new IllegalStateException("Unknown dispatcher kind: " + config.dispatcherKind);
 	}
 	
-	private static EnumDeclaration 
-		getEnumDeclaration(IInvocationContext context, ITypeBinding enumTypeBinding) {
-		assert (enumTypeBinding.isEnum());
-
-		// Java-doc ensures that getJavaElement should be non-null in
-		// the case of an enum type, hence I'm not being cautious
-		IType enumTypeModel = (IType) (enumTypeBinding.getJavaElement());
+	private static Expression copyReceiver(Expression receiver, ASTRewrite rew) {
+		// The receivers of nested switches are new nodes, which are
+		// not in the source and cannot be lazily copied from there
+		if (receiver.getStartPosition() == -1)
+			return (Expression) ASTNode.copySubtree(rew.getAST(), receiver);
+		return (Expression) rew.createCopyTarget(receiver);
+	}
+	
+	/**
+	 * @param cu		the compilation unit where the hierarchy switch is
+	 * @param astRoot	the AST of {@code cu}
+	 * @param config	the configuration of the hierarchy
+	 * @return the kinds of the hierarchy, or {@code null} if they
+	 * 	could not be found
+	 */
+	static /* NULLABLE */ List<HierarchyKind>
+		getEnumKinds(ICompilationUnit cu, CompilationUnit astRoot, HierarchyConfig config) {
+		return getEnumKinds(cu, astRoot, config, null);
+	}
+	
+	/**
+	 * Like {@link #getEnumKinds(ICompilationUnit, CompilationUnit, HierarchyConfig)},
+	 * but the parse of the enum's compilation unit, if any, can be cancelled.
+	 * 
+	 * @param cu		the compilation unit where the hierarchy switch is
+	 * @param astRoot	the AST of {@code cu}
+	 * @param config	the configuration of the hierarchy
+	 * @param monitor	the progress monitor, or {@code null}
+	 * @return the kinds of the hierarchy, or {@code null} if they
+	 * 	could not be found
+	 * @throws OperationCanceledException if the monitor was cancelled
+	 */
+	static /* NULLABLE */ List<HierarchyKind>
+		getEnumKinds(ICompilationUnit cu, CompilationUnit astRoot, HierarchyConfig config,
+			/* NULLABLE */ IProgressMonitor monitor) {
+		long start = Metrics.start();
+		try {
+			// The kinds may be described along with the configuration already
+			HierarchyDescriptor descriptor =
+				config.key == null ? null : descriptorCache.get(config.key);
+			if (descriptor != null && descriptor.kinds != null) {
+				Metrics.count(Counter.KINDS_CACHE_HITS);
+				return descriptor.kinds;
+			}
+			List<HierarchyKind> kinds = findEnumKinds(cu, astRoot, config, monitor);
+			if (descriptor != null && kinds != null) {
+				kinds = HierarchyDescriptor.Kinds.of(kinds);
+				descriptorCache.replace(config.key, descriptor.withKinds(kinds));
+			}
+			return kinds;
+		} finally {
+			Metrics.record(Phase.ENUM_KINDS, start);
+		}
+	}
+	
+	/**
+	 * @param config	the configuration of a hierarchy
+	 * @return whether the kinds of the hierarchy are cached
+	 */
+	static boolean hasCachedKinds(HierarchyConfig config) {
+		if (config.key != null) {
+			HierarchyDescriptor descriptor = descriptorCache.get(config.key);
+			if (descriptor != null && descriptor.kinds != null) return true;
+		}
+		return enumKindsCache.contains(enumKindsKeyOf(config));
+	}
+	
+	private static /* NULLABLE */ List<HierarchyKind>
+		findEnumKinds(ICompilationUnit cu, CompilationUnit astRoot, HierarchyConfig config,
+			/* NULLABLE */ IProgressMonitor monitor) {
+		final IType enumTypeModel = config.enumType;
+		final String enumKey = config.enumKey;
 		
-		// If the type is local, we already have an AST, no need to parse
+		// Enums from libraries have no compilation unit, only a class file
 		ICompilationUnit cuKind = enumTypeModel.getCompilationUnit();
-		if (cuKind.equals(context.getCompilationUnit())) {
-			ASTNode decl = context.getASTRoot().findDeclaringNode(enumTypeBinding);
+		if (cuKind == null)
+			return decodeEnumKinds(enumTypeModel.getClassFile());
+		
+		// If the type is local, we already have an AST, no need to parse
+		if (cuKind.equals(cu)) {
+			ASTNode decl = astRoot.findDeclaringNode(enumKey);
 			if (!(decl instanceof EnumDeclaration))
 				/* catches null, mostly */ return null;
-			return ((EnumDeclaration) decl);
+			return HierarchyKind.of((EnumDeclaration) decl);
+		}
+		
+		// The type is external, maybe we have read its kinds already
+		final String cacheKey = enumKindsKeyOf(config);
+		List<HierarchyKind> kinds = enumKindsCache.get(cacheKey);
+		if (kinds != null) {
+			Metrics.count(Counter.KINDS_CACHE_HITS);
+			if (Metrics.getDefault().isLogging())
+				Metrics.log("Found cached kinds for " + enumTypeModel.getElementName());
+			return kinds;
 		}
+		Metrics.count(Counter.KINDS_CACHE_MISSES);
 		
-		// The type is external, we have to parse the corresponding resource
-		ASTParser parser = ASTParser.newParser(AST.JLS8);
-		parser.setResolveBindings(true);
-		parser.setSource(cuKind);
-		parser.setKind(ASTParser.K_COMPILATION_UNIT);
-		CompilationUnit root = (CompilationUnit) parser.createAST(null); // parse
-		ASTNode decl = root.findDeclaringNode(enumTypeBinding.getKey());
+		// Only reconcile or parse the unit if nothing cheaper worked out
+		kinds = readEnumKinds(cuKind, config, monitor);
+		if (kinds == null) {
+			if (Metrics.getDefault().isLogging())
+				Metrics.log((cuKind.isWorkingCopy() ? "Reconciling " : "Parsing ")
+					+ cuKind.getElementName() + " to find kinds");
+			long start = Metrics.start();
+			kinds = parseEnumKinds(cuKind, enumKey, monitor);
+			Metrics.record(Phase.ENUM_PARSE, start);
+		}
+		if (kinds != null)
+			enumKindsCache.put(cacheKey, HierarchyDescriptor.Kinds.of(kinds), cuKind);
+		return kinds;
+	}
+	
+	/**
+	 * If the enum is open in the active editor, JDT holds a reconciled
+	 * AST of it already. Otherwise the kinds are read from the Java model,
+	 * which is cheap and reflects the working copy of any other editor.
+	 * 
+	 * @param cuKind	the compilation unit of the enum
+	 * @param config	the configuration of the hierarchy
+	 * @param monitor	the progress monitor, or {@code null}
+	 * @return the kinds of the hierarchy, or {@code null} if they could
+	 * 	not be found without parsing {@code cuKind}
+	 */
+	private static /* NULLABLE */ List<HierarchyKind>
+		readEnumKinds(ICompilationUnit cuKind, HierarchyConfig config,
+			/* NULLABLE */ IProgressMonitor monitor) {
+		List<HierarchyKind> kinds = sharedEnumKinds(cuKind, config.enumKey, monitor);
+		if (kinds != null) return kinds;
+		try {
+			return HierarchyKind.of(config.enumType);
+		} catch (JavaModelException e) {
+			Metrics.err("Could not read enum constants from Java model: " + e.getMessage());
+			return null;
+		}
+	}
+	
+	/**
+	 * Finds the kinds of several hierarchies and caches them, so that
+	 * {@link #getEnumKinds} finds them in the cache afterwards. The enums
+	 * whose kinds cannot be read without parsing are parsed all at once,
+	 * with one batch per project, rather than once per hierarchy.
+	 * 
+	 * @param cu		the compilation unit where the hierarchy switch is
+	 * @param configs	the configurations of the hierarchies
+	 */
+	static void prefetchEnumKinds(ICompilationUnit cu, List<HierarchyConfig> configs) {
+		final Map<ICompilationUnit, List<HierarchyConfig>> toParse = new LinkedHashMap<>();
+		for (HierarchyConfig config : configs) {
+			if (hasCachedKinds(config)) continue;
+			ICompilationUnit cuKind = config.enumType.getCompilationUnit();
+			// Binary enums are decoded, and local ones read from the AST at hand
+			if (cuKind == null || cuKind.equals(cu)) continue;
+			Metrics.count(Counter.KINDS_CACHE_MISSES);
+			List<HierarchyKind> kinds = readEnumKinds(cuKind, config, null);
+			if (kinds != null)
+				enumKindsCache.put(enumKindsKeyOf(config), HierarchyDescriptor.Kinds.of(kinds), cuKind);
+			else
+				toParse.computeIfAbsent(cuKind, u -> new ArrayList<>()).add(config);
+		}
+		if (toParse.isEmpty()) return;
+		
+		Map<IJavaProject, List<ICompilationUnit>> byProject = new LinkedHashMap<>();
+		for (ICompilationUnit cuKind : toParse.keySet())
+			byProject.computeIfAbsent(cuKind.getJavaProject(), p -> new ArrayList<>()).add(cuKind);
+		long start = Metrics.start();
+		for (Map.Entry<IJavaProject, List<ICompilationUnit>> e : byProject.entrySet()) {
+			if (Metrics.getDefault().isLogging())
+				Metrics.log("Parsing " + e.getValue().size() + " units to find kinds");
+			ASTParser parser = ASTParser.newParser(AST.getJLSLatest());
+			parser.setProject(e.getKey());
+			parser.setResolveBindings(true);
+			parser.setKind(ASTParser.K_COMPILATION_UNIT);
+			parser.createASTs(e.getValue().toArray(new ICompilationUnit[e.getValue().size()]),
+				new String[0], new ASTRequestor() {
+					@Override
+					public void acceptAST(ICompilationUnit source, CompilationUnit ast) {
+						for (HierarchyConfig config : toParse.get(source)) {
+							ASTNode decl = ast.findDeclaringNode(config.enumKey);
+							if (!(decl instanceof EnumDeclaration)) continue;
+							List<HierarchyKind> kinds = HierarchyKind.of((EnumDeclaration) decl);
+							if (kinds != null)
+								enumKindsCache.put(enumKindsKeyOf(config),
+									HierarchyDescriptor.Kinds.of(kinds), source);
+						}
+					}
+				}, null);
+		}
+		Metrics.record(Phase.ENUM_PARSE, start);
+	}
+	
+	/**
+	 * @param config	the configuration of a hierarchy
+	 * @return the key under which the kinds of the hierarchy are cached
+	 * 	in {@link #enumKindsCache}, i.e. the handle of the enum for enums
+	 * 	in sources, and the handle of the class file, which identifies the
+	 * 	archive entry, for binary enums. Unlike binding keys, handles tell
+	 * 	apart enums with the same name in different projects.
+	 */
+	static String enumKindsKeyOf(HierarchyConfig config) {
+		if (config.enumType.isBinary())
+			return config.enumType.getClassFile().getHandleIdentifier();
+		return config.enumType.getHandleIdentifier();
+	}
+	
+	private static /* NULLABLE */ List<HierarchyKind> decodeEnumKinds(IClassFile classFile) {
+		final String key = classFile.getHandleIdentifier();
+		List<HierarchyKind> kinds = enumKindsCache.get(key);
+		if (kinds != null) {
+			Metrics.count(Counter.KINDS_CACHE_HITS);
+			if (Metrics.getDefault().isLogging())
+				Metrics.log("Found cached kinds for " + classFile.getElementName());
+			return kinds;
+		}
+		Metrics.count(Counter.KINDS_CACHE_MISSES);
+		
+		if (Metrics.getDefault().isLogging())
+			Metrics.log("Decoding " + classFile.getElementName() + " to find kinds");
+		long start = Metrics.start();
+		try {
+			kinds = HierarchyKind.of(classFile);
+		} catch (JavaModelException e) {
+			Metrics.err("Could not read class file: " + e.getMessage());
+		}
+		Metrics.record(Phase.ENUM_DECODE, start);
+		// Binary types only change along with the classpath
+		if (kinds != null)
+			enumKindsCache.put(key, HierarchyDescriptor.Kinds.of(kinds));
+		return kinds;
+	}
+	
+	private static /* NULLABLE */ List<HierarchyKind>
+		sharedEnumKinds(ICompilationUnit cuKind, String enumKey,
+			/* NULLABLE */ IProgressMonitor monitor) {
+		// Only the AST of the active editor is shared, and the reconciler
+		// is never waited for, a parse is better than that
+		CompilationUnit root =
+			SharedASTProviderCore.getAST(cuKind, SharedASTProviderCore.WAIT_NO, monitor);
+		if (root == null) return null;
+		ASTNode decl = root.findDeclaringNode(enumKey);
+		if (!(decl instanceof EnumDeclaration))
+			/* catches null, mostly */ return null;
+		Metrics.count(Counter.SHARED_AST_HITS);
+		if (Metrics.getDefault().isLogging())
+			Metrics.log("Using shared AST of " + cuKind.getElementName() + " to find kinds");
+		return HierarchyKind.of((EnumDeclaration) decl);
+	}
+	
+	private static /* NULLABLE */ List<HierarchyKind>
+		parseEnumKinds(ICompilationUnit cuKind, String enumKey,
+			/* NULLABLE */ IProgressMonitor monitor) {
+		CompilationUnit root = null;
+		if (cuKind.isWorkingCopy()) {
+			// Open in an editor, maybe not the active one: reconciling the
+			// working copy yields an AST of its contents, with bindings
+			try {
+				root = cuKind.reconcile(AST.getJLSLatest(),
+					ICompilationUnit.FORCE_PROBLEM_DETECTION, null, monitor);
+			} catch (JavaModelException e) {
+				Metrics.err("Could not reconcile " + cuKind.getElementName() + ": " + e.getMessage());
+			}
+		}
+		if (root == null) {
+			ASTParser parser = ASTParser.newParser(AST.getJLSLatest());
+			parser.setResolveBindings(true);
+			parser.setSource(cuKind);
+			parser.setKind(ASTParser.K_COMPILATION_UNIT);
+			root = (CompilationUnit) parser.createAST(monitor); // parse
+		}
+		if (monitor != null && monitor.isCanceled())
+			throw new OperationCanceledException();
+		ASTNode decl = root.findDeclaringNode(enumKey);
 		if (!(decl instanceof EnumDeclaration))
 			/* catches null, mostly */ return null;
-		return ((EnumDeclaration) decl);
+		return HierarchyKind.of((EnumDeclaration) decl);
 	}
 		
-	private static enum DispatcherKind {
+	static enum DispatcherKind {
 		METHOD, FIELD, EXTERNAL;
 	}
 	
-	private static final class HierarchyConfig {
+	static final class HierarchyConfig {
 		final String name;
 		final DispatcherKind dispatcherKind;
-		final /* NULLABLE */ ITypeBinding unmatched;
-		final Expression receiver;
+		/** The qualified name of the unmatched exception class */
+		final /* NULLABLE */ String unmatched;
+		/** The expression whose kind is switched on, {@code null} in cached configs */
+		final /* NULLABLE */ Expression receiver;
 		
-		final ITypeBinding enumType;
-		@SuppressWarnings("unused")
-		final IMethodBinding unmatchedCtor;
+		/** The binding key of the kind enum */
+		final String enumKey;
+		final IType enumType;
+		/** The key of the description of this hierarchy in {@link #descriptorCache} */
+		final /* NULLABLE */ String key;
 		
 		private HierarchyConfig(
-			String name, DispatcherKind dispatcherKind, /* NULLABLE */ ITypeBinding unmatched,
-			Expression receiver, ITypeBinding enumType, IMethodBinding unmatchedCtor) {
+			String name, DispatcherKind dispatcherKind, /* NULLABLE */ String unmatched,
+			/* NULLABLE */ Expression receiver, String enumKey, IType enumType,
+			/* NULLABLE */ String key) {
 			this.name = name;
 			this.dispatcherKind = dispatcherKind;
 			this.unmatched = unmatched;
 			this.receiver = receiver;
+			this.enumKey = enumKey;
 			this.enumType = enumType;
-			this.unmatchedCtor = unmatchedCtor;
+			this.key = key;
 		}
 		
-		static HierarchyConfig of(AST ast, IBinding binding,
+		/**
+		 * @param receiver
+		 * @return the same configuration, for the given receiver
+		 */
+		HierarchyConfig withReceiver(Expression receiver) {
+			return new HierarchyConfig(name, dispatcherKind, unmatched,
+					receiver, enumKey, enumType, key);
+		}
+		
+		/**
+		 * The configuration does not depend on the AST it is interpreted
+		 * in, so it is cached and only interpreted again when the declaring
+		 * type, the enum type or the unmatched exception class changes.
+		 * 
+		 * @param binding	the type or method annotated with the hierarchy
+		 * @param receiver
+		 * @return the configuration for the given binding and receiver,
+		 * 	if it was interpreted already, and {@code null} otherwise
+		 */
+		static /* NULLABLE */ HierarchyConfig cached(IBinding binding, Expression receiver) {
+			final String key = keyOf(binding);
+			HierarchyDescriptor descriptor = key == null ? null : descriptorCache.get(key);
+			// Maybe it was interpreted during a previous session
+			if (descriptor == null && key != null)
+				descriptor = HierarchyStore.getDefault().lookup(key);
+			IJavaElement enumType = descriptor == null ? null : JavaCore.create(descriptor.enumHandle);
+			if (!(enumType instanceof IType)) {
+				Metrics.count(Counter.CONFIG_CACHE_MISSES);
+				return null;
+			}
+			Metrics.count(Counter.CONFIG_CACHE_HITS);
+			if (Metrics.getDefault().isLogging())
+				Metrics.log("Found cached hierarchy configuration for " + binding.getName());
+			return new HierarchyConfig(descriptor.name, descriptor.dispatcherKind,
+				descriptor.unmatched, receiver, descriptor.enumKey, (IType) enumType, key);
+		}
+		
+		/**
+		 * Binding keys are only unique within a project, so they are
+		 * prefixed with the handle of the project declaring the binding.
+		 * 
+		 * @param binding	the type or method annotated with the hierarchy
+		 * @return the key of the description of the hierarchy in
+		 * 	{@link #descriptorCache}, or {@code null} if the binding
+		 * 	has no Java element
+		 */
+		private static /* NULLABLE */ String keyOf(IBinding binding) {
+			// Look past type arguments, the configuration is the same
+			if (binding instanceof ITypeBinding)
+				binding = ((ITypeBinding) binding).getTypeDeclaration();
+			else if (binding instanceof IMethodBinding)
+				binding = ((IMethodBinding) binding).getMethodDeclaration();
+			IJavaElement elt = binding.getJavaElement();
+			if (elt == null || elt.getJavaProject() == null) return null;
+			return elt.getJavaProject().getHandleIdentifier() + binding.getKey();
+		}
+		
+		private static ICompilationUnit[] unitsOf(IBinding... bindings) {
+			Set<ICompilationUnit> units = new LinkedHashSet<>();
+			for (IBinding b : bindings) {
+				if (b == null) continue;
+				IJavaElement elt = b.getJavaElement();
+				if (elt == null) continue;
+				IJavaElement cu = elt.getAncestor(IJavaElement.COMPILATION_UNIT);
+				// Binary types only change along with the classpath
+				if (cu != null) units.add((ICompilationUnit) cu);
+			}
+			return units.toArray(new ICompilationUnit[units.size()]);
+		}
+		
+		private static boolean isRuntimeException(ITypeBinding ty) {
+			for (ITypeBinding t = ty; t != null; t = t.getSuperclass()) {
+				if (t.getErasure().getQualifiedName().equals("java.lang.RuntimeException"))
+					return true;
+			}
+			return false;
+		}
+		
+		static HierarchyConfig of(IBinding binding,
 				IAnnotationBinding annot, Expression receiver) {
 			String methodName = null;									// has to be filled below
 			DispatcherKind dispatcherKind = DispatcherKind.METHOD;		// if missing, method
@@ -425,27 +1595,27 @@ public class QuickAssistHierarchySwitch implements IQuickAssistProcessor {
 				Object o = e.getValue();
 				if (name.equals("value")) {
 					if (!(o instanceof String)) {
-						err("In Hierarchy annotation, 'value' member is not a String");
+						Metrics.err("In Hierarchy annotation, 'value' member is not a String");
 						// Terminal error
 						return null;
 					}
 					methodName = (String) o;
 				} else if (name.equals("field")) {
 					if (!(o instanceof Boolean)) {
-						err("In Hierarchy annotation, ignored non-boolean 'field' member");
+						Metrics.err("In Hierarchy annotation, ignored non-boolean 'field' member");
 						continue;
 					}
 					dispatcherKind = ((Boolean) o) ? DispatcherKind.FIELD : DispatcherKind.METHOD;
 				} else if (e.getName().equals("unmatched")) {
 					if (!(o instanceof ITypeBinding)) {
-						err("In Hierarchy annotation, 'unmatched' member is not a class");
+						Metrics.err("In Hierarchy annotation, 'unmatched' member is not a class");
 						continue;
 					}
 					unmatched = (ITypeBinding) o;
 				}
 			}
 			if (methodName == null) {
-				err("In Hierarchy annotation, no 'value' member was found");
+				Metrics.err("In Hierarchy annotation, no 'value' member was found");
 				return null;
 			}
 			
@@ -465,10 +1635,11 @@ public class QuickAssistHierarchySwitch implements IQuickAssistProcessor {
 						}
 					}
 					if (zeMethod == null) {
-						err("Could not find specified method " + methodName);
+						Metrics.err("Could not find specified method " + methodName);
 						return null;
 					}
-					log("Method on which to switch: " + zeMethod);
+					if (Metrics.getDefault().isLogging())
+						Metrics.log("Method on which to switch: " + zeMethod);
 					enumType = zeMethod.getReturnType();
 				}
 				else {	// FIELD
@@ -480,10 +1651,11 @@ public class QuickAssistHierarchySwitch implements IQuickAssistProcessor {
 						}
 					}
 					if (zeField == null) {
-						err("Could not find specified field " + methodName);
+						Metrics.err("Could not find specified field " + methodName);
 						return null;
 					}
-					log("Field on which to switch: " + zeField);
+					if (Metrics.getDefault().isLogging())
+						Metrics.log("Field on which to switch: " + zeField);
 					enumType = zeField.getType();
 				}
 			}
@@ -493,16 +1665,17 @@ public class QuickAssistHierarchySwitch implements IQuickAssistProcessor {
 				// spec should be "", the field is ignored, and we simply
 				// look at the method's return type
 				if (!methodName.equals(""))
-					err("Annotation value should be \"\" when using external dispatcher " + meth);
+					Metrics.err("Annotation value should be \"\" when using external dispatcher " + meth);
 				
-				log("Switch using external dispatcher: " + meth);
+				if (Metrics.getDefault().isLogging())
+					Metrics.log("Switch using external dispatcher: " + meth);
 				enumType = meth.getReturnType();
 				dispatcherKind = DispatcherKind.EXTERNAL;
 			}
 			
 			// That type must be an enum
 			if (enumType == null || !enumType.isEnum()) {
-				err("Type of specified " 
+				Metrics.err("Type of specified " 
 					+ (dispatcherKind == DispatcherKind.FIELD ? "field " : "method ")
 					+ methodName + " is not an Enum type");
 				return null;
@@ -511,21 +1684,24 @@ public class QuickAssistHierarchySwitch implements IQuickAssistProcessor {
 			// Check the validity of the provided unmatched exception class
 			IMethodBinding ctor = null;
 			if (unmatched != null) {
-				// First it must be a subtype of java.lang.Exception
-				ITypeBinding exn = ast.resolveWellKnownType("java.lang.RuntimeException");
-				if (!unmatched.isSubTypeCompatible(exn)) {
-					err("Specified unmatched class " + unmatched.getQualifiedName()
+				// First it must be a subtype of java.lang.RuntimeException
+				// (looking at names only, so that this works with bindings
+				//  which do not come from an AST, e.g. in a HierarchyTree)
+				if (!isRuntimeException(unmatched)) {
+					Metrics.err("Specified unmatched class " + unmatched.getQualifiedName()
 						+ " is not a subtype of java.lang.RuntimeException");
 					return null;
 				}
 				// Second find a constructor whose signature expects an Enum<>
 				for (IMethodBinding idb : unmatched.getDeclaredMethods()) {
-					log("Visiting method " + idb);
+					if (Metrics.getDefault().isLogging())
+						Metrics.log("Visiting method " + idb);
 					if (!idb.isConstructor()) continue;
 					ITypeBinding[] params = idb.getParameterTypes();
 					if (params.length != 1) continue;
 					ITypeBinding param = params[0];
-					log(param.getQualifiedName());
+					if (Metrics.getDefault().isLogging())
+						Metrics.log(param.getQualifiedName());
 					if (!param.isEnum() &&
 						!param.getQualifiedName().equals("java.lang.Enum<?>"))
 						continue;
@@ -533,51 +1709,29 @@ public class QuickAssistHierarchySwitch implements IQuickAssistProcessor {
 					// because Enum is not a 'well-known' type. So I'm
 					// happy if I see any enum there.
 					ctor = idb;
-					log("Found suitable constructor for exception: " + idb);
+					if (Metrics.getDefault().isLogging())
+						Metrics.log("Found suitable constructor for exception: " + idb);
 					break;
 				}
 				if (ctor == null) {
-					err("Specified unmatched class " + unmatched.getQualifiedName()
+					Metrics.err("Specified unmatched class " + unmatched.getQualifiedName()
 						+ " has no suitable constructor");
 					return null;
 				}
 			}
 			
-			return new HierarchyConfig(methodName, dispatcherKind, unmatched,
-					receiver, enumType, ctor);
-		}
-	}
-	
-	private static String variableNameOf(Type type) {
-		if (type instanceof SimpleType) {
-			SimpleType st = (SimpleType) type;
-			Name n = st.getName();
-			return variableNameOf(n);
-		}
-		else if (type instanceof QualifiedType) {
-			QualifiedType qt = (QualifiedType) type;
-			return variableNameOf(qt.getName().getIdentifier());
+			final String key = keyOf(binding);
+			HierarchyConfig config = new HierarchyConfig(methodName, dispatcherKind,
+				unmatched == null ? null : unmatched.getErasure().getQualifiedName(),
+				receiver, enumType.getKey(), (IType) enumType.getJavaElement(), key);
+			if (key != null)
+				descriptorCache.put(key, HierarchyDescriptor.of(config),
+					unitsOf(binding, enumType, unmatched));
+			return config;
 		}
-		else if (type instanceof NameQualifiedType) {
-			NameQualifiedType nqt = (NameQualifiedType) type;
-			return variableNameOf(nqt.getName().getIdentifier());
-		}
-		else 
-			return "default";
 	}
 	
-	private static String variableNameOf(Name n) {
-		SimpleName sn;
-		if (n instanceof QualifiedName) {
-			QualifiedName qn = (QualifiedName) n;
-			sn = qn.getName();
-		}
-		else
-			sn = (SimpleName) n;
-		return variableNameOf(sn.getIdentifier());
-	}
-	
-	private static String variableNameOf(String type) {
+	static String variableNameOf(String type) {
 		// Assuming the type's simple name will be in CamlCase
 		// a good candidate for the corresponding local variable
 		// is the same name in camlCase
@@ -599,7 +1753,7 @@ public class QuickAssistHierarchySwitch implements IQuickAssistProcessor {
 		}
 	}
 	
-	private static abstract class SwitchContext {
+	static abstract class SwitchContext {
 		final AST ast;
 		final Statement focus;
 		protected final ASTNode parent;
@@ -608,22 +1762,40 @@ public class QuickAssistHierarchySwitch implements IQuickAssistProcessor {
 		final ImportRewrite imports;
 		private final ImportRewriteContext importContext;
 		
-		private SwitchContext(Statement statement) {
+		private SwitchContext(Statement statement, /* NULLABLE */ ImportPlan plan,
+				/* NULLABLE */ ASTRewrite rew, /* NULLABLE */ ImportRewrite imports) {
 			this.ast = statement.getAST();
 			this.focus = statement;
 			this.parent = statement.getParent();
 			
-			this.rew = ASTRewrite.create(ast);
-			this.imports = ImportRewrite.create((CompilationUnit) statement.getRoot(), true);
+			this.rew = rew != null ? rew : ASTRewrite.create(ast);
+			this.imports = imports != null ? imports :
+				ImportRewrite.create((CompilationUnit) statement.getRoot(), true);
 			@SuppressWarnings("restriction")	// OK, internal but why should we reimplement that??
 			final ImportRewriteContext importContext_ =
 				new org.eclipse.jdt.internal.corext.codemanipulation.
-					ContextSensitiveImportRewriteContext(statement, imports);
-			this.importContext = importContext_;
+					ContextSensitiveImportRewriteContext(statement, this.imports);
+			this.importContext = plan == null ? importContext_ : plan.contextFor(importContext_);
+		}
+		
+		Type addImport(String qualifiedTypeName) {
+			return ast.newSimpleType(addImportName(qualifiedTypeName));
 		}
 		
-		Type addImport(ITypeBinding typeBinding) {
-			return imports.addImport(typeBinding, ast, importContext);
+		/**
+		 * @param c	a case of the switch
+		 * @return a reference to the witness class of the case, as
+		 * 	planned if the case was, and imported when needed
+		 */
+		Type addImport(SwitchPlan.Case c) {
+			if (c.typeName == null) return addImport(c.kind.witness);
+			if (c.imported) imports.addImport(c.kind.witness, importContext);
+			return ast.newSimpleType(ast.newName(c.typeName));
+		}
+		
+		Name addImportName(String qualifiedTypeName) {
+			String typeName = imports.addImport(qualifiedTypeName, importContext);
+			return ast.newName(typeName);
 		}
 		
 		abstract void replaceSwitch(Statement newSwitch);
@@ -631,9 +1803,9 @@ public class QuickAssistHierarchySwitch implements IQuickAssistProcessor {
 		abstract void commit();
 		
 		static class InPlace extends SwitchContext {
-			private InPlace(Statement statement) {
-				super(statement);
-				QuickAssistHierarchySwitch.log("Using in-place replacement");
+			private InPlace(Statement statement, ImportPlan plan, ASTRewrite rew, ImportRewrite imports) {
+				super(statement, plan, rew, imports);
+				Metrics.log("Using in-place replacement");
 			}
 
 			@Override
@@ -655,9 +1827,9 @@ public class QuickAssistHierarchySwitch implements IQuickAssistProcessor {
 		static class NewBlock extends SwitchContext {
 			private final Block newBlock;
 			
-			private NewBlock(Statement statement) {
-				super(statement);
-				QuickAssistHierarchySwitch.log("Using replacement by new block");
+			private NewBlock(Statement statement, ImportPlan plan, ASTRewrite rew, ImportRewrite imports) {
+				super(statement, plan, rew, imports);
+				Metrics.log("Using replacement by new block");
 				newBlock = ast.newBlock();
 			}
 
@@ -683,10 +1855,11 @@ public class QuickAssistHierarchySwitch implements IQuickAssistProcessor {
 			private final ListRewrite listRew;
 			private final ASTNode nextElt;
 			
-			private ChildList(Statement statement, ChildListPropertyDescriptor descr) {
-				super(statement);
-				QuickAssistHierarchySwitch.log("Using child list insertion in parent");
-				listRew = rew.getListRewrite(parent, descr);
+			private ChildList(Statement statement, ChildListPropertyDescriptor descr,
+					ImportPlan plan, ASTRewrite rew, ImportRewrite imports) {
+				super(statement, plan, rew, imports);
+				Metrics.log("Using child list insertion in parent");
+				listRew = this.rew.getListRewrite(parent, descr);
 				// Check that statement is in the parent's described list and
 				// remember the node that follows, if any (for easier insertion
 				// later in #addThrow)
@@ -722,21 +1895,27 @@ public class QuickAssistHierarchySwitch implements IQuickAssistProcessor {
 			}
 		}
 		
-		static SwitchContext of(Statement statement, boolean withThrow) {
+		static SwitchContext of(Statement statement, boolean withThrow,
+				/* NULLABLE */ ASTRewrite rew, /* NULLABLE */ ImportRewrite imports) {
+			return of(statement, withThrow, null, rew, imports);
+		}
+		
+		static SwitchContext of(Statement statement, boolean withThrow, /* NULLABLE */ ImportPlan plan,
+				/* NULLABLE */ ASTRewrite rew, /* NULLABLE */ ImportRewrite imports) {
 			// If no throw statement, it should always be possible
 			// to make the changes in place
-			if (!withThrow) return new InPlace(statement);
+			if (!withThrow) return new InPlace(statement, plan, rew, imports);
 			
 			StructuralPropertyDescriptor spd = statement.getLocationInParent();
 			// No location should mean no parent, so we can assume standalone
-			if (spd == null) return new NewBlock(statement);
+			if (spd == null) return new NewBlock(statement, plan, rew, imports);
 			// If the statement is not part of a list, we'll have to introduce
 			// a block if we have to add more than one statement
-			if (spd.isChildProperty()) return new NewBlock(statement);
+			if (spd.isChildProperty()) return new NewBlock(statement, plan, rew, imports);
 			// So the statement is part of a child list, we can be smart
 			// and avoid a new block when inserting more than one statement
 			if (spd.isChildListProperty()) 
-				return new ChildList(statement, (ChildListPropertyDescriptor) spd);
+				return new ChildList(statement, (ChildListPropertyDescriptor) spd, plan, rew, imports);
 			// Not supposed to encounter a simple property here
 			throw new IllegalStateException();
 		}
@@ -0,0 +1,116 @@
+package org.stekikun.hierarchyquickassist;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.jdt.core.dom.Statement;
+import org.stekikun.hierarchyquickassist.QuickAssistHierarchySwitch.HierarchyConfig;
+
+/**
+ * What the cases of a hierarchy switch are made of, independently
+ * of the way they are closed or nested: for each kind, its constant
+ * name, its witness class, the name of the variable the receiver is
+ * cast to, and how the witness class is referred to given the imports
+ * of the compilation unit.
+ * <p>
+ * The plan is computed once per switch, and all the variants proposed
+ * for that switch are then rendered from it. Only strings are held, so
+ * the plan can be shared by proposals which use different rewrites.
+ */
+final class SwitchPlan {
+	/** The imports planned for the switch */
+	final ImportPlan imports;
+	/** The cases of the switch, in the order of the kinds */
+	final List<Case> cases;
+
+	private SwitchPlan(ImportPlan imports, List<Case> cases) {
+		this.imports = imports;
+		this.cases = cases;
+	}
+
+	/**
+	 * The case of one kind of the hierarchy
+	 */
+	static final class Case {
+		/** The kind, i.e. the constant name and the witness class */
+		final HierarchyKind kind;
+		/** The name of the variable of the witness class */
+		final String variable;
+		/** The name to refer to the witness class with, {@code null} if not planned */
+		final /* NULLABLE */ String typeName;
+		/** Whether the witness class must be imported to be referred to as {@link #typeName} */
+		final boolean imported;
+
+		private Case(HierarchyKind kind, String variable,
+				/* NULLABLE */ String typeName, boolean imported) {
+			this.kind = kind;
+			this.variable = variable;
+			this.typeName = typeName;
+			this.imported = imported;
+		}
+	}
+
+	/**
+	 * @param statement	the switch statement to replace
+	 * @param config	the configuration of the hierarchy
+	 * @param kinds		the kinds of the hierarchy
+	 * @return the plan of the switch on the given hierarchy
+	 */
+	static SwitchPlan of(Statement statement, HierarchyConfig config, List<HierarchyKind> kinds) {
+		ImportPlan imports = ImportPlan.of(statement, config, kinds);
+		List<Case> cases = new ArrayList<>(kinds.size());
+		for (HierarchyKind kind : kinds) {
+			cases.add(new Case(kind,
+				QuickAssistHierarchySwitch.variableNameOf(kind.witnessSimpleName()),
+				imports.typeNameOf(kind.witness), imports.needsImport(kind.witness)));
+		}
+		return new SwitchPlan(imports, Collections.unmodifiableList(cases));
+	}
+
+	/**
+	 * Describes the cases of a switch which was not planned, e.g. a
+	 * switch nested in a case, whose witness classes are imported
+	 * as they are generated.
+	 *
+	 * @param kinds	the kinds of the switch
+	 * @param names	the names of the variables declared in the
+	 * 	enclosing cases, which must not be shadowed
+	 * @return the cases of the given kinds
+	 */
+	static List<Case> casesOf(List<HierarchyKind> kinds, Set<String> names) {
+		List<Case> cases = new ArrayList<>(kinds.size());
+		for (HierarchyKind kind : kinds) {
+			String variable = QuickAssistHierarchySwitch.variableNameOf(kind.witnessSimpleName());
+			String cid = variable;
+			for (int i = 2; names.contains(cid); ++i)
+				cid = variable + i;
+			cases.add(new Case(kind, cid, null, false));
+		}
+		return cases;
+	}
+
+	/**
+	 * A switch plan shared by all the proposals for one switch, which
+	 * is only computed when the first of them is previewed or applied.
+	 */
+	static final class Shared {
+		private final Statement statement;
+		private final HierarchyConfig config;
+		private final List<HierarchyKind> kinds;
+		private /* NULLABLE */ SwitchPlan plan;
+
+		Shared(Statement statement, HierarchyConfig config, List<HierarchyKind> kinds) {
+			this.statement = statement;
+			this.config = config;
+			this.kinds = kinds;
+		}
+
+		synchronized SwitchPlan get() {
+			if (plan == null)
+				plan = SwitchPlan.of(statement, config, kinds);
+			return plan;
+		}
+	}
+}
@@ -0,0 +1,208 @@
+package org.stekikun.hierarchyquickassist;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.OperationCanceledException;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.jdt.core.IJavaElement;
+import org.eclipse.jdt.core.IJavaProject;
+import org.eclipse.jdt.core.IMember;
+import org.eclipse.jdt.core.JavaModelException;
+import org.eclipse.jdt.core.dom.AST;
+import org.eclipse.jdt.core.dom.ASTParser;
+import org.eclipse.jdt.core.dom.Block;
+import org.eclipse.jdt.core.dom.CastExpression;
+import org.eclipse.jdt.core.dom.ClassInstanceCreation;
+import org.eclipse.jdt.core.dom.CompilationUnit;
+import org.eclipse.jdt.core.dom.Expression;
+import org.eclipse.jdt.core.dom.IBinding;
+import org.eclipse.jdt.core.dom.MethodDeclaration;
+import org.eclipse.jdt.core.dom.Statement;
+import org.eclipse.jdt.core.dom.SwitchCase;
+import org.eclipse.jdt.core.dom.SwitchStatement;
+import org.eclipse.jdt.core.dom.ThrowStatement;
+import org.eclipse.jdt.core.dom.TypeDeclaration;
+import org.eclipse.jdt.core.dom.VariableDeclarationFragment;
+import org.eclipse.jdt.core.dom.VariableDeclarationStatement;
+import org.eclipse.jdt.core.dom.rewrite.ASTRewrite;
+import org.eclipse.jdt.core.dom.rewrite.ImportRewrite;
+import org.eclipse.jdt.core.dom.rewrite.ListRewrite;
+import org.eclipse.jdt.ui.text.java.correction.CUCorrectionProposal;
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.Document;
+import org.eclipse.jface.text.IDocument;
+import org.stekikun.hierarchyquickassist.QuickAssistHierarchySwitch.HierarchyConfig;
+
+/**
+ * Warms the quick-assist up in the background once the workbench has
+ * started, so that its first invocation is as fast as the later ones:
+ * the classes of the DOM and of the rewrites are loaded by rewriting
+ * a small snippet, and the hierarchies indexed in open projects are
+ * resolved, along with their kinds, into the caches of
+ * {@link QuickAssistHierarchySwitch}.
+ * <p>
+ * The warm-up is opt-in, see {@link org.stekikun.hierarchyquickassist.startup.WarmUpStartup}.
+ * It runs as a system job with the lowest priority, checks for
+ * cancellation between hierarchies, and is cancelled when the plug-in stops.
+ */
+final class WarmUpJob extends Job {
+
+	/** The family of the warm-up job */
+	static final Object FAMILY = WarmUpJob.class;
+
+	/** How long the warm-up waits after startup, in milliseconds */
+	private static final long DELAY_MILLIS = 5000;
+
+	private static final String SNIPPET =
+		"class WarmUp { void m(Object o) { switch (o.hashCode()) { } } }";
+
+	// Classes used by the proposals which rewriting the snippet doesn't load
+	@SuppressWarnings("restriction")
+	private static final Class<?>[] PRELOADED = {
+		ImportRewrite.class,
+		org.eclipse.jdt.internal.corext.codemanipulation.ContextSensitiveImportRewriteContext.class,
+		CUCorrectionProposal.class,
+		SwitchPlan.class,
+		ImportPlan.class,
+		HierarchyTree.class,
+		HierarchyDispatchTable.class,
+	};
+
+	private WarmUpJob() {
+		super("Warming up hierarchy quick-assist");
+		setSystem(true);
+		setPriority(Job.DECORATE);
+	}
+
+	/**
+	 * Schedules the warm-up, after a delay so as not to compete with
+	 * the rest of the workbench's startup
+	 */
+	static void scheduleAfterStartup() {
+		new WarmUpJob().schedule(DELAY_MILLIS);
+	}
+
+	@Override
+	protected IStatus run(IProgressMonitor monitor) {
+		try {
+			long start = System.nanoTime();
+			preload();
+			// The index is built by its own job, which may still be running
+			Job.getJobManager().join(HierarchyIndex.FAMILY, monitor);
+			int count = resolveHierarchies(monitor);
+			if (Metrics.getDefault().isLogging())
+				Metrics.log("Warmed up " + count + " hierarchies in "
+					+ (System.nanoTime() - start) / 1000000 + "ms");
+			return Status.OK_STATUS;
+		} catch (OperationCanceledException e) {
+			Metrics.log("Cancelled warm-up");
+			return Status.CANCEL_STATUS;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return Status.CANCEL_STATUS;
+		}
+	}
+
+	@Override
+	public boolean belongsTo(Object family) {
+		return family == FAMILY;
+	}
+
+	/**
+	 * Rewrites a switch in a snippet much like the quick-assist does,
+	 * which loads most of the classes involved, and loads the others.
+	 */
+	private static void preload() {
+		for (Class<?> cls : PRELOADED)
+			cls.getName();
+
+		ASTParser parser = ASTParser.newParser(AST.getJLSLatest());
+		parser.setSource(SNIPPET.toCharArray());
+		CompilationUnit astRoot = (CompilationUnit) parser.createAST(null);
+		TypeDeclaration td = (TypeDeclaration) astRoot.types().get(0);
+		MethodDeclaration md = td.getMethods()[0];
+		SwitchStatement ss = (SwitchStatement) md.getBody().statements().get(0);
+
+		// case 0: { Object x = (Object) o; } default: throw new IllegalStateException();
+		final AST ast = astRoot.getAST();
+		ASTRewrite rew = ASTRewrite.create(ast);
+		ListRewrite statements = rew.getListRewrite(ss, SwitchStatement.STATEMENTS_PROPERTY);
+		SwitchCase sc = ast.newSwitchCase();
+		@SuppressWarnings("unchecked")
+		List<Expression> labels = sc.expressions();
+		labels.add(ast.newNumberLiteral("0"));
+		statements.insertLast(sc, null);
+		Block block = ast.newBlock();
+		VariableDeclarationFragment vdf = ast.newVariableDeclarationFragment();
+		vdf.setName(ast.newSimpleName("x"));
+		CastExpression cast = ast.newCastExpression();
+		cast.setType(ast.newSimpleType(ast.newSimpleName("Object")));
+		cast.setExpression(ast.newSimpleName("o"));
+		vdf.setInitializer(cast);
+		VariableDeclarationStatement vds = ast.newVariableDeclarationStatement(vdf);
+		vds.setType(ast.newSimpleType(ast.newSimpleName("Object")));
+		@SuppressWarnings("unchecked")
+		List<Statement> blockStatements = block.statements();
+		blockStatements.add(vds);
+		statements.insertLast(block, null);
+		statements.insertLast(ast.newSwitchCase(), null);
+		ThrowStatement newThrow = ast.newThrowStatement();
+		ClassInstanceCreation newNew = ast.newClassInstanceCreation();
+		newNew.setType(ast.newSimpleType(ast.newSimpleName("IllegalStateException")));
+		newThrow.setExpression(newNew);
+		statements.insertLast(newThrow, null);
+
+		IDocument document = new Document(SNIPPET);
+		try {
+			rew.rewriteAST(document, null).apply(document);
+		} catch (BadLocationException e) {
+			Metrics.err("Could not rewrite warm-up snippet: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Resolves the configuration and the kinds of all the hierarchies
+	 * in the index, with one batch of bindings per project.
+	 *
+	 * @param monitor
+	 * @return the number of hierarchies whose kinds were resolved
+	 * @throws OperationCanceledException if the monitor was cancelled
+	 */
+	private static int resolveHierarchies(IProgressMonitor monitor) {
+		Map<IJavaProject, List<IJavaElement>> members = new LinkedHashMap<>();
+		for (HierarchyIndex.Entry entry : HierarchyIndex.getDefault().entries()) {
+			if (monitor.isCanceled()) throw new OperationCanceledException();
+			try {
+				IMember member = HierarchyIndex.memberOf(entry);
+				if (member != null)
+					members.computeIfAbsent(member.getJavaProject(), p -> new ArrayList<>()).add(member);
+			} catch (JavaModelException e) {
+				Metrics.err("Could not find hierarchy " + entry.key + ": " + e.getMessage());
+			}
+		}
+
+		int count = 0;
+		for (Map.Entry<IJavaProject, List<IJavaElement>> e : members.entrySet()) {
+			ASTParser parser = ASTParser.newParser(AST.getJLSLatest());
+			parser.setProject(e.getKey());
+			IBinding[] bindings = parser.createBindings(
+				e.getValue().toArray(new IJavaElement[e.getValue().size()]), monitor);
+			for (IBinding binding : bindings) {
+				if (monitor.isCanceled()) throw new OperationCanceledException();
+				if (binding == null) continue;
+				HierarchyConfig config = QuickAssistHierarchySwitch.getHierarchyConfig(binding, null);
+				if (config == null) continue;
+				// Without a compilation unit, the enum is resolved as an external one
+				if (QuickAssistHierarchySwitch.getEnumKinds(null, null, config, monitor) != null)
+					++count;
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,25 @@
+package org.stekikun.hierarchyquickassist.startup;
+
+import org.eclipse.ui.IStartup;
+import org.stekikun.hierarchyquickassist.Activator;
+
+/**
+ * Starts the background warm-up of the quick-assist once the workbench
+ * has started, if the system property {@value #WARM_UP_PROPERTY} is set
+ * to {@code true}.
+ * <p>
+ * This package is excluded from the lazy activation of the plug-in,
+ * so that it is only activated early when the warm-up is enabled.
+ */
+public final class WarmUpStartup implements IStartup {
+
+	/** The system property enabling the warm-up */
+	public static final String WARM_UP_PROPERTY = "org.stekikun.hierarchyquickassist.warmup";
+
+	@Override
+	public void earlyStartup() {
+		if (!Boolean.getBoolean(WARM_UP_PROPERTY)) return;
+		// Activates the plug-in
+		Activator.getDefault().warmUp();
+	}
+}
@@ -65,4 +65,10 @@ public class Test1 {
 	public static void test(Base base) {
 		switch (base) {}
 	}
+	
+	public static Object testReturn(Base base) {
+		// quick-fix me with a (return) variant, the unmatched
+		// exception is thrown right after the switch in this block
+		switch (base) {}
+	}
 }
\ No newline at end of file
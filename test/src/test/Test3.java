@@ -80,10 +80,20 @@ public class Test3 {
 				throw new IllegalArgumentException("Unknown resource type " + res.getType());
 			}
 		}
+		
+		// A generic dispatcher, indexed under the bound of its parameter
+		@Hierarchy("")
+		public static <R extends IResource> IResourceKind ofAny(R res) {
+			return of(res);
+		}
 	}
 	
 	
 	public String printNameOfResource(IResource ires) {
 		switch (IResourceKind.of(ires)) { }
 	}
+	
+	public String printNameOfAnyResource(IResource ires) {
+		switch (IResourceKind.ofAny(ires)) { }
+	}
 }
@@ -0,0 +1,45 @@
+package test;
+
+import test.Test1.A;
+import test.Test1.Base;
+import test.Test1.C;
+
+/**
+ * Test with a filled-in hierarchy switch, whose cases
+ * fall through to the same statements, and which misses
+ * a kind whose rank is between the labels of the group
+ *
+ * @author slescuyer
+ */
+public class Test4 {
+
+	public static void test(Base base) {
+		// quick-fix me, and check that case B is not inserted
+		// between the labels of A and C, which would make A
+		// run B's statements
+		switch (base.getKind()) {
+		case A:
+		case C: {
+			System.out.println("A or C");
+			break;
+		}
+		}
+	}
+
+	public static void testDefault(Base base) {
+		// quick-fix me, and check that case B is inserted
+		// before the whole group of the default case
+		switch (base.getKind()) {
+		case A: {
+			A a = (A) base;
+			System.out.println(a);
+			break;
+		}
+		case C:
+		default: {
+			System.out.println(base instanceof C ? "C" : "other");
+			break;
+		}
+		}
+	}
+}